@@ -18,7 +18,11 @@
  */
 package org.gphoto2;
 
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
 import com.sun.jna.ptr.PointerByReference;
 import org.gphoto2.CameraFile.Path;
 import org.gphoto2.jna.GPhoto2Native;
@@ -26,7 +30,20 @@ import org.gphoto2.jna.GPhoto2Native.CameraFilePath;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents a camera. Thread-unsafe.
@@ -34,16 +51,165 @@ import java.io.IOException;
  */
 public class Camera implements Closeable {
 
-    final Pointer camera;
+    /**
+     * The native camera. Replaced by {@link #reopen(String)}.
+     */
+    volatile Pointer camera;
+    private NativeResources.Handle handle;
+    private String model;
+    private String port;
 
     /**
      * Creates a reference to the first connected camera.
      */
     public Camera() {
+        newCamera();
+    }
+
+    private void newCamera() {
         final PointerByReference ref = new PointerByReference();
         CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_new(ref), "gp_camera_new");
         camera = ref.getValue();
+        handle = NativeResources.register(this, camera, NativeResources.Kind.Camera);
+    }
+
+    /**
+     * Creates a reference to the camera connected to given port.
+     * @param port the port, as reported by {@link CameraList#getPort(int)}, for example usb:002,019
+     */
+    public Camera(String port) {
+        this();
+        boolean returnedOk = false;
+        try {
+            setPort(port);
+            returnedOk = true;
+        } finally {
+            if (!returnedOk) {
+                CameraUtils.closeQuietly(this);
+            }
+        }
+    }
+
+    /**
+     * Creates a reference to a camera of given model connected to given port, bypassing the auto-detection. Required for cameras
+     * which are not detected, such as the {@link #DIRECTORY_BROWSE} driver.
+     * @param model the camera model, as reported by {@link CameraList#getModel(int)}, not null.
+     * @param port the port, for example usb:002,019 or disk:/tmp/images, not null.
+     */
+    public Camera(String model, String port) {
+        this();
+        boolean returnedOk = false;
+        try {
+            setModel(model);
+            setPort(port);
+            returnedOk = true;
+        } finally {
+            if (!returnedOk) {
+                CameraUtils.closeQuietly(this);
+            }
+        }
     }
+
+    /**
+     * The model name of the libgphoto2 driver which presents a local directory as a camera, on a <code>disk:</code> port.
+     */
+    public static final String DIRECTORY_BROWSE = "Directory Browse";
+
+    /**
+     * Opens a local directory as a camera, using the {@link #DIRECTORY_BROWSE} driver. Useful for testing and benchmarking without
+     * camera hardware: the files are listed and downloaded through the real libgphoto2 code paths.
+     * @param dir the directory, not null.
+     * @return the camera, not yet initialized, never null.
+     */
+    public static Camera openDirectory(File dir) {
+        return new Camera(DIRECTORY_BROWSE, "disk:" + dir.getAbsolutePath());
+    }
+
+    private void setModel(String model) {
+        CameraUtils.requireNotNull(model, "model");
+        this.model = model;
+        final PointerByReference ref = new PointerByReference();
+        CameraUtils.check(GPhoto2Native.INSTANCE.gp_abilities_list_new(ref), "gp_abilities_list_new");
+        final Pointer abilitiesList = ref.getValue();
+        try {
+            CameraUtils.check(GPhoto2Native.INSTANCE.gp_abilities_list_load(abilitiesList, CameraList.CONTEXT), "gp_abilities_list_load");
+            final int index = CameraUtils.check(GPhoto2Native.INSTANCE.gp_abilities_list_lookup_model(abilitiesList, model), "gp_abilities_list_lookup_model");
+            final GPhoto2Native.CameraAbilities.ByValue abilities = new GPhoto2Native.CameraAbilities.ByValue();
+            CameraUtils.check(GPhoto2Native.INSTANCE.gp_abilities_list_get_abilities(abilitiesList, index, abilities), "gp_abilities_list_get_abilities");
+            CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_set_abilities(camera, abilities), "gp_camera_set_abilities");
+            capabilities = CameraCapabilities.cache(abilities);
+        } finally {
+            GPhoto2Native.INSTANCE.gp_abilities_list_free(abilitiesList);
+        }
+    }
+
+    private void setPort(String port) {
+        CameraUtils.requireNotNull(port, "port");
+        final PointerByReference ref = new PointerByReference();
+        CameraUtils.check(GPhoto2Native.INSTANCE.gp_port_info_list_new(ref), "gp_port_info_list_new");
+        final Pointer portInfoList = ref.getValue();
+        try {
+            CameraUtils.check(GPhoto2Native.INSTANCE.gp_port_info_list_load(portInfoList), "gp_port_info_list_load");
+            final int index = CameraUtils.check(GPhoto2Native.INSTANCE.gp_port_info_list_lookup_path(portInfoList, port), "gp_port_info_list_lookup_path");
+            final PointerByReference portInfo = new PointerByReference();
+            CameraUtils.check(GPhoto2Native.INSTANCE.gp_port_info_list_get_info(portInfoList, index, portInfo), "gp_port_info_list_get_info");
+            // the port info is copied by the camera, the list may be freed afterwards.
+            setPortInfo(portInfo.getValue());
+            this.port = port;
+        } finally {
+            GPhoto2Native.INSTANCE.gp_port_info_list_free(portInfoList);
+        }
+    }
+    /**
+     * Returns the port given to the constructor or {@link #reopen(String)}.
+     * @return the port, null if the camera was auto-detected.
+     */
+    public String getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the model given to the constructor.
+     * @return the model, null if the driver was auto-detected.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Tears the camera down and opens it again on given port: the native camera is de-initialized and freed, and a new one is
+     * created, bound to the port and initialized. Recovers cameras whose USB connection is wedged and which may have been
+     * re-enumerated on a different port. Configurations and capture contexts obtained earlier keep working with the new camera.
+     * The retry policies and circuit breaker are kept; the breaker is reset. The capabilities and the widget names looked up by
+     * {@link #setCaptureTarget(CaptureTarget)} and {@link #startMovie()} are looked up again, the camera on the port may be a
+     * different body. Images captured to the camera RAM and not downloaded yet are lost and no longer count as pending.
+     * @param port the port, as reported by {@link CameraList#getPort(int)}, not null.
+     */
+    public void reopen(String port) {
+        checkNotClosed();
+        CameraUtils.requireNotNull(port, "port");
+        if (isInitialized) {
+            isInitialized = false;
+            CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_camera_exit(camera, CameraList.CONTEXT), "gp_camera_exit");
+        }
+        handle.closeQuietly();
+        newCamera();
+        capabilities = null;
+        if (model != null) {
+            setModel(model);
+        }
+        setPort(port);
+        circuitBreaker.reset();
+        captureTargetWidget = null;
+        movieWidget = null;
+        // the images in the RAM and the events of the shots triggered before are lost with the old camera.
+        ramCaptures.clear();
+        contextRamCaptures = 0;
+        triggeredRamCaptures = 0;
+        ramSession++;
+        initialize();
+    }
+
     private boolean isInitialized = false;
 
     /**
@@ -52,7 +218,11 @@ public class Camera implements Closeable {
     public void initialize() {
         checkNotClosed();
         if (!isInitialized) {
-            CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_init(camera, CameraList.CONTEXT), "gp_camera_init");
+            invoke("gp_camera_init", new NativeCall() {
+                public int invoke() {
+                    return GPhoto2Native.INSTANCE.gp_camera_init(camera, CameraList.CONTEXT);
+                }
+            });
             isInitialized = true;
         }
     }
@@ -84,9 +254,12 @@ public class Camera implements Closeable {
      */
     public void close() throws IOException {
         if (!closed) {
-            deinitialize();
-            closed = true;
-            CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_free(camera), "gp_camera_free");
+            try {
+                deinitialize();
+            } finally {
+                closed = true;
+                handle.close();
+            }
         }
     }
 
@@ -95,6 +268,184 @@ public class Camera implements Closeable {
             throw new IllegalStateException("Invalid state: closed");
         }
     }
+    private static final Logger log = Logger.getLogger(Camera.class.getName());
+    private static final Random RANDOM = new Random();
+    private volatile RetryPolicies retryPolicies = new RetryPolicies();
+    private volatile CircuitBreaker circuitBreaker = CircuitBreaker.disabled();
+
+    /**
+     * Sets the policies applied when a camera operation fails. By default all operations fail on first error.
+     * @param retryPolicies the policies, not null. See {@link RetryPolicies#newDefault()} for policies suitable for busy cameras.
+     */
+    public void setRetryPolicies(RetryPolicies retryPolicies) {
+        this.retryPolicies = CameraUtils.requireNotNull(retryPolicies, "retryPolicies");
+    }
+
+    public RetryPolicies getRetryPolicies() {
+        return retryPolicies;
+    }
+
+    /**
+     * Sets the circuit breaker guarding this camera. By default the breaker is {@link CircuitBreaker#disabled() disabled}: it only
+     * counts the failures. A breaker such as <code>new CircuitBreaker(10, 5000)</code>, which opens for 5 seconds after 10
+     * consecutive device failures, stops hammering a wedged camera but also rejects the calls of a camera which recovers sooner.
+     * @param circuitBreaker the breaker, not null.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = CameraUtils.requireNotNull(circuitBreaker, "circuitBreaker");
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Observes the native camera operations.
+     */
+    public static interface OperationListener {
+
+        /**
+         * Invoked after every native call, including each retry, on the thread which invoked it. Must be fast.
+         * @param camera the camera.
+         * @param methodName the native function name, e.g. <code>gp_camera_capture</code>.
+         * @param result the libgphoto2 result code.
+         * @param durationNanos the duration of the native call.
+         */
+        void onOperation(Camera camera, String methodName, int result, long durationNanos);
+    }
+    private volatile OperationListener operationListener;
+
+    /**
+     * Sets the listener notified after every native camera operation, see {@link CameraWatchdog}.
+     * @param operationListener the listener, null to remove it.
+     */
+    public void setOperationListener(OperationListener operationListener) {
+        this.operationListener = operationListener;
+    }
+
+    public OperationListener getOperationListener() {
+        return operationListener;
+    }
+
+    /**
+     * A native camera operation, which may be invoked repeatedly.
+     */
+    interface NativeCall {
+
+        /**
+         * Invokes the native function.
+         * @return the libgphoto2 result code.
+         */
+        int invoke();
+    }
+
+    /**
+     * Invokes given camera operation, guarded by the {@link #getCircuitBreaker() circuit breaker} and retried according to the
+     * {@link #getRetryPolicies() retry policies}. Cancelled when the thread is interrupted or the {@link OperationContext} deadline passes.
+     * @param methodName the native function name.
+     * @param call the call
+     * @return the non-negative result of the call.
+     * @throws GPhotoException if the call fails and the retry policy gives up, or the circuit breaker is open.
+     */
+    int invoke(String methodName, NativeCall call) {
+        final CircuitBreaker breaker = circuitBreaker;
+        breaker.beforeCall(methodName);
+        for (int attempt = 1;; attempt++) {
+            OperationContext.checkNotCancelled(methodName);
+            final long start = System.nanoTime();
+            final int result = call.invoke();
+            final OperationListener listener = operationListener;
+            if (listener != null) {
+                listener.onOperation(this, methodName, result, System.nanoTime() - start);
+            }
+            if (result >= GPhoto2Native.GP_OK) {
+                breaker.onSuccess();
+                return result;
+            }
+            final RetryPolicy policy = retryPolicies.get(methodName, result);
+            if (policy.action == RetryPolicy.Action.Fail || attempt >= policy.maxAttempts) {
+                breaker.onFailure(result);
+                if (result == GPhoto2Native.GP_ERROR_CANCEL) {
+                    // tell the caller why.
+                    OperationContext.checkNotCancelled(methodName);
+                }
+                return CameraUtils.check(result, methodName);
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine(methodName + " failed with " + CameraUtils.getErrorName(result) + ", attempt " + attempt + ", applying " + policy);
+            }
+            if (policy.action == RetryPolicy.Action.Reinitialize && !"gp_camera_init".equals(methodName)) {
+                CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_camera_exit(camera, CameraList.CONTEXT), "gp_camera_exit");
+                try {
+                    // let the device settle between the exit and the init.
+                    sleep(policy.getDelayMillis(attempt, RANDOM), methodName, result);
+                } finally {
+                    final int initResult = GPhoto2Native.INSTANCE.gp_camera_init(camera, CameraList.CONTEXT);
+                    if (initResult < GPhoto2Native.GP_OK) {
+                        log.log(Level.WARNING, "Failed to re-initialize the camera after " + methodName + " failed: " + CameraUtils.getErrorName(initResult));
+                    }
+                }
+            } else {
+                sleep(policy.getDelayMillis(attempt, RANDOM), methodName, result);
+            }
+        }
+    }
+
+    /**
+     * Checks whether <code>gp_camera_get_single_config</code> and <code>gp_camera_set_single_config</code> may be used for a
+     * setting, see {@link CameraCapabilities#isSingleConfigSupported(String)}.
+     * @param basename the widget name without the path.
+     * @return false if single-config access is known not to be supported.
+     */
+    boolean isSingleConfigSupported(String basename) {
+        return getCapabilities().isSingleConfigSupported(basename);
+    }
+
+    /**
+     * Remembers that single-config access to a setting is not supported, for all cameras of the model.
+     * @param basename the widget name without the path.
+     */
+    void markSingleConfigUnsupported(String basename) {
+        getCapabilities().markSingleConfigUnsupported(basename);
+    }
+
+    private volatile CameraCapabilities capabilities;
+
+    /**
+     * Returns what the camera supports. Read from libgphoto2 once per model, then cached, see {@link CameraCapabilities}.
+     * @return the capabilities, never null. The camera must be initialized unless it was constructed with a model.
+     */
+    public CameraCapabilities getCapabilities() {
+        CameraCapabilities result = capabilities;
+        if (result == null) {
+            checkNotClosed();
+            if (model != null) {
+                result = CameraCapabilities.getCached(model);
+            }
+            if (result == null) {
+                final GPhoto2Native.CameraAbilities abilities = new GPhoto2Native.CameraAbilities();
+                CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_get_abilities(camera, abilities), "gp_camera_get_abilities");
+                result = CameraCapabilities.cache(abilities);
+            }
+            capabilities = result;
+        }
+        return result;
+    }
+
+    private static void sleep(long millis, String methodName, int result) {
+        if (millis <= 0) {
+            return;
+        }
+        if (TimeUnit.MILLISECONDS.toNanos(millis) > OperationContext.getRemainingNanos()) {
+            throw new GPhotoException(methodName + " failed with " + CameraUtils.getErrorName(result) + ", the deadline passes before the retry", GPhoto2Native.GP_ERROR_CANCEL);
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GPhotoException(methodName + " interrupted while waiting for retry after " + CameraUtils.getErrorName(result), ex, GPhoto2Native.GP_ERROR_CANCEL);
+        }
+    }
 
     /**
      * Captures a quick preview image on the camera.
@@ -105,7 +456,12 @@ public class Camera implements Closeable {
         boolean returnedOk = false;
         final CameraFile cfile = new CameraFile();
         try {
-            CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_capture_preview(camera, cfile.cf, CameraList.CONTEXT), "gp_camera_capture_preview");
+            invoke("gp_camera_capture_preview", new NativeCall() {
+                public int invoke() {
+                    return GPhoto2Native.INSTANCE.gp_camera_capture_preview(camera, cfile.cf, CameraList.CONTEXT);
+                }
+            });
+            cfile.updateSize();
             returnedOk = true;
             return cfile;
         } finally {
@@ -124,16 +480,537 @@ public class Camera implements Closeable {
         return new CameraWidgets(this);
     }
 
+    /**
+     * Returns a context for repeated captures, which reuses the native memory and objects across shots.
+     * @return the context, never null. Must be closed afterwards, before the camera is closed.
+     */
+    public CaptureContext newCaptureContext() {
+        checkNotClosed();
+        return new CaptureContext(this);
+    }
+
     /**
      * Captures a full-quality image image on the camera.
      * @return camera file, never null. Must be closed afterwards.
      */
     public CameraFile captureImage() {
+        return download(capture());
+    }
+
+    /**
+     * Captures a full-quality image, leaving it on the camera.
+     * @return the path of the captured image on the camera, never null. Use {@link #download(Path)} to retrieve the image.
+     */
+    public Path capture() {
+        checkNotClosed();
+        checkRamCapacity();
+        final CameraFilePath path = new CameraFilePath.ByReference();
+        invoke("gp_camera_capture", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_capture(camera, GPhoto2Native.GP_CAPTURE_IMAGE, path, CameraList.CONTEXT);
+            }
+        });
+        final Path result = new CameraFile.Path(path);
+        if (captureTarget == CaptureTarget.InternalRam) {
+            ramCaptures.add(result);
+        }
+        return result;
+    }
+
+    private CaptureTarget captureTarget;
+    private String captureTargetWidget;
+    private final Set<Path> ramCaptures = new HashSet<Path>();
+    /**
+     * RAM captures taken by {@link CaptureContext}s and not downloaded yet.
+     */
+    int contextRamCaptures = 0;
+    /**
+     * Counts the {@link #reopen(String)}s, the RAM of the camera is lost with each.
+     */
+    int ramSession = 0;
+    /**
+     * Shots triggered to the RAM whose files were not announced yet.
+     */
+    private int triggeredRamCaptures = 0;
+    private int ramCaptureLimit = 2;
+
+    /**
+     * Sets where the camera stores the captured images, by the <code>capturetarget</code> widget.
+     * <p></p>
+     * Capturing to {@link CaptureTarget#InternalRam} skips writing the image to the card, which saves hundreds of milliseconds per
+     * shot on many bodies, but the camera keeps the image only until it is downloaded and its RAM holds a few images only. Therefore
+     * while the target is the RAM, at most {@link #getRamCaptureLimit()} captures may wait for the download: further captures fail
+     * with {@link IllegalStateException} until the pending images are {@link #download(Path) downloaded} or deleted. The driver
+     * releases the RAM once the image is downloaded.
+     * @param target the target, not null.
+     * @throws GPhotoException with {@link GPhoto2Native#GP_ERROR_NOT_SUPPORTED} if the camera has no capture target setting or
+     * the setting has no choice for the target.
+     */
+    public void setCaptureTarget(CaptureTarget target) {
+        checkNotClosed();
+        CameraUtils.requireNotNull(target, "target");
+        final CameraWidgets cfg = newConfiguration();
+        try {
+            final String name = getCaptureTargetWidget(cfg);
+            final String choice = target.resolveChoice(getCapabilities().getModel(), cfg.listChoices(name));
+            if (choice == null) {
+                throw new GPhotoException("No " + name + " choice for " + target + ", available: " + cfg.listChoices(name)
+                        + "; see CaptureTarget.registerChoice()", GPhoto2Native.GP_ERROR_NOT_SUPPORTED);
+            }
+            if (!choice.equals(cfg.getValue(name))) {
+                cfg.setValue(name, choice);
+                cfg.apply(Collections.singleton(name));
+            }
+            captureTarget = target;
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    /**
+     * Reads where the camera stores the captured images.
+     * @return the target, null if the current choice is not recognized.
+     * @throws GPhotoException with {@link GPhoto2Native#GP_ERROR_NOT_SUPPORTED} if the camera has no capture target setting.
+     */
+    public CaptureTarget getCaptureTarget() {
+        checkNotClosed();
+        final CameraWidgets cfg = newConfiguration();
+        try {
+            captureTarget = CaptureTarget.fromChoice(getCapabilities().getModel(), (String) cfg.getValue(getCaptureTargetWidget(cfg)));
+            return captureTarget;
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    private String getCaptureTargetWidget(CameraWidgets cfg) {
+        if (captureTargetWidget == null) {
+            for (final String name : cfg.getNames()) {
+                if (name.endsWith("/capturetarget")) {
+                    captureTargetWidget = name;
+                    break;
+                }
+            }
+            if (captureTargetWidget == null) {
+                throw new GPhotoException("The camera has no capturetarget setting", GPhoto2Native.GP_ERROR_NOT_SUPPORTED);
+            }
+        }
+        return captureTargetWidget;
+    }
+
+    /**
+     * Sets how many images captured to the RAM may wait for the download, see {@link #setCaptureTarget(CaptureTarget)}. Defaults
+     * to 2; the safe value depends on the body and the image size.
+     * @param ramCaptureLimit 1 or greater.
+     */
+    public void setRamCaptureLimit(int ramCaptureLimit) {
+        if (ramCaptureLimit < 1) {
+            throw new IllegalArgumentException("Parameter ramCaptureLimit: invalid value " + ramCaptureLimit + ": must be 1 or greater");
+        }
+        this.ramCaptureLimit = ramCaptureLimit;
+    }
+
+    public int getRamCaptureLimit() {
+        return ramCaptureLimit;
+    }
+
+    /**
+     * Returns the number of images captured to the RAM which were not downloaded yet.
+     * @return 0 or greater.
+     */
+    public int getPendingRamCaptures() {
+        return ramCaptures.size() + contextRamCaptures + triggeredRamCaptures;
+    }
+
+    boolean isCapturingToRam() {
+        return captureTarget == CaptureTarget.InternalRam;
+    }
+
+    /**
+     * Refuses to capture when the RAM might overflow.
+     */
+    void checkRamCapacity() {
+        if (captureTarget == CaptureTarget.InternalRam && getPendingRamCaptures() >= ramCaptureLimit) {
+            throw new IllegalStateException("Invalid state: " + getPendingRamCaptures() + " images captured to the camera RAM were not downloaded yet: " + ramCaptures);
+        }
+    }
+
+    /**
+     * Downloads a file from the camera.
+     * @param path the path of the file on the camera, not null.
+     * @return camera file, never null. Must be closed afterwards.
+     */
+    public CameraFile download(Path path) {
+        checkNotClosed();
+        final CameraFile result = path.newFile(this);
+        ramCaptures.remove(path);
+        return result;
+    }
+
+    /**
+     * Reads the file metadata without downloading the file.
+     * @param path the path of the file on the camera, not null.
+     * @return the metadata, never null. Fields not reported by the camera are -1 or null.
+     */
+    public CameraFile.Info getFileInfo(final Path path) {
+        checkNotClosed();
+        final GPhoto2Native.CameraFileInfo info = new GPhoto2Native.CameraFileInfo();
+        invoke("gp_camera_file_get_info", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_file_get_info(camera, path.path, path.filename, info, CameraList.CONTEXT);
+            }
+        });
+        return new CameraFile.Info(info);
+    }
+
+    /**
+     * Reads the capacity and free space of the camera storages.
+     * @return the storages, never null, may be empty.
+     */
+    public List<StorageInfo> getStorageInfo() {
+        checkNotClosed();
+        final PointerByReference sifs = new PointerByReference();
+        final IntByReference count = new IntByReference();
+        invoke("gp_camera_get_storageinfo", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_get_storageinfo(camera, sifs, count, CameraList.CONTEXT);
+            }
+        });
+        final Pointer array = sifs.getValue();
+        if (array == null) {
+            return new ArrayList<StorageInfo>();
+        }
+        try {
+            final int size = new GPhoto2Native.CameraStorageInformation().size();
+            final List<StorageInfo> result = new ArrayList<StorageInfo>(count.getValue());
+            for (int i = 0; i < count.getValue(); i++) {
+                result.add(new StorageInfo(new GPhoto2Native.CameraStorageInformation(array.share((long) i * size))));
+            }
+            return result;
+        } finally {
+            Native.free(Pointer.nativeValue(array));
+        }
+    }
+
+    /**
+     * Streams a file from the camera to given channel in chunks, without holding the whole file in memory. Use for movies and
+     * other files which may exceed the available memory. Falls back to a whole-file download when the driver or libgphoto2
+     * does not support partial reads.
+     * @param path the path of the file on the camera, not null.
+     * @param out receives the file data, not null. Not closed.
+     * @param chunkSize the size of a single read, e.g. 1MB; bounds the memory use.
+     * @return the number of bytes written.
+     * @throws IOException if the channel fails.
+     */
+    public long download(final Path path, WritableByteChannel out, int chunkSize) throws IOException {
+        checkNotClosed();
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Parameter chunkSize: invalid value " + chunkSize + ": must be 1 or greater");
+        }
+        final Memory buffer = new Memory(chunkSize);
+        final LongByReference size = new LongByReference();
+        long offset = 0;
+        try {
+            while (true) {
+                size.setValue(chunkSize);
+                final long chunkOffset = offset;
+                invoke("gp_camera_file_read", new NativeCall() {
+                    public int invoke() {
+                        return GPhoto2Native.INSTANCE.gp_camera_file_read(camera, path.path, path.filename, GPhoto2Native.GP_FILE_TYPE_NORMAL, chunkOffset,
+                                buffer, size, CameraList.CONTEXT);
+                    }
+                });
+                final long read = size.getValue();
+                if (read > 0) {
+                    write(out, buffer.getByteBuffer(0, read));
+                    offset += read;
+                }
+                // a short read ends the file; reading on at the end would cost another round trip, which some drivers fail.
+                if (read < chunkSize) {
+                    break;
+                }
+            }
+        } catch (GPhotoException ex) {
+            if (ex.result != GPhoto2Native.GP_ERROR_NOT_SUPPORTED || offset > 0) {
+                throw ex;
+            }
+            log.fine("gp_camera_file_read not supported by the driver, downloading " + path + " as a whole");
+            return downloadWhole(path, out);
+        } catch (UnsatisfiedLinkError ex) {
+            // libgphoto2 older than 2.5.2
+            return downloadWhole(path, out);
+        }
+        ramCaptures.remove(path);
+        return offset;
+    }
+
+    private long downloadWhole(Path path, WritableByteChannel out) throws IOException {
+        final CameraFile file = download(path);
+        try {
+            final ByteBuffer data = file.getByteBuffer();
+            final long result = data.remaining();
+            write(out, data);
+            return result;
+        } finally {
+            CameraUtils.closeQuietly(file);
+        }
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Streams a file from the camera to a local file, see {@link #download(Path, WritableByteChannel, int)}.
+     * @param path the path of the file on the camera, not null.
+     * @param target the local file, not null. Overwritten.
+     * @return the number of bytes written.
+     * @throws IOException if the file cannot be written.
+     */
+    public long download(Path path, File target) throws IOException {
+        final FileOutputStream out = new FileOutputStream(target);
+        try {
+            return download(path, out.getChannel(), 1024 * 1024);
+        } finally {
+            out.close();
+        }
+    }
+
+    private String movieWidget;
+
+    /**
+     * Starts recording a movie, by the <code>movie</code> widget (Canon EOS, Nikon and others). Stop it by
+     * {@link #stopMovie(int)}.
+     * @throws GPhotoException with {@link GPhoto2Native#GP_ERROR_NOT_SUPPORTED} if the camera has no movie setting; try
+     * {@link #captureMovie()}.
+     */
+    public void startMovie() {
+        setMovie(true);
+    }
+
+    /**
+     * Stops recording the movie started by {@link #startMovie()} and waits for the camera to announce the movie file.
+     * @param timeoutMillis maximum time to wait for the file, the camera needs time to finish writing a long movie.
+     * @return the path of the movie on the camera, never null. Stream it by {@link #download(Path, File)}.
+     * @throws GPhotoException with {@link GPhoto2Native#GP_ERROR_TIMEOUT} if the file was not announced in time.
+     */
+    public Path stopMovie(int timeoutMillis) {
+        setMovie(false);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new GPhotoException("The movie file was not announced within " + timeoutMillis + "ms", GPhoto2Native.GP_ERROR_TIMEOUT);
+            }
+            final CameraEvent e = waitForEvent((int) Math.min(remaining, Integer.MAX_VALUE));
+            if (e.type == CameraEvent.Type.FileAdded) {
+                return e.path;
+            }
+        }
+    }
+
+    private void setMovie(boolean recording) {
+        checkNotClosed();
+        final CameraWidgets cfg = newConfiguration();
+        try {
+            if (movieWidget == null) {
+                for (final String name : cfg.getNames()) {
+                    if (name.endsWith("/movie") && cfg.getType(name) == CameraWidgets.WidgetTypeEnum.Toggle) {
+                        movieWidget = name;
+                        break;
+                    }
+                }
+                if (movieWidget == null) {
+                    throw new GPhotoException("The camera has no movie setting", GPhoto2Native.GP_ERROR_NOT_SUPPORTED);
+                }
+            }
+            cfg.setValue(movieWidget, recording);
+            cfg.apply(Collections.singleton(movieWidget));
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    /**
+     * Records a movie by <code>gp_camera_capture(GP_CAPTURE_MOVIE)</code>. The duration is chosen by the driver; only a few
+     * drivers support this, most cameras record by {@link #startMovie()} instead.
+     * @return the path of the movie on the camera, never null. Stream it by {@link #download(Path, File)}.
+     */
+    public Path captureMovie() {
         checkNotClosed();
         final CameraFilePath path = new CameraFilePath.ByReference();
-        CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_capture(camera, GPhoto2Native.GP_CAPTURE_IMAGE, path, CameraList.CONTEXT), "gp_camera_capture");
-        final Path p = new CameraFile.Path(path);
-        return p.newFile(camera);
+        invoke("gp_camera_capture", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_capture(camera, GPhoto2Native.GP_CAPTURE_MOVIE, path, CameraList.CONTEXT);
+            }
+        });
+        return new CameraFile.Path(path);
+    }
+
+    /**
+     * Deletes a file from the camera.
+     * @param path the path of the file on the camera, not null.
+     */
+    public void deleteFile(final Path path) {
+        checkNotClosed();
+        invoke("gp_camera_file_delete", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_file_delete(camera, path.path, path.filename, CameraList.CONTEXT);
+            }
+        });
+        ramCaptures.remove(path);
+    }
+
+    /**
+     * Deletes all files in given camera folder, in a single operation. Not supported by all cameras, see
+     * {@link CameraCapabilities#canDeleteAllFiles()}. Images captured to the camera RAM in the folder no longer count as pending,
+     * see {@link #getPendingRamCaptures()}.
+     * @param folder the absolute folder path, not null.
+     */
+    public void deleteAllFiles(final String folder) {
+        checkNotClosed();
+        CameraUtils.requireNotNull(folder, "folder");
+        invoke("gp_camera_folder_delete_all", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_folder_delete_all(camera, folder, CameraList.CONTEXT);
+            }
+        });
+        final String normalized = stripTrailingSlash(folder);
+        for (final Iterator<Path> i = ramCaptures.iterator(); i.hasNext();) {
+            if (stripTrailingSlash(i.next().path).equals(normalized)) {
+                i.remove();
+            }
+        }
+    }
+
+    private static String stripTrailingSlash(String folder) {
+        return folder.length() > 1 && folder.endsWith("/") ? folder.substring(0, folder.length() - 1) : folder;
+    }
+
+    /**
+     * Uploads a file to the camera, e.g. an overlay image or a picture style. Not supported by all cameras, see
+     * {@link CameraCapabilities#canPutFiles()}.
+     * @param folder the absolute target folder path, not null.
+     * @param filename the target file name, not null.
+     * @param file the data, not null. Not closed.
+     */
+    public void upload(final String folder, final String filename, final CameraFile file) {
+        checkNotClosed();
+        CameraUtils.requireNotNull(folder, "folder");
+        CameraUtils.requireNotNull(filename, "filename");
+        invoke("gp_camera_folder_put_file", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_folder_put_file(camera, folder, filename, GPhoto2Native.GP_FILE_TYPE_NORMAL, file.cf, CameraList.CONTEXT);
+            }
+        });
+    }
+
+    /**
+     * Uploads a local file to the camera, see {@link #upload(String, String, CameraFile)}.
+     * @param folder the absolute target folder path, not null.
+     * @param source the local file, not null. Uploaded under its name.
+     * @return the number of bytes uploaded.
+     * @throws IOException if the local file cannot be read.
+     */
+    public long upload(String folder, File source) throws IOException {
+        final CameraFile file = CameraFile.fromFile(source);
+        try {
+            upload(folder, source.getName(), file);
+            return file.getSize();
+        } finally {
+            CameraUtils.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Lists the files in given camera folder.
+     * @param folder the absolute folder path, for example /store_00010001/DCIM/100CANON, not null.
+     * @return the file names, never null.
+     */
+    public List<String> listFiles(String folder) {
+        return listFolder("gp_camera_folder_list_files", folder, false);
+    }
+
+    /**
+     * Lists the sub-folders of given camera folder.
+     * @param folder the absolute folder path, for example /, not null.
+     * @return the sub-folder names, never null.
+     */
+    public List<String> listFolders(String folder) {
+        return listFolder("gp_camera_folder_list_folders", folder, true);
+    }
+
+    private List<String> listFolder(String methodName, final String folder, final boolean folders) {
+        checkNotClosed();
+        CameraUtils.requireNotNull(folder, "folder");
+        final PointerByReference ref = new PointerByReference();
+        CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_new(ref), "gp_list_new");
+        final Pointer list = ref.getValue();
+        try {
+            invoke(methodName, new NativeCall() {
+                public int invoke() {
+                    return folders ? GPhoto2Native.INSTANCE.gp_camera_folder_list_folders(camera, folder, list, CameraList.CONTEXT)
+                            : GPhoto2Native.INSTANCE.gp_camera_folder_list_files(camera, folder, list, CameraList.CONTEXT);
+                }
+            });
+            final int count = CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_count(list), "gp_list_count");
+            final List<String> result = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                final PointerByReference name = new PointerByReference();
+                CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_get_name(list, i, name), "gp_list_get_name");
+                result.add(name.getValue().getString(0));
+            }
+            return result;
+        } finally {
+            GPhoto2Native.INSTANCE.gp_list_free(list);
+        }
+    }
+
+    /**
+     * Triggers the shutter and returns immediately, without waiting for the image. The captured image is announced by a
+     * {@link CameraEvent.Type#FileAdded} event, see {@link #waitForEvent(int)}. Not supported by all cameras. When capturing to the
+     * {@link CaptureTarget#InternalRam camera RAM}, the shot counts against the {@link #getRamCaptureLimit() limit} like
+     * {@link #capture()} does.
+     */
+    public void triggerCapture() {
+        checkNotClosed();
+        checkRamCapacity();
+        invoke("gp_camera_trigger_capture", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_trigger_capture(camera, CameraList.CONTEXT);
+            }
+        });
+        if (captureTarget == CaptureTarget.InternalRam) {
+            triggeredRamCaptures++;
+        }
+    }
+
+    /**
+     * Waits for an event from the camera. Files announced while capturing to the camera RAM count against the
+     * {@link #getRamCaptureLimit() limit} until they are downloaded.
+     * @param timeoutMillis maximum time to wait, in milliseconds.
+     * @return the event, never null. {@link CameraEvent.Type#Timeout} if nothing happened within the timeout.
+     */
+    public CameraEvent waitForEvent(final int timeoutMillis) {
+        checkNotClosed();
+        final IntByReference type = new IntByReference();
+        final PointerByReference data = new PointerByReference();
+        invoke("gp_camera_wait_for_event", new NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_wait_for_event(camera, timeoutMillis, type, data, CameraList.CONTEXT);
+            }
+        });
+        final CameraEvent result = CameraEvent.fromNative(type.getValue(), data.getValue());
+        if (result.type == CameraEvent.Type.FileAdded && captureTarget == CaptureTarget.InternalRam) {
+            ramCaptures.add(result.path);
+            if (triggeredRamCaptures > 0) {
+                // the first file of the shot; e.g. RAW+JPEG announces more.
+                triggeredRamCaptures--;
+            }
+        }
+        return result;
     }
 
     void ref() {
@@ -0,0 +1,237 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+import org.gphoto2.jna.GPhoto2Native.CameraAbilities;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What a camera model supports, as declared by its libgphoto2 driver. Immutable; obtain by {@link Camera#getCapabilities()}.
+ * <p></p>
+ * The capabilities are cached per model for the lifetime of the JVM, so that feature checks cost nothing after the first camera
+ * of the model is opened. The cache also remembers features which the driver declares but which turned out to be unsupported,
+ * such as the single-config access to a setting.
+ */
+public final class CameraCapabilities {
+
+    private static final ConcurrentMap<String, CameraCapabilities> CACHE = new ConcurrentHashMap<String, CameraCapabilities>();
+    /**
+     * The model and widget base names, separated by a newline, refused by <code>gp_camera_*_single_config</code>.
+     */
+    private static final ConcurrentMap<String, Boolean> NO_SINGLE_CONFIG = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * The installed libgphoto2 lacks the single-config functions altogether.
+     */
+    private static volatile boolean singleConfigMissing = false;
+    private final String model;
+    private final String library;
+    private final int operations;
+    private final int fileOperations;
+    private final int folderOperations;
+    private final int usbVendor;
+    private final int usbProduct;
+
+    private CameraCapabilities(CameraAbilities a) {
+        model = CameraUtils.toString(a.model);
+        library = CameraUtils.toString(a.library);
+        operations = a.operations;
+        fileOperations = a.file_operations;
+        folderOperations = a.folder_operations;
+        usbVendor = a.usb_vendor;
+        usbProduct = a.usb_product;
+    }
+
+    /**
+     * Caches the capabilities of the model described by given abilities.
+     * @param abilities the abilities read from libgphoto2, not null.
+     * @return the cached capabilities, never null.
+     */
+    static CameraCapabilities cache(CameraAbilities abilities) {
+        final CameraCapabilities c = new CameraCapabilities(abilities);
+        final CameraCapabilities existing = CACHE.putIfAbsent(c.model, c);
+        return existing == null ? c : existing;
+    }
+
+    /**
+     * Returns cached capabilities.
+     * @param model the camera model, not null.
+     * @return the capabilities, null if no camera of the model was opened yet.
+     */
+    public static CameraCapabilities getCached(String model) {
+        return CACHE.get(model);
+    }
+
+    /**
+     * Clears the cache, e.g. after the camera drivers were upgraded.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+        NO_SINGLE_CONFIG.clear();
+        singleConfigMissing = false;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return the camlib file name, for example ptp2, never null.
+     */
+    public String getLibrary() {
+        return library;
+    }
+
+    public int getUsbVendor() {
+        return usbVendor;
+    }
+
+    public int getUsbProduct() {
+        return usbProduct;
+    }
+
+    /**
+     * @return a bitmask of the GP_OPERATION_* constants.
+     */
+    public int getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return a bitmask of the GP_FILE_OPERATION_* constants.
+     */
+    public int getFileOperations() {
+        return fileOperations;
+    }
+
+    /**
+     * @return a bitmask of the GP_FOLDER_OPERATION_* constants.
+     */
+    public int getFolderOperations() {
+        return folderOperations;
+    }
+
+    public boolean canCaptureImage() {
+        return (operations & GPhoto2Native.GP_OPERATION_CAPTURE_IMAGE) != 0;
+    }
+
+    public boolean canCaptureVideo() {
+        return (operations & GPhoto2Native.GP_OPERATION_CAPTURE_VIDEO) != 0;
+    }
+
+    public boolean canCaptureAudio() {
+        return (operations & GPhoto2Native.GP_OPERATION_CAPTURE_AUDIO) != 0;
+    }
+
+    /**
+     * @return true if {@link Camera#capturePreview()} is supported.
+     */
+    public boolean canCapturePreview() {
+        return (operations & GPhoto2Native.GP_OPERATION_CAPTURE_PREVIEW) != 0;
+    }
+
+    /**
+     * @return true if {@link Camera#newConfiguration()} is supported.
+     */
+    public boolean canConfigure() {
+        return (operations & GPhoto2Native.GP_OPERATION_CONFIG) != 0;
+    }
+
+    /**
+     * @return true if {@link Camera#triggerCapture()} is supported.
+     */
+    public boolean canTriggerCapture() {
+        return (operations & GPhoto2Native.GP_OPERATION_TRIGGER_CAPTURE) != 0;
+    }
+
+    public boolean canDeleteFiles() {
+        return (fileOperations & GPhoto2Native.GP_FILE_OPERATION_DELETE) != 0;
+    }
+
+    /**
+     * @return true if the camera provides thumbnails of the files.
+     */
+    public boolean hasFilePreviews() {
+        return (fileOperations & GPhoto2Native.GP_FILE_OPERATION_PREVIEW) != 0;
+    }
+
+    public boolean hasRawFiles() {
+        return (fileOperations & GPhoto2Native.GP_FILE_OPERATION_RAW) != 0;
+    }
+
+    public boolean hasAudioFiles() {
+        return (fileOperations & GPhoto2Native.GP_FILE_OPERATION_AUDIO) != 0;
+    }
+
+    public boolean hasExif() {
+        return (fileOperations & GPhoto2Native.GP_FILE_OPERATION_EXIF) != 0;
+    }
+
+    public boolean canDeleteAllFiles() {
+        return (folderOperations & GPhoto2Native.GP_FOLDER_OPERATION_DELETE_ALL) != 0;
+    }
+
+    public boolean canPutFiles() {
+        return (folderOperations & GPhoto2Native.GP_FOLDER_OPERATION_PUT_FILE) != 0;
+    }
+
+    public boolean canMakeFolders() {
+        return (folderOperations & GPhoto2Native.GP_FOLDER_OPERATION_MAKE_DIR) != 0;
+    }
+
+    public boolean canRemoveFolders() {
+        return (folderOperations & GPhoto2Native.GP_FOLDER_OPERATION_REMOVE_DIR) != 0;
+    }
+
+    /**
+     * Checks whether <code>gp_camera_get_single_config</code> and <code>gp_camera_set_single_config</code> are available at all.
+     * @return false if the installed libgphoto2 is older than 2.5.10, which lacks them.
+     */
+    public boolean isSingleConfigSupported() {
+        return !singleConfigMissing;
+    }
+
+    /**
+     * Checks whether a setting may be accessed by <code>gp_camera_get_single_config</code> and
+     * <code>gp_camera_set_single_config</code>. Not declared by the drivers: optimistically true until a single-config call of
+     * the setting on a camera of this model fails with {@link GPhoto2Native#GP_ERROR_NOT_SUPPORTED}. Drivers support single-config
+     * access for some settings only, so a refusal is remembered for the one setting.
+     * @param basename the widget name without the path, e.g. <code>shutterspeed</code>, not null.
+     * @return false if single-config access is known not to be supported.
+     */
+    public boolean isSingleConfigSupported(String basename) {
+        return !singleConfigMissing && !NO_SINGLE_CONFIG.containsKey(model + '\n' + basename);
+    }
+
+    void markSingleConfigUnsupported(String basename) {
+        NO_SINGLE_CONFIG.put(model + '\n' + basename, Boolean.TRUE);
+    }
+
+    static void markSingleConfigMissing() {
+        singleConfigMissing = true;
+    }
+
+    @Override
+    public String toString() {
+        return "CameraCapabilities{" + model + ", " + library + ", operations=0x" + Integer.toHexString(operations) + ", fileOperations=0x"
+                + Integer.toHexString(fileOperations) + ", folderOperations=0x" + Integer.toHexString(folderOperations) + '}';
+    }
+}
@@ -0,0 +1,630 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool for scripted camera rigs. Works on all detected cameras in parallel, one thread per camera, optionally
+ * narrowed by the port or model. Every operation prints one JSON object per line to the standard output, with its duration and
+ * size, followed by a summary per camera and a total; diagnostics go to the standard error. Exits with 0 on success, 1 if any
+ * camera failed, 2 on invalid usage.
+ * <pre>
+ * CameraCli list
+ * CameraCli capture --count 3 --out 'shots/{model}-{n}.{ext}'
+ * CameraCli --model 'Nikon.*' config set /main/capturesettings/f-number=5.6
+ * CameraCli sync archive/
+ * </pre>
+ */
+public final class CameraCli {
+
+    private static final String USAGE = "Usage: CameraCli [options] command [arguments]\n"
+            + "Commands:\n"
+            + "  list                       lists the detected cameras\n"
+            + "  capture                    captures images and downloads them to --out\n"
+            + "  preview                    captures live view frames to --out\n"
+            + "  download                   downloads all files under --folder to --out\n"
+            + "  config get [name...]       prints the given settings, all writable settings if none given\n"
+            + "  config set name=value...   changes the settings; toggles take 0/1, dates take seconds or 'now'\n"
+            + "  sync dir                   downloads files not yet in the content-addressed store dir\n"
+            + "  upload file...             uploads the local files to --folder\n"
+            + "Options:\n"
+            + "  --port regex               selects cameras by port, e.g. 'usb:001,.*'\n"
+            + "  --model regex              selects cameras by model, e.g. 'Canon.*'\n"
+            + "  --out template             output file name, default {model}-{port}-{n}.{ext}; placeholders: {model} {port}\n"
+            + "                             {camera} (index) {n} (sequence) {name} (camera file name) {base} {ext} {time}\n"
+            + "  --count n                  number of captures or previews, default 1\n"
+            + "  --interval ms              period of repeated captures, default 0 (as fast as possible)\n"
+            + "  --folder path              camera folder for download, sync and upload, default /\n"
+            + "  --delete                   deletes the files from the camera once downloaded\n";
+
+    private CameraCli() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Invalid command line.
+     */
+    private static final class UsageException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The parsed command line.
+     */
+    private static final class Options {
+
+        String command;
+        final List<String> arguments = new ArrayList<String>();
+        Pattern port = Pattern.compile(".*");
+        Pattern model = Pattern.compile(".*");
+        String template = "{model}-{port}-{n}.{ext}";
+        int count = 1;
+        long intervalMillis = 0;
+        String folder = "/";
+        boolean delete = false;
+    }
+
+    /**
+     * A selected camera.
+     */
+    private static final class Target {
+
+        final int index;
+        final String model;
+        final String port;
+
+        Target(int index, String model, String port) {
+            this.index = index;
+            this.model = model;
+            this.port = port;
+        }
+    }
+
+    /**
+     * An operation on a single camera. Closed after it ran on all cameras.
+     */
+    private static abstract class Task implements Closeable {
+
+        public abstract void run(Camera camera, Target target, Report report) throws Exception;
+
+        public void close() throws IOException {
+        }
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs the tool.
+     * @param args the command line, not null.
+     * @param out receives the JSON lines, not null.
+     * @param err receives the diagnostics, not null.
+     * @return the exit status.
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        final Options options;
+        try {
+            options = parse(args);
+        } catch (UsageException ex) {
+            err.println(ex.getMessage());
+            err.print(USAGE);
+            return 2;
+        }
+        final Report report = new Report(out);
+        try {
+            final Task task = options.command.equals("list") ? null : newTask(options);
+            try {
+                final List<Target> targets = detect(options);
+                if (task == null) {
+                    for (final Target t : targets) {
+                        report.line("camera", t, null);
+                    }
+                    return 0;
+                }
+                if (targets.isEmpty()) {
+                    err.println("No camera matches --port " + options.port + " --model " + options.model);
+                    return 1;
+                }
+                return runAll(targets, task, report, err) ? 0 : 1;
+            } finally {
+                if (task != null) {
+                    CameraUtils.closeQuietly(task);
+                }
+            }
+        } catch (UsageException ex) {
+            err.println(ex.getMessage());
+            err.print(USAGE);
+            return 2;
+        } catch (Exception ex) {
+            err.println("Failed: " + ex);
+            return 1;
+        } catch (LinkageError ex) {
+            err.println("libgphoto2 is not available: " + ex);
+            return 1;
+        }
+    }
+
+    private static Options parse(String[] args) throws UsageException {
+        final Options o = new Options();
+        for (int i = 0; i < args.length; i++) {
+            final String a = args[i];
+            if (a.equals("--delete")) {
+                o.delete = true;
+            } else if (a.startsWith("--")) {
+                if (i + 1 >= args.length) {
+                    throw new UsageException("Missing value of " + a);
+                }
+                final String value = args[++i];
+                try {
+                    if (a.equals("--port")) {
+                        o.port = Pattern.compile(value);
+                    } else if (a.equals("--model")) {
+                        o.model = Pattern.compile(value);
+                    } else if (a.equals("--out")) {
+                        o.template = value;
+                    } else if (a.equals("--count")) {
+                        o.count = Integer.parseInt(value);
+                    } else if (a.equals("--interval")) {
+                        o.intervalMillis = Long.parseLong(value);
+                    } else if (a.equals("--folder")) {
+                        o.folder = value;
+                    } else {
+                        throw new UsageException("Unknown option " + a);
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new UsageException("Invalid value of " + a + ": " + value);
+                } catch (IllegalArgumentException ex) {
+                    throw new UsageException("Invalid value of " + a + ": " + ex.getMessage());
+                }
+            } else if (o.command == null) {
+                o.command = a;
+            } else {
+                o.arguments.add(a);
+            }
+        }
+        if (o.command == null) {
+            throw new UsageException("Missing command");
+        }
+        if (o.count < 1) {
+            throw new UsageException("--count must be 1 or greater");
+        }
+        return o;
+    }
+
+    private static List<Target> detect(Options options) {
+        final List<Target> result = new ArrayList<Target>();
+        final CameraList list = new CameraList();
+        try {
+            for (int i = 0; i < list.getCount(); i++) {
+                final String model = list.getModel(i);
+                final String port = list.getPort(i);
+                if (options.port.matcher(port).matches() && options.model.matcher(model).matches()) {
+                    result.add(new Target(result.size(), model, port));
+                }
+            }
+        } finally {
+            CameraUtils.closeQuietly(list);
+        }
+        return result;
+    }
+
+    private static Task newTask(final Options o) throws UsageException, IOException {
+        if (o.command.equals("capture")) {
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    final long start = System.nanoTime();
+                    for (int n = 1; n <= o.count; n++) {
+                        waitUntil(start + (n - 1) * TimeUnit.MILLISECONDS.toNanos(o.intervalMillis));
+                        final long t = System.nanoTime();
+                        final CameraFile.Path path = camera.capture();
+                        report.op(target, "capture", path.path + "/" + path.filename, 0, System.nanoTime() - t);
+                        download(camera, target, report, path, expand(o.template, target, n, path.filename), o.delete);
+                    }
+                }
+            };
+        }
+        if (o.command.equals("preview")) {
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    final long start = System.nanoTime();
+                    for (int n = 1; n <= o.count; n++) {
+                        waitUntil(start + (n - 1) * TimeUnit.MILLISECONDS.toNanos(o.intervalMillis));
+                        final long t = System.nanoTime();
+                        final CameraFile cf = camera.capturePreview();
+                        try {
+                            final File file = expand(o.template, target, n, "preview.jpg");
+                            cf.save(file.getPath());
+                            report.op(target, "preview", file.getPath(), cf.getSize(), System.nanoTime() - t);
+                        } finally {
+                            CameraUtils.closeQuietly(cf);
+                        }
+                    }
+                }
+            };
+        }
+        if (o.command.equals("download")) {
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    int n = 0;
+                    for (final CameraFile.Path path : listRecursively(camera, o.folder)) {
+                        download(camera, target, report, path, expand(o.template, target, ++n, path.filename), o.delete);
+                    }
+                }
+            };
+        }
+        if (o.command.equals("config")) {
+            if (o.arguments.isEmpty() || !(o.arguments.get(0).equals("get") || o.arguments.get(0).equals("set"))) {
+                throw new UsageException("Expected config get or config set");
+            }
+            final List<String> names = o.arguments.subList(1, o.arguments.size());
+            if (o.arguments.get(0).equals("get")) {
+                return new Task() {
+                    public void run(Camera camera, Target target, Report report) throws Exception {
+                        configGet(camera, target, report, names);
+                    }
+                };
+            }
+            if (names.isEmpty()) {
+                throw new UsageException("Expected name=value");
+            }
+            final Map<String, String> values = new LinkedHashMap<String, String>();
+            for (final String arg : names) {
+                final int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new UsageException("Expected name=value, got " + arg);
+                }
+                values.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    configSet(camera, target, report, values);
+                }
+            };
+        }
+        if (o.command.equals("sync")) {
+            if (o.arguments.size() != 1) {
+                throw new UsageException("Expected sync dir");
+            }
+            // shared by all cameras, so that identical files from different cameras are stored once.
+            final ContentStore store = new ContentStore(new File(o.arguments.get(0)));
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    sync(camera, target, report, store, o);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    store.close();
+                }
+            };
+        }
+        if (o.command.equals("upload")) {
+            if (o.arguments.isEmpty()) {
+                throw new UsageException("Expected upload file...");
+            }
+            final List<File> files = new ArrayList<File>();
+            for (final String arg : o.arguments) {
+                final File f = new File(arg);
+                if (!f.isFile()) {
+                    throw new UsageException("Not a file: " + arg);
+                }
+                files.add(f);
+            }
+            return new Task() {
+                public void run(Camera camera, Target target, Report report) throws Exception {
+                    for (final File f : files) {
+                        final long t = System.nanoTime();
+                        final long bytes = camera.upload(o.folder, f);
+                        report.op(target, "upload", f.getPath(), bytes, System.nanoTime() - t);
+                    }
+                }
+            };
+        }
+        throw new UsageException("Unknown command " + o.command);
+    }
+
+    /**
+     * Runs the task on all cameras in parallel.
+     * @return true if all succeeded.
+     */
+    private static boolean runAll(List<Target> targets, final Task task, final Report report, final PrintStream err) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Target t : targets) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        final long cameraStart = System.nanoTime();
+                        try {
+                            final Camera camera = new Camera(t.model, t.port);
+                            try {
+                                final long initStart = System.nanoTime();
+                                camera.initialize();
+                                report.op(t, "init", null, 0, System.nanoTime() - initStart);
+                                task.run(camera, t, report);
+                            } finally {
+                                CameraUtils.closeQuietly(camera);
+                            }
+                        } catch (Throwable ex) {
+                            ok.set(false);
+                            err.println("Camera " + t.model + " on " + t.port + " failed: " + ex);
+                            report.line("error", t, "\"message\":" + json(String.valueOf(ex)));
+                        }
+                        report.summary(t, System.nanoTime() - cameraStart);
+                    }
+                }));
+            }
+            for (final Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    ok.set(false);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        report.summary(null, System.nanoTime() - start);
+        return ok.get();
+    }
+
+    private static void download(Camera camera, Target target, Report report, CameraFile.Path path, File file, boolean delete) throws IOException {
+        final long t = System.nanoTime();
+        final long bytes = camera.download(path, file);
+        report.op(target, "download", file.getPath(), bytes, System.nanoTime() - t);
+        if (delete) {
+            final long d = System.nanoTime();
+            camera.deleteFile(path);
+            report.op(target, "delete", path.path + "/" + path.filename, 0, System.nanoTime() - d);
+        }
+    }
+
+    private static List<CameraFile.Path> listRecursively(Camera camera, String folder) {
+        final List<CameraFile.Path> result = new ArrayList<CameraFile.Path>();
+        for (final String name : camera.listFiles(folder)) {
+            result.add(new CameraFile.Path(name, folder));
+        }
+        for (final String sub : camera.listFolders(folder)) {
+            result.addAll(listRecursively(camera, folder.endsWith("/") ? folder + sub : folder + "/" + sub));
+        }
+        return result;
+    }
+
+    private static void configGet(Camera camera, Target target, Report report, List<String> names) {
+        final long t = System.nanoTime();
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            final Map<String, Object> values;
+            if (names.isEmpty()) {
+                values = ConfigurationSnapshot.capture(cfg).getValues();
+            } else {
+                values = new LinkedHashMap<String, Object>();
+                for (final String name : names) {
+                    values.put(name, cfg.getValue(name));
+                }
+            }
+            report.op(target, "config-get", null, 0, System.nanoTime() - t);
+            for (final Map.Entry<String, Object> e : values.entrySet()) {
+                report.line("config", target, "\"name\":" + json(e.getKey()) + ",\"value\":" + json(e.getValue()));
+            }
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    private static void configSet(Camera camera, Target target, Report report, Map<String, String> values) {
+        final long t = System.nanoTime();
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            for (final Map.Entry<String, String> e : values.entrySet()) {
+                cfg.setValue(e.getKey(), parseValue(cfg.getType(e.getKey()), e.getValue()));
+            }
+            cfg.apply(values.keySet());
+            report.op(target, "config-set", null, 0, System.nanoTime() - t);
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    private static Object parseValue(CameraWidgets.WidgetTypeEnum type, String value) {
+        switch (type) {
+            case Range:
+                return Float.parseFloat(value);
+            case Toggle:
+                return value.equals("1") || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("on");
+            case Date:
+                return value.equalsIgnoreCase("now") ? new Date() : new Date(Long.parseLong(value) * 1000L);
+            case Button:
+                return null;
+            default:
+                return value;
+        }
+    }
+
+    private static void sync(Camera camera, Target target, Report report, ContentStore store, Options o) throws Exception {
+        final HashingDownloader downloader = new HashingDownloader(camera, store, 2, 4);
+        try {
+            final List<Future<HashingDownloader.Result>> results = new ArrayList<Future<HashingDownloader.Result>>();
+            final List<Long> starts = new ArrayList<Long>();
+            for (final CameraFile.Path path : listRecursively(camera, o.folder)) {
+                starts.add(System.nanoTime());
+                results.add(downloader.download(path));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                final HashingDownloader.Result r = results.get(i).get();
+                report.op(target, r.transferred == 0 ? "sync-skip" : r.duplicate ? "sync-duplicate" : "sync", r.file.getPath(), r.transferred,
+                        System.nanoTime() - starts.get(i), "\"sha256\":" + json(r.getDigestHex()));
+                if (o.delete) {
+                    camera.deleteFile(r.path);
+                }
+            }
+        } finally {
+            downloader.close();
+        }
+    }
+
+    private static void waitUntil(long deadline) throws InterruptedException {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * Expands the output file name template, creating the parent directories.
+     */
+    static File expand(String template, Target target, int n, String name) throws IOException {
+        final int dot = name.lastIndexOf('.');
+        final String base = dot < 0 ? name : name.substring(0, dot);
+        final String ext = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        final String result = template.replace("{model}", sanitize(target.model)).replace("{port}", sanitize(target.port))
+                .replace("{camera}", String.valueOf(target.index)).replace("{n}", String.format("%04d", n)).replace("{name}", name)
+                .replace("{base}", base).replace("{ext}", ext).replace("{time}", new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+        final File file = new File(result);
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        return file;
+    }
+
+    private static String sanitize(String s) {
+        return s.replaceAll("[^A-Za-z0-9._-]+", "_");
+    }
+
+    static String json(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Boolean || value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            return String.valueOf(((Date) value).getTime());
+        }
+        final String s = value.toString();
+        final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Prints the JSON lines and accumulates the per-camera totals. Thread-safe.
+     */
+    private static final class Report {
+
+        private final PrintStream out;
+        private final Map<Target, long[]> totals = new LinkedHashMap<Target, long[]>();
+
+        Report(PrintStream out) {
+            this.out = out;
+        }
+
+        void op(Target target, String op, String file, long bytes, long nanos) {
+            op(target, op, file, bytes, nanos, null);
+        }
+
+        void op(Target target, String op, String file, long bytes, long nanos, String extra) {
+            synchronized (this) {
+                long[] t = totals.get(target);
+                if (t == null) {
+                    t = new long[2];
+                    totals.put(target, t);
+                }
+                t[0]++;
+                t[1] += bytes;
+            }
+            line("op", target, "\"op\":" + json(op) + ",\"file\":" + json(file) + ",\"bytes\":" + bytes + ",\"ms\":" + millis(nanos)
+                    + (extra == null ? "" : "," + extra));
+        }
+
+        /**
+         * Prints the totals of a camera, or of all cameras if the target is null.
+         */
+        void summary(Target target, long nanos) {
+            long ops = 0;
+            long bytes = 0;
+            synchronized (this) {
+                for (final Map.Entry<Target, long[]> e : totals.entrySet()) {
+                    if (target == null || e.getKey() == target) {
+                        ops += e.getValue()[0];
+                        bytes += e.getValue()[1];
+                    }
+                }
+            }
+            final double seconds = nanos / 1e9;
+            line("summary", target, "\"ops\":" + ops + ",\"bytes\":" + bytes + ",\"ms\":" + millis(nanos) + ",\"opsPerSecond\":"
+                    + String.format(Locale.ENGLISH, "%.3f", ops / seconds) + ",\"mbPerSecond\":" + String.format(Locale.ENGLISH, "%.3f", bytes / seconds / 1e6));
+        }
+
+        void line(String type, Target target, String fields) {
+            final StringBuilder sb = new StringBuilder("{\"type\":").append(json(type));
+            if (target != null) {
+                sb.append(",\"camera\":").append(target.index).append(",\"model\":").append(json(target.model)).append(",\"port\":").append(json(target.port));
+            }
+            if (fields != null) {
+                sb.append(',').append(fields);
+            }
+            final String line = sb.append(",\"time\":").append(System.currentTimeMillis()).append('}').toString();
+            synchronized (out) {
+                out.println(line);
+                out.flush();
+            }
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection to a {@link CameraDaemon}. Mirrors the {@link Camera} and {@link CameraWidgets} API for cameras owned by the daemon.
+ * Thread-safe: requests sent over one connection are serialized.
+ */
+public final class CameraClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<String, MappedByteBuffer> previewMaps = new HashMap<String, MappedByteBuffer>();
+
+    /**
+     * Connects to the daemon running on this machine, reading the token from the
+     * {@link CameraDaemon#getDefaultTokenFile(int) default token file}.
+     * @param port the daemon TCP port, see {@link CameraDaemon#DEFAULT_PORT}.
+     * @throws IOException if the daemon is not running or refused the token.
+     */
+    public CameraClient(int port) throws IOException {
+        this(port, CameraDaemon.getDefaultTokenFile(port));
+    }
+
+    /**
+     * Connects to the daemon running on this machine.
+     * @param port the daemon TCP port, see {@link CameraDaemon#DEFAULT_PORT}.
+     * @param tokenFile the token file written by the daemon, not null.
+     * @throws IOException if the daemon is not running, the token file cannot be read or the daemon refused the token.
+     */
+    public CameraClient(int port, File tokenFile) throws IOException {
+        final byte[] token = Files.readAllBytes(CameraUtils.requireNotNull(tokenFile, "tokenFile").toPath());
+        channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+            out.writeShort(token.length);
+            out.write(token);
+            call();
+        } catch (GPhotoException ex) {
+            channel.close();
+            throw new IOException("The daemon refused the connection: " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the request and reads the response status.
+     * @throws GPhotoException if the daemon reports an error.
+     */
+    private void call() throws IOException {
+        out.flush();
+        final byte status = in.readByte();
+        if (status == DaemonProtocol.STATUS_ERROR) {
+            final int result = in.readInt();
+            throw new GPhotoException(in.readUTF(), result);
+        }
+        if (status != DaemonProtocol.STATUS_OK) {
+            throw new IOException("Protocol error: unknown status " + status);
+        }
+    }
+
+    /**
+     * Lists the cameras connected to the daemon machine.
+     * @return maps port to model, in the detection order, never null.
+     */
+    public synchronized Map<String, String> list() throws IOException {
+        out.writeInt(DaemonProtocol.OP_LIST);
+        call();
+        final int count = in.readInt();
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            final String model = in.readUTF();
+            result.put(in.readUTF(), model);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a camera owned by the daemon.
+     * @param port the camera port, as reported by {@link #list()}.
+     * @return the camera, never null.
+     */
+    public RemoteCamera getCamera(String port) {
+        return new RemoteCamera(CameraUtils.requireNotNull(port, "port"));
+    }
+
+    /**
+     * Reads a file sent in chunks, see {@link DaemonProtocol#CHUNK_END}. The whole file is read even when the target fails, so
+     * that the connection stays usable.
+     */
+    private long readFile(WritableByteChannel target) throws IOException {
+        final byte[] buffer = new byte[DaemonProtocol.CHUNK_SIZE];
+        IOException targetFailure = null;
+        long result = 0;
+        while (true) {
+            final int length = in.readInt();
+            if (length == DaemonProtocol.CHUNK_END) {
+                break;
+            }
+            if (length == DaemonProtocol.CHUNK_ERROR) {
+                final int code = in.readInt();
+                throw new GPhotoException(in.readUTF(), code);
+            }
+            if (length < 0 || length > buffer.length) {
+                throw new IOException("Protocol error: invalid chunk length " + length);
+            }
+            in.readFully(buffer, 0, length);
+            if (targetFailure == null) {
+                try {
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                    while (data.hasRemaining()) {
+                        target.write(data);
+                    }
+                } catch (IOException ex) {
+                    targetFailure = ex;
+                }
+            }
+            result += length;
+        }
+        if (targetFailure != null) {
+            throw targetFailure;
+        }
+        return result;
+    }
+
+    private synchronized MappedByteBuffer map(String file) throws IOException {
+        MappedByteBuffer result = previewMaps.get(file);
+        if (result == null) {
+            final RandomAccessFile raf = new RandomAccessFile(new File(file), "r");
+            try {
+                result = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                // the mapping stays valid after the file is closed.
+                raf.close();
+            }
+            previewMaps.put(file, result);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the connection and drops the preview mappings. Previews obtained earlier stay readable until garbage collected.
+     */
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            synchronized (this) {
+                previewMaps.clear();
+            }
+        }
+    }
+
+    /**
+     * A camera owned by the daemon, mirrors {@link Camera}.
+     */
+    public final class RemoteCamera {
+
+        private final String port;
+
+        private RemoteCamera(String port) {
+            this.port = port;
+        }
+
+        public String getPort() {
+            return port;
+        }
+
+        private void begin(int op) throws IOException {
+            out.writeInt(op);
+            out.writeUTF(port);
+        }
+
+        /**
+         * See {@link Camera#capture()}.
+         * @return the path of the captured image on the camera, never null.
+         */
+        public CameraFile.Path capture() throws IOException {
+            synchronized (CameraClient.this) {
+                begin(DaemonProtocol.OP_CAPTURE);
+                call();
+                final String folder = in.readUTF();
+                return new CameraFile.Path(in.readUTF(), folder);
+            }
+        }
+
+        /**
+         * See {@link Camera#download(CameraFile.Path, WritableByteChannel, int)}. The file is streamed in chunks, never held in
+         * memory as a whole.
+         * @param path the path of the file on the camera, not null.
+         * @param target receives the file contents, not null. Not closed.
+         * @return the number of bytes written.
+         * @throws IOException if the connection or the target fails.
+         */
+        public long download(CameraFile.Path path, WritableByteChannel target) throws IOException {
+            CameraUtils.requireNotNull(target, "target");
+            synchronized (CameraClient.this) {
+                begin(DaemonProtocol.OP_DOWNLOAD);
+                out.writeUTF(path.path);
+                out.writeUTF(path.filename);
+                call();
+                return readFile(target);
+            }
+        }
+
+        /**
+         * See {@link Camera#captureImage()}. The image is streamed in chunks, never held in memory as a whole.
+         * @param target receives the captured image, not null. Not closed.
+         * @return the number of bytes written.
+         * @throws IOException if the connection or the target fails.
+         */
+        public long captureImage(WritableByteChannel target) throws IOException {
+            CameraUtils.requireNotNull(target, "target");
+            synchronized (CameraClient.this) {
+                begin(DaemonProtocol.OP_CAPTURE_IMAGE);
+                call();
+                return readFile(target);
+            }
+        }
+
+        /**
+         * See {@link Camera#capturePreview()}. The frame is not copied: the returned buffer is backed by the daemon's shared memory
+         * and is overwritten after {@link CameraDaemon#PREVIEW_SLOTS} newer previews of this camera, taken by any client.
+         * @return the preview, never null.
+         */
+        public Preview capturePreview() throws IOException {
+            final String file;
+            final long seq;
+            final long offset;
+            synchronized (CameraClient.this) {
+                begin(DaemonProtocol.OP_PREVIEW);
+                call();
+                file = in.readUTF();
+                seq = in.readLong();
+                offset = in.readLong();
+            }
+            return new Preview(map(file), seq, (int) offset);
+        }
+
+        /**
+         * See {@link Camera#newConfiguration()}.
+         * @return the configuration, never null.
+         */
+        public RemoteWidgets newConfiguration() throws IOException {
+            final Map<String, Widget> widgets = new LinkedHashMap<String, Widget>();
+            synchronized (CameraClient.this) {
+                begin(DaemonProtocol.OP_CONFIG_NAMES);
+                call();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String name = in.readUTF();
+                    final CameraWidgets.WidgetTypeEnum type = CameraWidgets.WidgetTypeEnum.valueOf(in.readUTF());
+                    final boolean readOnly = in.readBoolean();
+                    widgets.put(name, new Widget(type, readOnly, DaemonProtocol.readValue(in)));
+                }
+            }
+            return new RemoteWidgets(this, widgets);
+        }
+
+        @Override
+        public String toString() {
+            return "RemoteCamera{" + port + '}';
+        }
+    }
+
+    /**
+     * A preview frame in the daemon's shared memory.
+     */
+    public static final class Preview {
+
+        private final ByteBuffer slot;
+        private final long sequence;
+        private final ByteBuffer data;
+
+        private Preview(MappedByteBuffer map, long sequence, int offset) {
+            final ByteBuffer b = map.duplicate();
+            b.position(offset);
+            slot = b.slice();
+            this.sequence = sequence;
+            final int length = slot.getInt(8);
+            final ByteBuffer d = slot.duplicate();
+            d.position(DaemonProtocol.SLOT_HEADER);
+            d.limit(DaemonProtocol.SLOT_HEADER + length);
+            data = d.slice().asReadOnlyBuffer();
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Returns the JPEG data, backed by the shared memory.
+         * @return read-only buffer, never null.
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        /**
+         * Checks whether the frame was overwritten by a newer preview. Check after processing the data to be sure it was not
+         * modified meanwhile.
+         * @return true if the data is still intact.
+         */
+        public boolean isValid() {
+            return slot.getLong(0) == sequence;
+        }
+    }
+
+    private static final class Widget {
+
+        final CameraWidgets.WidgetTypeEnum type;
+        final boolean readOnly;
+        Object value;
+
+        Widget(CameraWidgets.WidgetTypeEnum type, boolean readOnly, Object value) {
+            this.type = type;
+            this.readOnly = readOnly;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Configuration of a camera owned by the daemon, mirrors {@link CameraWidgets}. Like a {@link CameraWidgets}, it is a snapshot:
+     * all widgets are read from the camera once, by {@link RemoteCamera#newConfiguration()}, and served locally afterwards. Values
+     * set by {@link #setValue(String, Object)} are sent by {@link #apply()}.
+     */
+    public final class RemoteWidgets {
+
+        private final RemoteCamera camera;
+        private final Map<String, Widget> widgets;
+        private final List<String> names;
+        private final Map<String, Object> changes = new LinkedHashMap<String, Object>();
+
+        private RemoteWidgets(RemoteCamera camera, Map<String, Widget> widgets) {
+            this.camera = camera;
+            this.widgets = widgets;
+            this.names = Collections.unmodifiableList(new ArrayList<String>(widgets.keySet()));
+        }
+
+        private Widget get(String name) {
+            final Widget result = widgets.get(CameraUtils.requireNotNull(name, "name"));
+            if (result == null) {
+                throw new IllegalArgumentException("Parameter name: invalid value " + name + ": the name is not known");
+            }
+            return result;
+        }
+
+        /**
+         * See {@link CameraWidgets#getNames()}.
+         * @return sorted widget names, never null.
+         */
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * See {@link CameraWidgets#getValue(String)}. Served from the snapshot, updated by a successful {@link #apply()}.
+         * @param name the widget name, not null.
+         * @return the value.
+         */
+        public Object getValue(String name) {
+            return get(name).value;
+        }
+
+        /**
+         * See {@link CameraWidgets#getType(String)}.
+         * @param name the widget name, not null.
+         * @return the type, never null.
+         */
+        public CameraWidgets.WidgetTypeEnum getType(String name) {
+            return get(name).type;
+        }
+
+        /**
+         * See {@link CameraWidgets#isReadOnly(String)}.
+         * @param name the widget name, not null.
+         * @return true if the widget cannot be set.
+         */
+        public boolean isReadOnly(String name) {
+            return get(name).readOnly;
+        }
+
+        /**
+         * See {@link CameraWidgets#setValue(String, Object)}. The value is sent to the camera by {@link #apply()}.
+         * @param name the widget name, not null.
+         * @param value the value.
+         */
+        public void setValue(String name, Object value) {
+            changes.put(CameraUtils.requireNotNull(name, "name"), value);
+        }
+
+        /**
+         * Sends all values set since the last apply to the camera, in a single request. The values are kept when the request
+         * fails.
+         * @throws IllegalArgumentException if a value has a type the protocol cannot send; nothing is sent then.
+         */
+        public void apply() throws IOException {
+            if (changes.isEmpty()) {
+                return;
+            }
+            // encode all values first, so that an invalid value does not leave a partial request on the connection.
+            final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            final DataOutputStream values = new DataOutputStream(encoded);
+            values.writeInt(changes.size());
+            for (final Map.Entry<String, Object> e : changes.entrySet()) {
+                values.writeUTF(e.getKey());
+                DaemonProtocol.writeValue(values, e.getValue());
+            }
+            synchronized (CameraClient.this) {
+                camera.begin(DaemonProtocol.OP_CONFIG_SET);
+                encoded.writeTo(out);
+                call();
+            }
+            for (final Map.Entry<String, Object> e : changes.entrySet()) {
+                final Widget widget = widgets.get(e.getKey());
+                if (widget != null) {
+                    widget.value = e.getValue();
+                }
+            }
+            changes.clear();
+        }
+    }
+}
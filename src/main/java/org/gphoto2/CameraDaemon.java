@@ -0,0 +1,555 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the cameras and serves capture, preview, configuration and download requests to local {@link CameraClient clients}, so
+ * that several processes can share a camera which can only be claimed by a single process.
+ * <p></p>
+ * Clients connect over a TCP socket bound to the loopback interface. Any local user can connect to the loopback interface,
+ * therefore the daemon generates a random token on start and writes it to a file readable by the daemon's user only; a client
+ * must send the token before any request, see {@link #getDefaultTokenFile(int)}. Preview frames are not sent over the socket:
+ * they are written into a ring of slots in a memory-mapped file per camera, which the clients map as well; the socket only
+ * carries the slot position. The preview files are readable by the daemon's user only as well. Cameras are kept in a {@link CameraSessionPool}, which also serializes concurrent requests to the same camera.
+ */
+public final class CameraDaemon implements Closeable {
+
+    private static final Logger log = Logger.getLogger(CameraDaemon.class.getName());
+    /**
+     * The default TCP port.
+     */
+    public static final int DEFAULT_PORT = 9777;
+    /**
+     * Number of preview slots per camera. A client must consume a preview before this many newer previews are taken.
+     */
+    static final int PREVIEW_SLOTS = 4;
+    /**
+     * Maximum size of a single preview frame, including the slot header.
+     */
+    static final int PREVIEW_SLOT_SIZE = 8 * 1024 * 1024;
+    private final ServerSocketChannel server;
+    private final CameraSessionPool pool;
+    private final File previewDir;
+    private final File tokenFile;
+    private final byte[] token;
+    private final ExecutorService clients;
+    private final Map<String, PreviewRing> previews = new HashMap<String, PreviewRing>();
+    private final Thread acceptor;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the daemon, writing the token to the {@link #getDefaultTokenFile(int) default token file}.
+     * @param port the TCP port to listen on, bound to the loopback interface only.
+     * @param previewDir the directory for the memory-mapped preview files, preferably on tmpfs such as <code>/dev/shm</code>. Must
+     * be accessible by the clients.
+     * @throws IOException if the port cannot be bound.
+     */
+    public CameraDaemon(int port, File previewDir) throws IOException {
+        this(port, previewDir, getDefaultTokenFile(port));
+    }
+
+    /**
+     * Starts the daemon.
+     * @param port the TCP port to listen on, bound to the loopback interface only.
+     * @param previewDir the directory for the memory-mapped preview files, preferably on tmpfs such as <code>/dev/shm</code>. Must
+     * be accessible by the clients.
+     * @param tokenFile the file to write the client token to. Replaced if it exists; created readable by the current user only.
+     * @throws IOException if the port cannot be bound or the token file cannot be written.
+     */
+    public CameraDaemon(int port, File previewDir, File tokenFile) throws IOException {
+        this.previewDir = CameraUtils.requireNotNull(previewDir, "previewDir");
+        this.tokenFile = CameraUtils.requireNotNull(tokenFile, "tokenFile");
+        token = newToken();
+        createPrivateFile(tokenFile);
+        Files.write(tokenFile.toPath(), token);
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        } catch (IOException ex) {
+            server.close();
+            deleteTokenFile();
+            throw ex;
+        }
+        pool = new CameraSessionPool();
+        clients = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-daemon-client");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        acceptor = new Thread("gphoto2-daemon-acceptor") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptor.start();
+        log.info("Camera daemon listening on 127.0.0.1:" + getPort());
+    }
+
+    /**
+     * Returns the default directory for the preview files: <code>/dev/shm</code> if present, the temp directory otherwise.
+     * @return the directory, never null.
+     */
+    public static File getDefaultPreviewDir() {
+        final File shm = new File("/dev/shm");
+        return shm.isDirectory() && shm.canWrite() ? shm : new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Returns the default token file for the daemon listening on the given port: <code>.gphoto2-daemon-PORT.token</code> in the
+     * user's home directory.
+     * @param port the daemon TCP port.
+     * @return the file, never null.
+     */
+    public static File getDefaultTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".gphoto2-daemon-" + port + ".token");
+    }
+
+    private static byte[] newToken() {
+        final byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder sb = new StringBuilder(random.length * 2);
+        for (final byte b : random) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * Creates an empty file readable and writable by the current user only. An existing file is deleted first, so that a file
+     * prepared by another user with wider permissions is never reused.
+     * @param file the file to create, not null.
+     */
+    static void createPrivateFile(File file) throws IOException {
+        final Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            // not a POSIX file system.
+            Files.createFile(path);
+            if (!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true))) {
+                throw new IOException("Failed to restrict the permissions of " + file);
+            }
+        }
+    }
+
+    private void deleteTokenFile() {
+        if (!tokenFile.delete()) {
+            log.fine("Failed to delete " + tokenFile);
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public CameraSessionPool getPool() {
+        return pool;
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            final SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException ex) {
+                if (!closed) {
+                    log.log(Level.SEVERE, "Failed to accept a client", ex);
+                }
+                return;
+            }
+            clients.execute(new Runnable() {
+                public void run() {
+                    serve(client);
+                }
+            });
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try {
+            client.socket().setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(client.socket().getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.socket().getOutputStream()));
+            if (!authenticate(in, out)) {
+                return;
+            }
+            while (!closed) {
+                final int op;
+                try {
+                    op = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                handle(op, in, out);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            log.log(Level.FINE, "Client disconnected", ex);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Failed to close the client", ex);
+            }
+        }
+    }
+
+    private boolean authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+        final byte[] received = new byte[in.readUnsignedShort()];
+        in.readFully(received);
+        // constant time comparison, so that the token cannot be guessed byte by byte.
+        if (!MessageDigest.isEqual(token, received)) {
+            log.warning("Rejected a client with an invalid token");
+            writeError(out, new GPhotoException("Invalid daemon token", GPhoto2Native.GP_ERROR));
+            out.flush();
+            return false;
+        }
+        out.writeByte(DaemonProtocol.STATUS_OK);
+        out.flush();
+        return true;
+    }
+
+    private void handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+        if (op == DaemonProtocol.OP_LIST) {
+            try {
+                final CameraList cl = new CameraList();
+                try {
+                    final int count = cl.getCount();
+                    out.writeByte(DaemonProtocol.STATUS_OK);
+                    out.writeInt(count);
+                    for (int i = 0; i < count; i++) {
+                        out.writeUTF(cl.getModel(i));
+                        out.writeUTF(cl.getPort(i));
+                    }
+                } finally {
+                    CameraUtils.closeQuietly(cl);
+                }
+            } catch (GPhotoException ex) {
+                writeError(out, ex);
+            }
+            return;
+        }
+        final String port = in.readUTF();
+        // read all arguments before touching the camera, so that the stream stays in sync when the camera fails.
+        final Object[] args = readArgs(op, in);
+        CameraSessionPool.Lease lease = null;
+        try {
+            lease = pool.lease(port, 30, TimeUnit.SECONDS);
+            handle(op, port, args, lease.getCamera(), out);
+        } catch (GPhotoException ex) {
+            writeError(out, ex);
+        } catch (TimeoutException ex) {
+            writeError(out, new GPhotoException(ex.getMessage(), ex, GPhoto2Native.GP_ERROR_CAMERA_BUSY));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (RuntimeException ex) {
+            writeError(out, new GPhotoException(ex.toString(), ex, GPhoto2Native.GP_ERROR_BAD_PARAMETERS));
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    private static Object[] readArgs(int op, DataInputStream in) throws IOException {
+        switch (op) {
+            case DaemonProtocol.OP_CAPTURE:
+            case DaemonProtocol.OP_CAPTURE_IMAGE:
+            case DaemonProtocol.OP_PREVIEW:
+            case DaemonProtocol.OP_CONFIG_NAMES:
+                return new Object[0];
+            case DaemonProtocol.OP_DOWNLOAD:
+                return new Object[]{in.readUTF(), in.readUTF()};
+            case DaemonProtocol.OP_CONFIG_SET: {
+                final int count = in.readInt();
+                final Object[] result = new Object[count * 2];
+                for (int i = 0; i < count; i++) {
+                    result[i * 2] = in.readUTF();
+                    result[i * 2 + 1] = DaemonProtocol.readValue(in);
+                }
+                return result;
+            }
+            default:
+                throw new IOException("Protocol error: unknown operation " + op);
+        }
+    }
+
+    private void handle(int op, String port, Object[] args, Camera camera, DataOutputStream out) throws IOException {
+        switch (op) {
+            case DaemonProtocol.OP_CAPTURE: {
+                final CameraFile.Path path = camera.capture();
+                out.writeByte(DaemonProtocol.STATUS_OK);
+                out.writeUTF(path.path);
+                out.writeUTF(path.filename);
+                break;
+            }
+            case DaemonProtocol.OP_DOWNLOAD:
+                writeFile(out, camera, new CameraFile.Path((String) args[1], (String) args[0]));
+                break;
+            case DaemonProtocol.OP_CAPTURE_IMAGE:
+                writeFile(out, camera, camera.capture());
+                break;
+            case DaemonProtocol.OP_PREVIEW: {
+                final CameraFile cf = camera.capturePreview();
+                try {
+                    final PreviewRing ring = getPreviewRing(port);
+                    final long seq = ring.write(cf.getByteBuffer());
+                    out.writeByte(DaemonProtocol.STATUS_OK);
+                    out.writeUTF(ring.file.getAbsolutePath());
+                    out.writeLong(seq);
+                    out.writeLong(ring.offsetOf(seq));
+                } finally {
+                    CameraUtils.closeQuietly(cf);
+                }
+                break;
+            }
+            case DaemonProtocol.OP_CONFIG_NAMES: {
+                // the whole configuration from a single tree read; encoded first, so that a failing widget fails the request cleanly.
+                final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                final DataOutputStream widgets = new DataOutputStream(encoded);
+                final CameraWidgets cfg = camera.newConfiguration();
+                try {
+                    final List<String> names = cfg.getNames();
+                    widgets.writeInt(names.size());
+                    for (final String name : names) {
+                        widgets.writeUTF(name);
+                        widgets.writeUTF(cfg.getType(name).name());
+                        widgets.writeBoolean(cfg.isReadOnly(name));
+                        DaemonProtocol.writeValue(widgets, cfg.getValue(name));
+                    }
+                } finally {
+                    CameraUtils.closeQuietly(cfg);
+                }
+                out.writeByte(DaemonProtocol.STATUS_OK);
+                encoded.writeTo(out);
+                break;
+            }
+            case DaemonProtocol.OP_CONFIG_SET: {
+                final CameraWidgets cfg = camera.newConfiguration();
+                try {
+                    final List<String> names = new ArrayList<String>();
+                    for (int i = 0; i < args.length; i += 2) {
+                        cfg.setValue((String) args[i], args[i + 1]);
+                        names.add((String) args[i]);
+                    }
+                    cfg.apply(names);
+                    out.writeByte(DaemonProtocol.STATUS_OK);
+                } finally {
+                    CameraUtils.closeQuietly(cfg);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Protocol error: unknown operation " + op);
+        }
+    }
+
+    /**
+     * Streams a file from the camera to the client in chunks, see {@link DaemonProtocol#CHUNK_END}. The status is sent before the
+     * download starts, therefore camera failures are reported in the chunk stream.
+     */
+    private static void writeFile(final DataOutputStream out, Camera camera, CameraFile.Path path) throws IOException {
+        out.writeByte(DaemonProtocol.STATUS_OK);
+        final WritableByteChannel chunks = new WritableByteChannel() {
+            private final byte[] buffer = new byte[DaemonProtocol.CHUNK_SIZE];
+
+            public int write(ByteBuffer src) throws IOException {
+                final int result = src.remaining();
+                while (src.hasRemaining()) {
+                    final int n = Math.min(buffer.length, src.remaining());
+                    src.get(buffer, 0, n);
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                }
+                return result;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        try {
+            camera.download(path, chunks, DaemonProtocol.DOWNLOAD_CHUNK_SIZE);
+        } catch (GPhotoException ex) {
+            out.writeInt(DaemonProtocol.CHUNK_ERROR);
+            writeErrorBody(out, ex);
+            return;
+        } catch (RuntimeException ex) {
+            out.writeInt(DaemonProtocol.CHUNK_ERROR);
+            writeErrorBody(out, new GPhotoException(ex.toString(), ex, GPhoto2Native.GP_ERROR_BAD_PARAMETERS));
+            return;
+        }
+        out.writeInt(DaemonProtocol.CHUNK_END);
+    }
+
+    private static void writeError(DataOutputStream out, GPhotoException ex) throws IOException {
+        out.writeByte(DaemonProtocol.STATUS_ERROR);
+        writeErrorBody(out, ex);
+    }
+
+    private static void writeErrorBody(DataOutputStream out, GPhotoException ex) throws IOException {
+        out.writeInt(ex.result);
+        out.writeUTF(String.valueOf(ex.getMessage()));
+    }
+
+    private synchronized PreviewRing getPreviewRing(String port) throws IOException {
+        PreviewRing ring = previews.get(port);
+        if (ring == null) {
+            ring = new PreviewRing(new File(previewDir, "gphoto2-preview-" + port.replaceAll("[^A-Za-z0-9]", "_") + ".shm"));
+            previews.put(port, ring);
+        }
+        return ring;
+    }
+
+    /**
+     * Preview frames of a single camera, in a memory-mapped file. Each slot starts with the sequence number and the length of the
+     * frame; clients check the sequence number to detect that the slot was overwritten meanwhile. Guarded by the camera lease.
+     */
+    private static final class PreviewRing {
+
+        final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private long next = 1;
+
+        PreviewRing(File file) throws IOException {
+            this.file = file;
+            createPrivateFile(file);
+            raf = new RandomAccessFile(file, "rw");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) PREVIEW_SLOTS * PREVIEW_SLOT_SIZE);
+        }
+
+        long offsetOf(long seq) {
+            return (seq % PREVIEW_SLOTS) * PREVIEW_SLOT_SIZE;
+        }
+
+        long write(ByteBuffer frame) {
+            if (frame.remaining() > PREVIEW_SLOT_SIZE - DaemonProtocol.SLOT_HEADER) {
+                throw new GPhotoException("Preview of " + frame.remaining() + " bytes does not fit the preview slot", GPhoto2Native.GP_ERROR_FIXED_LIMIT_EXCEEDED);
+            }
+            final long seq = next++;
+            final int offset = (int) offsetOf(seq);
+            // invalidate the slot first, so that a client still reading the previous frame notices.
+            buffer.putLong(offset, 0);
+            final ByteBuffer slot = buffer.duplicate();
+            slot.position(offset + DaemonProtocol.SLOT_HEADER);
+            final int length = frame.remaining();
+            slot.put(frame);
+            buffer.putInt(offset + 8, length);
+            buffer.putLong(offset, seq);
+            return seq;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                log.log(Level.FINE, "Failed to close " + file, ex);
+            }
+            if (!file.delete()) {
+                log.fine("Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients, closes all cameras and removes the preview files.
+     */
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        clients.shutdownNow();
+        pool.close();
+        synchronized (this) {
+            for (final PreviewRing ring : previews.values()) {
+                ring.close();
+            }
+            previews.clear();
+        }
+        deleteTokenFile();
+    }
+
+    /**
+     * Runs the daemon until the JVM is terminated.
+     * @param args optional TCP port, defaults to {@link #DEFAULT_PORT}.
+     */
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final CameraDaemon daemon = new CameraDaemon(port, getDefaultPreviewDir());
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                CameraUtils.closeQuietly(daemon);
+            }
+        });
+        daemon.acceptor.join();
+    }
+}
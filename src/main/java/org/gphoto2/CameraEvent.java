@@ -0,0 +1,100 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+
+/**
+ * An event reported by the camera, see {@link Camera#waitForEvent(int)}. Immutable.
+ */
+public final class CameraEvent {
+
+    public static enum Type {
+
+        Unknown(GPhoto2Native.GP_EVENT_UNKNOWN),
+        Timeout(GPhoto2Native.GP_EVENT_TIMEOUT),
+        FileAdded(GPhoto2Native.GP_EVENT_FILE_ADDED),
+        FolderAdded(GPhoto2Native.GP_EVENT_FOLDER_ADDED),
+        CaptureComplete(GPhoto2Native.GP_EVENT_CAPTURE_COMPLETE);
+        public final int cval;
+
+        private Type(int cval) {
+            this.cval = cval;
+        }
+
+        public static Type fromCVal(int cval) {
+            for (Type e : Type.values()) {
+                if (e.cval == cval) {
+                    return e;
+                }
+            }
+            return Unknown;
+        }
+    }
+    public final Type type;
+    /**
+     * The added file or folder for {@link Type#FileAdded} and {@link Type#FolderAdded}, null otherwise.
+     */
+    public final CameraFile.Path path;
+    /**
+     * The event description for {@link Type#Unknown}, may be null.
+     */
+    public final String message;
+
+    CameraEvent(Type type, CameraFile.Path path, String message) {
+        this.type = type;
+        this.path = path;
+        this.message = message;
+    }
+
+    /**
+     * Converts the native event and frees the event data.
+     * @param cval the GP_EVENT_* constant.
+     * @param data the event data allocated by libgphoto2, may be null.
+     * @return the event, never null.
+     */
+    static CameraEvent fromNative(int cval, Pointer data) {
+        final Type type = Type.fromCVal(cval);
+        if (data == null) {
+            return new CameraEvent(type, null, null);
+        }
+        try {
+            switch (type) {
+                case FileAdded:
+                case FolderAdded: {
+                    final GPhoto2Native.CameraFilePath p = new GPhoto2Native.CameraFilePath(data);
+                    return new CameraEvent(type, new CameraFile.Path(p), null);
+                }
+                case Unknown:
+                    return new CameraEvent(type, null, data.getString(0));
+                default:
+                    return new CameraEvent(type, null, null);
+            }
+        } finally {
+            Native.free(Pointer.nativeValue(data));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CameraEvent{" + type + (path == null ? "" : " " + path) + (message == null ? "" : " " + message) + '}';
+    }
+}
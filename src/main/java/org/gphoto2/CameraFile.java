@@ -18,9 +18,21 @@
  */
 package org.gphoto2;
 
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
 import com.sun.jna.ptr.PointerByReference;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.gphoto2.jna.GPhoto2Native;
 
 /**
@@ -30,6 +42,14 @@ import org.gphoto2.jna.GPhoto2Native;
 public class CameraFile implements Closeable {
 
     final Pointer cf;
+    private final NativeResources.Handle handle;
+    /**
+     * The reference count. The creator holds the first reference, released by {@link #close()}. The native reference count is
+     * not touched: it is not atomic, and concurrent <code>gp_file_ref</code>/<code>gp_file_unref</code> calls would lose updates.
+     * The single native reference is released once this count drops to zero.
+     */
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean ownerReleased = new AtomicBoolean();
 
     /**
      * Creates a new file link. The file is not yet linked to any particular camera file - the link is performed later on, by invoking gphoto functions.
@@ -38,17 +58,33 @@ public class CameraFile implements Closeable {
 	final PointerByReference p = new PointerByReference();
 	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_new(p), "gp_file_new");
 	cf = p.getValue();
+	handle = NativeResources.register(this, cf, NativeResources.Kind.CameraFile);
     }
 
     public void clean() {
+	checkNotClosed();
         CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_clean(cf), "gp_file_clean");
+	handle.setBytes(0);
+    }
+
+    public boolean isClosed() {
+	return handle.isFreed();
+    }
+
+    private void checkNotClosed() {
+	if (isClosed()) {
+	    throw new IllegalStateException("Invalid state: closed");
+	}
     }
-    
+
     /**
-     * Closes this file link and frees allocated resources.
+     * Releases the reference held by the creator of this file. The native memory is freed when no references added by
+     * {@link #ref()} remain, otherwise by the last {@link #unref()}. Further invocations to this method do nothing.
      */
     public void close() {
-	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_free(cf), "gp_file_free");
+	if (ownerReleased.compareAndSet(false, true) && !handle.isFreed()) {
+	    unref();
+	}
     }
 
     /**
@@ -56,21 +92,239 @@ public class CameraFile implements Closeable {
      * @param filename OS-dependent path on the local file system.
      */
     public void save(String filename) {
+	checkNotClosed();
 	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_save(cf, filename), "gp_file_save");
     }
 
+    /**
+     * Saves the file to the local file system, passing the data through given digest as it is written. Computes a checksum without
+     * reading the file back from the disk.
+     * @param target the local file, not null. Overwritten.
+     * @param digest updated with the file data, not null, e.g. SHA-256. Not reset.
+     * @return the number of bytes written.
+     * @throws IOException if the file cannot be written.
+     */
+    public long save(File target, MessageDigest digest) throws IOException {
+	CameraUtils.requireNotNull(digest, "digest");
+	final ByteBuffer data = getByteBuffer();
+	final long result = data.remaining();
+	final FileOutputStream out = new FileOutputStream(target);
+	try {
+	    final DigestChannel channel = new DigestChannel(out.getChannel(), digest);
+	    while (data.hasRemaining()) {
+		channel.write(data);
+	    }
+	} finally {
+	    out.close();
+	}
+	return result;
+    }
+
+    /**
+     * Creates a file holding a copy of given data, e.g. to {@link Camera#upload(String, String, CameraFile) upload} it.
+     * @param data the data, not null. Its position is not changed.
+     * @return the file, never null. Must be closed afterwards.
+     */
+    public static CameraFile fromData(ByteBuffer data) {
+	final int size = data.remaining();
+	final long address = malloc(size);
+	try {
+	    new Pointer(address).getByteBuffer(0, size).put(data.duplicate());
+	} catch (RuntimeException ex) {
+	    Native.free(address);
+	    throw ex;
+	}
+	return adopt(address, size);
+    }
+
+    /**
+     * Creates a file holding the contents of a local file. The data is read straight into the native memory, without a copy on
+     * the Java heap.
+     * @param source the local file, not null.
+     * @return the file, never null. Must be closed afterwards.
+     * @throws IOException if the local file cannot be read.
+     */
+    public static CameraFile fromFile(File source) throws IOException {
+	final FileInputStream in = new FileInputStream(source);
+	try {
+	    final FileChannel channel = in.getChannel();
+	    final long length = channel.size();
+	    if (length > Integer.MAX_VALUE) {
+		throw new IOException("File " + source + " is too large: " + length + " bytes");
+	    }
+	    final int size = (int) length;
+	    final long address = malloc(size);
+	    boolean returnedOk = false;
+	    try {
+		final ByteBuffer target = new Pointer(address).getByteBuffer(0, size);
+		while (target.hasRemaining()) {
+		    if (channel.read(target) < 0) {
+			throw new IOException("Unexpected end of " + source + " after " + target.position() + " of " + size + " bytes");
+		    }
+		}
+		returnedOk = true;
+	    } finally {
+		if (!returnedOk) {
+		    Native.free(address);
+		}
+	    }
+	    return adopt(address, size);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Allocates the file data. libgphoto2 frees the data of a file by free(), so it must come from malloc.
+     */
+    private static long malloc(int size) {
+	final long address = Native.malloc(Math.max(1, size));
+	if (address == 0) {
+	    throw new OutOfMemoryError("Failed to allocate " + size + " bytes of native memory");
+	}
+	return address;
+    }
+
+    /**
+     * Creates a file which takes the ownership of given malloc-ed data. The data is freed if the file cannot be created.
+     */
+    private static CameraFile adopt(long address, int size) {
+	CameraFile result = null;
+	boolean owned = false;
+	try {
+	    result = new CameraFile();
+	    CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_set_data_and_size(result.cf, new Pointer(address), new NativeLong(size)),
+		    "gp_file_set_data_and_size");
+	    owned = true;
+	    result.handle.setBytes(size);
+	    return result;
+	} finally {
+	    if (!owned) {
+		Native.free(address);
+		if (result != null) {
+		    result.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns the size of the file data held in the native memory.
+     * @return the size in bytes, 0 or greater.
+     */
+    public long getSize() {
+	checkNotClosed();
+	return handle.getBytes();
+    }
+
+    /**
+     * Returns the file data without copying it. The buffer is backed by the native memory and is only valid until the file is
+     * closed or cleaned.
+     * @return read-only direct buffer with the file data, never null, may be empty.
+     */
+    public ByteBuffer getByteBuffer() {
+	checkNotClosed();
+	final PointerByReference data = new PointerByReference();
+	final NativeLongByReference size = new NativeLongByReference();
+	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_get_data_and_size(cf, data, size), "gp_file_get_data_and_size");
+	final long length = size.getValue().longValue();
+	if (length == 0 || data.getValue() == null) {
+	    return ByteBuffer.allocate(0).asReadOnlyBuffer();
+	}
+	return data.getValue().getByteBuffer(0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the file data into a new array.
+     * @return the file data, never null, may be empty.
+     */
+    public byte[] getBytes() {
+	final ByteBuffer buf = getByteBuffer();
+	final byte[] result = new byte[buf.remaining()];
+	buf.get(result);
+	return result;
+    }
+
+    /**
+     * Re-reads the size of the native data. Must be called after libgphoto2 fills the file with data.
+     */
+    void updateSize() {
+	updateSize(new PointerByReference(), new NativeLongByReference());
+    }
+
+    /**
+     * Re-reads the size of the native data, using given temporary references.
+     */
+    void updateSize(PointerByReference data, NativeLongByReference size) {
+	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_get_data_and_size(cf, data, size), "gp_file_get_data_and_size");
+	handle.setBytes(size.getValue().longValue());
+    }
+
+    /**
+     * Adds a reference. The file stays valid until the reference is released by {@link #unref()}, even when closed meanwhile.
+     * Thread-safe.
+     */
     void ref() {
-	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_ref(cf), "gp_file_ref");
+	for (;;) {
+	    final int current = refs.get();
+	    if (current <= 0) {
+		throw new IllegalStateException("Invalid state: closed");
+	    }
+	    if (refs.compareAndSet(current, current + 1)) {
+		return;
+	    }
+	}
     }
 
+    /**
+     * Releases a reference. The file is freed, by a single <code>gp_file_unref</code>, when the last reference is released.
+     * Thread-safe.
+     */
     void unref() {
-	CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_unref(cf), "gp_file_unref");
+	final int current = refs.decrementAndGet();
+	if (current < 0) {
+	    throw new IllegalStateException("Invalid state: released too many times");
+	}
+	// gp_file_unref frees the file, only the handle remains to be updated.
+	if (current == 0 && handle.markFreed()) {
+	    CameraUtils.check(GPhoto2Native.INSTANCE.gp_file_unref(cf), "gp_file_unref");
+	}
+    }
+
+    /**
+     * Metadata of a camera file, read without downloading the file. See {@link Camera#getFileInfo(Path)}.
+     */
+    public static final class Info {
+
+	/**
+	 * The file size in bytes, -1 if not reported by the camera.
+	 */
+	public final long size;
+	/**
+	 * The modification time in milliseconds since the epoch, -1 if not reported by the camera.
+	 */
+	public final long modified;
+	/**
+	 * The MIME type, e.g. image/jpeg, null if not reported by the camera.
+	 */
+	public final String mimeType;
+
+	Info(GPhoto2Native.CameraFileInfo info) {
+	    size = (info.file_fields & GPhoto2Native.GP_FILE_INFO_SIZE) != 0 ? info.file_size : -1;
+	    modified = (info.file_fields & GPhoto2Native.GP_FILE_INFO_MTIME) != 0 && info.file_mtime != null ? info.file_mtime.longValue() * 1000 : -1;
+	    mimeType = (info.file_fields & GPhoto2Native.GP_FILE_INFO_TYPE) != 0 ? CameraUtils.toString(info.file_type) : null;
+	}
+
+	@Override
+	public String toString() {
+	    return "Info{size=" + size + ", modified=" + modified + ", mimeType=" + mimeType + '}';
+	}
     }
 
     /**
      * Represents a path of a camera file.
      */
-    static class Path {
+    public static class Path {
 
 	public final String filename;
 	public final String path;
@@ -95,16 +349,35 @@ public class CameraFile implements Closeable {
 	    return "Path{" + path + " " + filename + '}';
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Path)) {
+		return false;
+	    }
+	    final Path other = (Path) obj;
+	    return filename.equals(other.filename) && path.equals(other.path);
+	}
+
+	@Override
+	public int hashCode() {
+	    return filename.hashCode() * 31 + path.hashCode();
+	}
+
 	/**
 	 * Returns a referenced camera file.
-	 * @param cam the camera handle.
+	 * @param cam the camera.
 	 * @return camera file.
 	 */
-	CameraFile newFile(Pointer cam) {
+	CameraFile newFile(final Camera cam) {
 	    boolean returnedOk = false;
 	    final CameraFile cf = new CameraFile();
 	    try {
-		CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_file_get(cam, path, filename, GPhoto2Native.GP_FILE_TYPE_NORMAL, cf.cf, CameraList.CONTEXT), "gp_camera_file_get");
+		cam.invoke("gp_camera_file_get", new Camera.NativeCall() {
+		    public int invoke() {
+			return GPhoto2Native.INSTANCE.gp_camera_file_get(cam.camera, path, filename, GPhoto2Native.GP_FILE_TYPE_NORMAL, cf.cf, CameraList.CONTEXT);
+		    }
+		});
+		cf.updateSize();
 		returnedOk = true;
 		return cf;
 	    } finally {
@@ -37,15 +37,45 @@ public class CameraList implements Closeable {
 	if (CONTEXT == null) {
 	    throw new RuntimeException("Failed to get context");
 	}
+	OperationContext.install(CONTEXT);
     }
+    /**
+     * Matches USB ports, for example usb:002,019. This is the default filter.
+     */
+    public static final Pattern USB_PORTS = Pattern.compile("usb:\\d+,\\d+");
+    /**
+     * Matches all ports, including <code>disk:</code> ports of mounted mass-storage devices, serial and PTP/IP ports.
+     */
+    public static final Pattern ALL_PORTS = Pattern.compile(".*");
     private final Pointer list;
+    private final NativeResources.Handle handle;
+    private final Pattern portFilter;
 
     /**
-     * Enumerates connected cameras.
+     * Enumerates cameras connected to USB ports.
      */
     public CameraList() {
+	this(USB_PORTS);
+    }
+
+    /**
+     * Enumerates detected cameras connected to matching ports.
+     * @param portFilter only cameras whose port fully matches this pattern are listed, not null. See {@link #USB_PORTS} and
+     * {@link #ALL_PORTS}.
+     */
+    public CameraList(Pattern portFilter) {
+	this.portFilter = CameraUtils.requireNotNull(portFilter, "portFilter");
 	list = newList();
-	populateList();
+	handle = NativeResources.register(this, list, NativeResources.Kind.CameraList);
+	boolean returnedOk = false;
+	try {
+	    populateList();
+	    returnedOk = true;
+	} finally {
+	    if (!returnedOk) {
+		CameraUtils.closeQuietly(this);
+	    }
+	}
     }
 
     private static Pointer newList() {
@@ -53,7 +83,6 @@ public class CameraList implements Closeable {
 	CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_new(ref), "gp_list_new");
 	return ref.getValue();
     }
-    private static final Pattern USB_MATCH = Pattern.compile("usb:\\d+,\\d+");
 
     private void populateList() {
 	final Pointer tempList = newList();
@@ -77,7 +106,7 @@ public class CameraList implements Closeable {
 			final PointerByReference pvalue = new PointerByReference();
 			CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_get_value(tempList, i, pvalue), "gp_list_get_value");
 			final String path = pvalue.getValue().getString(0);
-			if (USB_MATCH.matcher(path).matches()) {
+			if (portFilter.matcher(path).matches()) {
 			    CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_append(list, model, path), "gp_list_append");
 			}
 		    }
@@ -133,8 +162,11 @@ public class CameraList implements Closeable {
 	return sb.toString();
     }
 
+    /**
+     * Frees allocated resources. Further invocations to this method do nothing.
+     */
     public void close() {
-	CameraUtils.check(GPhoto2Native.INSTANCE.gp_list_free(list), "gp_list_free");
+	handle.close();
     }
     
     public Pointer getPortInfo(int index) {
@@ -0,0 +1,406 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps initialized {@link Camera cameras}, keyed by port, and leases them to callers with exclusive access. Thread-safe.
+ * <p></p>
+ * Idle cameras are periodically checked with a {@link HealthProbe}; cameras which fail the probe, which were
+ * {@link Camera#deinitialize() de-initialized} by the caller or which failed with an USB/I/O error are transparently re-initialized.
+ * Cameras which were not leased for a configured time are closed.
+ */
+public final class CameraSessionPool implements Closeable {
+
+    private static final Logger log = Logger.getLogger(CameraSessionPool.class.getName());
+
+    /**
+     * Checks whether an idle camera still responds.
+     */
+    public static interface HealthProbe {
+
+        /**
+         * Checks the camera. Invoked with exclusive access to the camera.
+         * @param camera the initialized camera, not null.
+         * @return true if the camera is healthy, false if it should be re-initialized.
+         */
+        boolean isHealthy(Camera camera);
+    }
+    /**
+     * Reads the camera configuration. Works with every camera, but is not free: expect tens to hundreds of milliseconds.
+     */
+    public static final HealthProbe CONFIGURATION_PROBE = new HealthProbe() {
+        public boolean isHealthy(Camera camera) {
+            try {
+                camera.newConfiguration().close();
+                return true;
+            } catch (GPhotoException ex) {
+                log.log(Level.FINE, "Camera failed the health probe", ex);
+                return false;
+            }
+        }
+    };
+    /**
+     * Reads the storage information, a single small request to the camera. Falls back to {@link #CONFIGURATION_PROBE} for
+     * cameras which do not report their storages.
+     */
+    public static final HealthProbe STORAGE_PROBE = new HealthProbe() {
+        public boolean isHealthy(Camera camera) {
+            try {
+                camera.getStorageInfo();
+                return true;
+            } catch (GPhotoException ex) {
+                if (ex.result == GPhoto2Native.GP_ERROR_NOT_SUPPORTED) {
+                    return CONFIGURATION_PROBE.isHealthy(camera);
+                }
+                log.log(Level.FINE, "Camera failed the health probe", ex);
+                return false;
+            }
+        }
+    };
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final ScheduledExecutorService executor;
+    private final long idleTimeoutNanos;
+    private final HealthProbe probe;
+    private final LatencyStats leaseWaitStats = new LatencyStats("lease-wait");
+    private final LatencyStats initStats = new LatencyStats("camera-init");
+    private boolean closed = false;
+
+    /**
+     * Creates the pool.
+     * @param probe checks idle cameras, not null.
+     * @param probeIntervalMillis how often the idle cameras are checked, in milliseconds.
+     * @param idleTimeoutMillis cameras not leased for this time are closed, in milliseconds.
+     */
+    public CameraSessionPool(HealthProbe probe, long probeIntervalMillis, long idleTimeoutMillis) {
+        this.probe = CameraUtils.requireNotNull(probe, "probe");
+        if (probeIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Parameter probeIntervalMillis: invalid value " + probeIntervalMillis + ": must be positive");
+        }
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-session-pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the pool which probes cameras every 30 seconds with {@link #STORAGE_PROBE} and closes cameras idle for 10 minutes.
+     */
+    public CameraSessionPool() {
+        this(STORAGE_PROBE, 30000, 600000);
+    }
+
+    /**
+     * Time spent by callers waiting in {@link #lease(String, long, TimeUnit)}, including camera initialization.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getLeaseWaitStats() {
+        return leaseWaitStats;
+    }
+
+    /**
+     * Time spent in camera initialization, including re-initializations.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getInitStats() {
+        return initStats;
+    }
+
+    /**
+     * Leases an initialized camera connected to given port. The camera is reserved for the caller until the lease is closed.
+     * @param port the port, as reported by {@link CameraList#getPort(int)}, not null.
+     * @param timeout maximum time to wait for the camera to become available.
+     * @param unit the timeout unit.
+     * @return the lease, never null. Must be closed afterwards.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws TimeoutException if the camera is still leased by someone else after the timeout.
+     * @throws GPhotoException if the camera fails to initialize.
+     */
+    public Lease lease(String port, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        CameraUtils.requireNotNull(port, "port");
+        final long start = System.nanoTime();
+        final long deadline = start + unit.toNanos(timeout);
+        while (true) {
+            final Session session = getSession(port);
+            if (!session.lock.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException("Camera " + port + " is still leased after " + timeout + " " + unit);
+            }
+            if (session.evicted) {
+                // evicted while we were waiting, try again with a fresh session.
+                session.lock.release();
+                continue;
+            }
+            boolean returnedOk = false;
+            try {
+                session.ensureInitialized();
+                returnedOk = true;
+            } finally {
+                if (!returnedOk) {
+                    session.lock.release();
+                }
+            }
+            leaseWaitStats.recordSince(start);
+            return new Lease(session);
+        }
+    }
+
+    private synchronized Session getSession(String port) {
+        if (closed) {
+            throw new IllegalStateException("Invalid state: closed");
+        }
+        Session session = sessions.get(port);
+        if (session == null) {
+            session = new Session(port);
+            sessions.put(port, session);
+        }
+        return session;
+    }
+
+    private synchronized List<Session> getSessions() {
+        return new ArrayList<Session>(sessions.values());
+    }
+
+    private synchronized void remove(Session session) {
+        if (sessions.get(session.port) == session) {
+            sessions.remove(session.port);
+        }
+    }
+
+    private void maintain() {
+        for (final Session session : getSessions()) {
+            if (!session.lock.tryAcquire()) {
+                // leased, thus obviously alive.
+                continue;
+            }
+            try {
+                if (session.evicted) {
+                    continue;
+                }
+                if (System.nanoTime() - session.lastUsed > idleTimeoutNanos) {
+                    log.fine("Evicting idle camera " + session.port);
+                    session.evict();
+                    remove(session);
+                } else if (session.camera != null && !session.broken && session.camera.isInitialized() && !probe.isHealthy(session.camera)) {
+                    log.info("Camera " + session.port + " failed the health probe, re-initializing");
+                    session.broken = true;
+                    session.ensureInitialized();
+                }
+            } catch (Throwable t) {
+                log.log(Level.WARNING, "Failed to maintain camera " + session.port, t);
+            } finally {
+                session.lock.release();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle cameras and stops the maintenance thread. Cameras currently leased are closed when their lease is closed.
+     */
+    public void close() {
+        final List<Session> all;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            all = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+        executor.shutdown();
+        for (final Session session : all) {
+            // set the flag before trying the lock: if the lock is taken, its holder sees the flag at the latest right after releasing
+            // the lock, see Session.release(). Evicting twice does no harm.
+            session.evictOnRelease = true;
+            if (session.lock.tryAcquire()) {
+                try {
+                    session.evict();
+                } finally {
+                    session.lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether given error indicates that the USB connection to the camera is broken.
+     * @param result the libgphoto2 error code.
+     * @return true if the camera should be re-opened.
+     */
+    static boolean isConnectionError(int result) {
+        switch (result) {
+            case GPhoto2Native.GP_ERROR_IO:
+            case GPhoto2Native.GP_ERROR_TIMEOUT:
+            case GPhoto2Native.GP_ERROR_IO_INIT:
+            case GPhoto2Native.GP_ERROR_IO_READ:
+            case GPhoto2Native.GP_ERROR_IO_WRITE:
+            case GPhoto2Native.GP_ERROR_IO_UPDATE:
+            case GPhoto2Native.GP_ERROR_IO_USB_CLEAR_HALT:
+            case GPhoto2Native.GP_ERROR_IO_USB_FIND:
+            case GPhoto2Native.GP_ERROR_IO_USB_CLAIM:
+            case GPhoto2Native.GP_ERROR_IO_LOCK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Camera connected to a single port. All fields except for the lock are guarded by the lock.
+     */
+    private final class Session {
+
+        final String port;
+        final Semaphore lock = new Semaphore(1, true);
+        Camera camera;
+        boolean broken = false;
+        volatile boolean evicted = false;
+        volatile boolean evictOnRelease = false;
+        long lastUsed = System.nanoTime();
+
+        Session(String port) {
+            this.port = port;
+        }
+
+        void ensureInitialized() {
+            if (camera != null && (broken || camera.isClosed())) {
+                CameraUtils.closeQuietly(camera);
+                camera = null;
+            }
+            broken = false;
+            if (camera == null) {
+                final long start = System.nanoTime();
+                final Camera c = new Camera(port);
+                boolean returnedOk = false;
+                try {
+                    c.initialize();
+                    returnedOk = true;
+                } finally {
+                    if (!returnedOk) {
+                        CameraUtils.closeQuietly(c);
+                    }
+                }
+                camera = c;
+                initStats.recordSince(start);
+            } else if (!camera.isInitialized()) {
+                final long start = System.nanoTime();
+                camera.initialize();
+                initStats.recordSince(start);
+            }
+        }
+
+        void release(boolean markBroken) {
+            lastUsed = System.nanoTime();
+            if (markBroken || (camera != null && !camera.isClosed() && camera.getCircuitBreaker().getConsecutiveFailures() > 0
+                    && isConnectionError(camera.getCircuitBreaker().getLastError()))) {
+                broken = true;
+            }
+            if (evictOnRelease) {
+                evict();
+            }
+            lock.release();
+            // the pool may have been closed after the check above but before the lock was released; close() then found the lock
+            // taken and relies on us.
+            if (evictOnRelease && !evicted && lock.tryAcquire()) {
+                try {
+                    evict();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+
+        void evict() {
+            evicted = true;
+            if (camera != null) {
+                CameraUtils.closeQuietly(camera);
+                camera = null;
+            }
+        }
+    }
+
+    /**
+     * Exclusive access to a pooled camera. Closing the lease returns the camera to the pool; the camera itself must not be closed.
+     */
+    public final class Lease implements Closeable {
+
+        private final Session session;
+        private boolean released = false;
+        private boolean broken = false;
+
+        private Lease(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Returns the leased camera.
+         * @return initialized camera, never null.
+         */
+        public Camera getCamera() {
+            if (released) {
+                throw new IllegalStateException("Invalid state: closed");
+            }
+            return session.camera;
+        }
+
+        public String getPort() {
+            return session.port;
+        }
+
+        /**
+         * Marks the camera as broken: it will be re-initialized before it is leased again.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        /**
+         * Returns the camera to the pool. Further invocations do nothing.
+         */
+        public void close() {
+            if (!released) {
+                released = true;
+                session.release(broken);
+            }
+        }
+    }
+}
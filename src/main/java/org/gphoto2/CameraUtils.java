@@ -21,7 +21,6 @@ package org.gphoto2;
 import org.gphoto2.jna.GPhoto2Native;
 
 import java.io.Closeable;
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
@@ -47,15 +46,21 @@ public class CameraUtils {
 
     public static int check(int result, String methodName) {
         if (result < GPhoto2Native.GP_OK) {
-            String constantName = ERROR_CONSTANTS.get(result);
-            if (constantName == null) {
-                constantName = "unknown error";
-            }
-            throw new GPhotoException(methodName + " failed with " + constantName + " #" + result + ": " + GPhoto2Native.INSTANCE.gp_result_as_string(result), result);
+            throw new GPhotoException(methodName + " failed with " + getErrorName(result) + " #" + result + ": " + GPhoto2Native.INSTANCE.gp_result_as_string(result), result);
         }
         return result;
     }
 
+    /**
+     * Returns the name of the libgphoto2 result constant.
+     * @param result the result code.
+     * @return the constant name, for example GP_ERROR_CAMERA_BUSY, never null.
+     */
+    public static String getErrorName(int result) {
+        final String constantName = ERROR_CONSTANTS.get(result);
+        return constantName == null ? "unknown error" : constantName;
+    }
+
     public static void checkQuietly(int result, String methodName) {
         try {
             check(result, methodName);
@@ -73,17 +78,34 @@ public class CameraUtils {
         return new String(array);
     }
 
+    /**
+     * Decodes a NUL-terminated ASCII string. Decoded directly rather than by a charset looked up by name: called for every
+     * captured file path.
+     * @param array the string bytes, not null.
+     * @return the string up to the first NUL or the end of the array; non-ASCII bytes are replaced by U+FFFD.
+     */
     public static String toString(byte[] array) {
-        try {
-            for (int i = 0; i < array.length; i++) {
-                if (array[i] == 0) {
-                    return new String(array, 0, i, "ASCII");
-                }
-            }
-            return new String(array, "ASCII");
-        } catch (UnsupportedEncodingException ex) {
-            throw new RuntimeException(ex);
+        return toString(array, 0, array.length);
+    }
+
+    /**
+     * Decodes a NUL-terminated ASCII string, see {@link #toString(byte[])}.
+     * @param array the string bytes, not null.
+     * @param offset the first byte.
+     * @param length the maximum number of bytes.
+     * @return the string up to the first NUL or the given length.
+     */
+    public static String toString(byte[] array, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && array[end] != 0) {
+            end++;
+        }
+        final char[] chars = new char[end - offset];
+        for (int i = 0; i < chars.length; i++) {
+            final byte b = array[offset + i];
+            chars[i] = b >= 0 ? (char) b : '\uFFFD';
         }
+        return new String(chars);
     }
     private static final Map<Integer, String> ERROR_CONSTANTS = new HashMap<Integer, String>();
 
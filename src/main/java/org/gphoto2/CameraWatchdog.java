@@ -0,0 +1,353 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects wedged cameras and recovers them without manual intervention. Thread-safe.
+ * <p></p>
+ * The watchdog observes every native operation of the watched cameras. An operation counts as a strike when it fails with an
+ * USB/I/O error, or when it fails with any error, e.g. <code>GP_ERROR_TIMEOUT</code> or the <code>GP_ERROR_CANCEL</code> of an
+ * {@link OperationContext} deadline, after taking longer than the stall threshold (combine with deadlines, so that hung operations
+ * return at all). A slow operation which succeeds, e.g. a long exposure or the download of a large file, is not a strike; any
+ * successful operation clears the strikes. After given number of consecutive strikes the
+ * camera is recovered, on the thread whose operation struck last, before that operation's failure is reported to the caller:
+ * <ol>
+ * <li>the camera is de-initialized and freed (<code>gp_camera_exit</code>, <code>gp_camera_free</code>),</li>
+ * <li>the port is re-detected by {@link CameraList}: the camera may have been re-enumerated on a different USB port; it is found
+ * by its model,</li>
+ * <li>the camera is re-created and initialized on the port, see {@link Camera#reopen(String)},</li>
+ * <li>the last known {@link ConfigurationSnapshot} is applied: only the settings which differ from the camera's current values are written, in a single apply where the camera accepts it and one at a time otherwise; settings the camera refuses are logged and do not fail the recovery.</li>
+ * </ol>
+ * The last known configuration is captured when the camera is {@link #watch(Camera) watched}; call
+ * {@link #refreshConfiguration(Camera)} after changing the camera settings.
+ */
+public final class CameraWatchdog implements Closeable {
+
+    private static final Logger log = Logger.getLogger(CameraWatchdog.class.getName());
+
+    /**
+     * Notified about recoveries.
+     */
+    public static interface RecoveryListener {
+
+        /**
+         * Invoked after a recovery attempt, on the thread which performed it.
+         * @param camera the camera.
+         * @param oldPort the port before the recovery.
+         * @param newPort the port after the recovery, null if the recovery failed.
+         * @param durationNanos the duration of the recovery.
+         * @param failure the failure, null if the camera recovered.
+         */
+        void onRecovery(Camera camera, String oldPort, String newPort, long durationNanos, Throwable failure);
+    }
+
+    private final int strikeThreshold;
+    private final long stallNanos;
+    private final int detectAttempts;
+    private final long detectDelayMillis;
+    private final Map<Camera, Entry> entries = new HashMap<Camera, Entry>();
+    private final LatencyStats recoveryStats = new LatencyStats("camera-recovery");
+    private final AtomicLong failedRecoveries = new AtomicLong();
+    private volatile RecoveryListener recoveryListener;
+    private final Camera.OperationListener operationListener = new Camera.OperationListener() {
+        public void onOperation(Camera camera, String methodName, int result, long durationNanos) {
+            final Entry e;
+            synchronized (CameraWatchdog.this) {
+                e = entries.get(camera);
+            }
+            if (e != null) {
+                e.onOperation(camera, methodName, result, durationNanos);
+            }
+        }
+    };
+
+    /**
+     * Creates the watchdog.
+     * @param strikeThreshold the number of consecutive strikes which triggers the recovery, 1 or greater.
+     * @param stallMillis an operation which takes longer and then fails counts as a strike, whatever the error.
+     * @param detectAttempts how many times the camera is looked for by {@link CameraList}, the camera needs time to re-enumerate
+     * after a reset.
+     * @param detectDelayMillis the delay between the detection attempts.
+     */
+    public CameraWatchdog(int strikeThreshold, long stallMillis, int detectAttempts, long detectDelayMillis) {
+        if (strikeThreshold < 1) {
+            throw new IllegalArgumentException("Parameter strikeThreshold: invalid value " + strikeThreshold + ": must be 1 or greater");
+        }
+        if (detectAttempts < 1) {
+            throw new IllegalArgumentException("Parameter detectAttempts: invalid value " + detectAttempts + ": must be 1 or greater");
+        }
+        this.strikeThreshold = strikeThreshold;
+        this.stallNanos = stallMillis * 1000000L;
+        this.detectAttempts = detectAttempts;
+        this.detectDelayMillis = detectDelayMillis;
+    }
+
+    /**
+     * Creates the watchdog which recovers cameras after 3 consecutive strikes, counting operations longer than 30 seconds, and
+     * looks for the camera for up to 10 seconds.
+     */
+    public CameraWatchdog() {
+        this(3, 30000, 10, 1000);
+    }
+
+    public void setRecoveryListener(RecoveryListener recoveryListener) {
+        this.recoveryListener = recoveryListener;
+    }
+
+    /**
+     * Starts watching given camera. Replaces the camera's {@link Camera#setOperationListener(Camera.OperationListener) operation listener}.
+     * @param camera an initialized camera opened on a port, not null. Its model is looked up by {@link CameraList} unless given
+     * to the camera constructor.
+     */
+    public void watch(Camera camera) {
+        final String port = camera.getPort();
+        if (port == null) {
+            throw new IllegalArgumentException("Parameter camera: invalid value " + camera + ": must be opened on a port");
+        }
+        String model = camera.getModel();
+        if (model == null) {
+            model = lookupModel(port);
+        }
+        final Entry e = new Entry(model, port);
+        e.configuration = ConfigurationSnapshot.capture(camera);
+        synchronized (this) {
+            entries.put(camera, e);
+        }
+        camera.setOperationListener(operationListener);
+    }
+
+    /**
+     * Stops watching given camera.
+     * @param camera the camera, not null.
+     */
+    public void unwatch(Camera camera) {
+        synchronized (this) {
+            if (entries.remove(camera) == null) {
+                return;
+            }
+        }
+        if (camera.getOperationListener() == operationListener) {
+            camera.setOperationListener(null);
+        }
+    }
+
+    /**
+     * Captures the current configuration of the camera, to be replayed after a recovery.
+     * @param camera a watched camera, not null.
+     */
+    public void refreshConfiguration(Camera camera) {
+        final Entry e = getEntry(camera);
+        final ConfigurationSnapshot cfg = ConfigurationSnapshot.capture(camera);
+        synchronized (e) {
+            e.configuration = cfg;
+        }
+    }
+
+    /**
+     * Sets the configuration to be restored after a recovery, e.g. a known-good preset, instead of the captured one.
+     * @param camera a watched camera, not null.
+     * @param configuration the configuration, not null.
+     */
+    public void setConfiguration(Camera camera, ConfigurationSnapshot configuration) {
+        CameraUtils.requireNotNull(configuration, "configuration");
+        final Entry e = getEntry(camera);
+        synchronized (e) {
+            e.configuration = configuration;
+        }
+    }
+
+    private synchronized Entry getEntry(Camera camera) {
+        final Entry e = entries.get(camera);
+        if (e == null) {
+            throw new IllegalArgumentException("Parameter camera: invalid value " + camera + ": not watched");
+        }
+        return e;
+    }
+
+    private synchronized boolean isPortTaken(String port, Entry except) {
+        for (final Entry e : entries.values()) {
+            if (e != except && port.equals(e.port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the latency of the operations of given camera.
+     * @param camera a watched camera, not null.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getLatencyStats(Camera camera) {
+        return getEntry(camera).latencyStats;
+    }
+
+    /**
+     * Time spent by successful recoveries, from the teardown to the replayed configuration.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getRecoveryStats() {
+        return recoveryStats;
+    }
+
+    public long getFailedRecoveryCount() {
+        return failedRecoveries.get();
+    }
+
+    /**
+     * Stops watching all cameras.
+     */
+    public void close() {
+        final List<Camera> cameras;
+        synchronized (this) {
+            cameras = new ArrayList<Camera>(entries.keySet());
+        }
+        for (final Camera c : cameras) {
+            unwatch(c);
+        }
+    }
+
+    private static String lookupModel(String port) {
+        final CameraList cl = new CameraList(CameraList.ALL_PORTS);
+        try {
+            for (int i = 0; i < cl.getCount(); i++) {
+                if (port.equals(cl.getPort(i))) {
+                    return cl.getModel(i);
+                }
+            }
+        } finally {
+            CameraUtils.closeQuietly(cl);
+        }
+        throw new GPhotoException("No camera detected on port " + port, GPhoto2Native.GP_ERROR_MODEL_NOT_FOUND);
+    }
+
+    /**
+     * State of a watched camera. Guarded by itself.
+     */
+    private final class Entry {
+
+        final String model;
+        String port;
+        int strikes = 0;
+        boolean recovering = false;
+        ConfigurationSnapshot configuration;
+        final LatencyStats latencyStats = new LatencyStats("camera-operation");
+
+        Entry(String model, String port) {
+            this.model = model;
+            this.port = port;
+        }
+
+        synchronized void onOperation(Camera camera, String methodName, int result, long durationNanos) {
+            if (recovering) {
+                // the operations of the recovery itself.
+                return;
+            }
+            latencyStats.record(durationNanos);
+            // a slow success is a long exposure or a large download, not a wedged camera.
+            final boolean stalled = durationNanos > stallNanos && result < GPhoto2Native.GP_OK;
+            if (stalled || CameraSessionPool.isConnectionError(result)) {
+                strikes++;
+                log.fine("Camera " + port + ": " + methodName + " struck (" + CameraUtils.getErrorName(result) + " after " + durationNanos / 1000000 + "ms), "
+                        + strikes + "/" + strikeThreshold);
+            } else if (result >= GPhoto2Native.GP_OK) {
+                strikes = 0;
+            }
+            if (strikes >= strikeThreshold) {
+                strikes = 0;
+                recover(camera);
+            }
+        }
+
+        private void recover(Camera camera) {
+            final String oldPort = port;
+            log.warning("Camera " + model + " on " + oldPort + " is wedged, recovering");
+            final long start = System.nanoTime();
+            recovering = true;
+            Throwable failure = null;
+            try {
+                final String newPort = detect();
+                camera.reopen(newPort);
+                port = newPort;
+                configuration.applyTo(camera);
+                final long nanos = recoveryStats.recordSince(start);
+                log.info("Camera " + model + " recovered on " + newPort + " in " + nanos / 1000000 + "ms");
+            } catch (Throwable t) {
+                if (t instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                failure = t;
+                failedRecoveries.incrementAndGet();
+                log.log(Level.SEVERE, "Failed to recover camera " + model + " on " + oldPort, t);
+            } finally {
+                recovering = false;
+            }
+            final RecoveryListener l = recoveryListener;
+            if (l != null) {
+                l.onRecovery(camera, oldPort, failure == null ? port : null, System.nanoTime() - start, failure);
+            }
+        }
+
+        /**
+         * Finds the port of the camera: the original port if it still hosts the same model, otherwise the port of the same model
+         * not used by another watched camera.
+         */
+        private String detect() throws InterruptedException {
+            for (int attempt = 1;; attempt++) {
+                String found = null;
+                final CameraList cl = new CameraList(CameraList.ALL_PORTS);
+                try {
+                    for (int i = 0; i < cl.getCount(); i++) {
+                        if (!model.equals(cl.getModel(i))) {
+                            continue;
+                        }
+                        final String p = cl.getPort(i);
+                        if (p.equals(port)) {
+                            found = p;
+                            break;
+                        }
+                        if (found == null && !isPortTaken(p, this)) {
+                            found = p;
+                        }
+                    }
+                } finally {
+                    CameraUtils.closeQuietly(cl);
+                }
+                if (found != null) {
+                    return found;
+                }
+                if (attempt >= detectAttempts) {
+                    throw new GPhotoException("Camera " + model + " not detected after " + attempt + " attempts", GPhoto2Native.GP_ERROR_IO_USB_FIND);
+                }
+                Thread.sleep(detectDelayMillis);
+            }
+        }
+    }
+}
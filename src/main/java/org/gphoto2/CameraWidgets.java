@@ -38,7 +38,7 @@ public final class CameraWidgets implements Closeable {
 
     public void close() {
         if (rootWidget != null) {
-            CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_widget_free(rootWidget), "gp_widget_free");
+            handle.closeQuietly();
             rootWidget = null;
         }
         widgets.clear();
@@ -127,16 +127,22 @@ public final class CameraWidgets implements Closeable {
     private Map<String, Pointer> widgets = new HashMap<String, Pointer>();
     private final Camera camera;
     private Pointer rootWidget;
+    private NativeResources.Handle handle;
 
     /**
      * Lists all configuration options for given camera.
      */
-    CameraWidgets(Camera c) {
+    CameraWidgets(final Camera c) {
         camera = c;
         final PointerByReference ptrRoot = new PointerByReference();
         CameraUtils.check(GPhoto2Native.INSTANCE.gp_widget_new(WidgetTypeEnum.Window.cval, "", ptrRoot), "gp_widget_new");
-        CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_get_config(c.camera, ptrRoot, CameraList.CONTEXT), "gp_camera_get_config");
+        c.invoke("gp_camera_get_config", new Camera.NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_get_config(c.camera, ptrRoot, CameraList.CONTEXT);
+            }
+        });
         rootWidget = ptrRoot.getValue();
+        handle = NativeResources.register(this, rootWidget, NativeResources.Kind.CameraWidgets);
         try {
             enumWidgets(rootWidget, "");
         } catch (RuntimeException ex) {
@@ -421,7 +427,56 @@ public final class CameraWidgets implements Closeable {
      */
     public void apply() {
         checkNotClosed();
-        CameraUtils.check(GPhoto2Native.INSTANCE.gp_camera_set_config(camera.camera, rootWidget, CameraList.CONTEXT), "gp_camera_set_config");
+        final Pointer root = rootWidget;
+        camera.invoke("gp_camera_set_config", new Camera.NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_set_config(camera.camera, root, CameraList.CONTEXT);
+            }
+        });
+    }
+
+    /**
+     * Applies only given widgets, one by one, via <code>gp_camera_set_single_config</code>. This avoids sending the whole
+     * configuration to the camera. Falls back to {@link #apply()} if libgphoto2 or the camera does not support single-config
+     * access to any of the widgets.
+     * @param names the names of the widgets to apply, not null. Nothing is done if empty.
+     */
+    public void apply(Collection<String> names) {
+        checkNotClosed();
+        if (names.isEmpty()) {
+            return;
+        }
+        boolean applyAll = false;
+        try {
+            for (final String name : names) {
+                final Pointer widget = get(name);
+                final String basename = getBasename(widget);
+                if (!camera.isSingleConfigSupported(basename)) {
+                    applyAll = true;
+                    continue;
+                }
+                try {
+                    camera.invoke("gp_camera_set_single_config", new Camera.NativeCall() {
+                        public int invoke() {
+                            return GPhoto2Native.INSTANCE.gp_camera_set_single_config(camera.camera, basename, widget, CameraList.CONTEXT);
+                        }
+                    });
+                } catch (GPhotoException ex) {
+                    if (ex.result != GPhoto2Native.GP_ERROR_NOT_SUPPORTED) {
+                        throw ex;
+                    }
+                    camera.markSingleConfigUnsupported(basename);
+                    applyAll = true;
+                }
+            }
+        } catch (UnsatisfiedLinkError ex) {
+            // libgphoto2 older than 2.5.10
+            CameraCapabilities.markSingleConfigMissing();
+            applyAll = true;
+        }
+        if (applyAll) {
+            apply();
+        }
     }
 
     public static void main(String[] args) {
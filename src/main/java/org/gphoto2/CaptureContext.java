@@ -0,0 +1,194 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import org.gphoto2.jna.GPhoto2Native;
+import org.gphoto2.jna.GPhoto2Native.CameraFilePath;
+
+import java.io.Closeable;
+
+/**
+ * Repeated captures on a single camera without per-shot garbage. Thread-unsafe.
+ * <p></p>
+ * {@link Camera#captureImage()} allocates a path structure, decodes the path into strings, creates a native file and several
+ * JNA reference objects for every shot. This context allocates all of them once: the captured path stays in native memory and
+ * is passed to the download as is, the native file is cleaned and refilled, and {@link #getPath()} is decoded lazily, reusing
+ * the folder string while the folder does not change. A shot in a known folder allocates only the file name and its
+ * {@link CameraFile.Path}, and only when {@link #getPath()} is called.
+ * <p></p>
+ * The native calls themselves still allocate: JNA boxes the arguments into an array on every call, and when
+ * {@link GPhoto2Native#INSTANCE} is the {@link NativeOffload} proxy, the proxy dispatch boxes them once more.
+ */
+public final class CaptureContext implements Closeable {
+
+    private final Camera camera;
+    private final Memory path = new Memory(CameraFilePath.SIZE);
+    private final Pointer name = path;
+    private final Pointer folder = path.share(CameraFilePath.FOLDER_OFFSET);
+    private final CameraFile file = new CameraFile();
+    private final PointerByReference data = new PointerByReference();
+    private final NativeLongByReference size = new NativeLongByReference();
+    private final Camera.NativeCall captureCall = new Camera.NativeCall() {
+        public int invoke() {
+            return GPhoto2Native.INSTANCE.gp_camera_capture(camera.camera, GPhoto2Native.GP_CAPTURE_IMAGE, path, CameraList.CONTEXT);
+        }
+    };
+    private final Camera.NativeCall downloadCall = new Camera.NativeCall() {
+        public int invoke() {
+            return GPhoto2Native.INSTANCE.gp_camera_file_get(camera.camera, folder, name, GPhoto2Native.GP_FILE_TYPE_NORMAL, file.cf, CameraList.CONTEXT);
+        }
+    };
+    private final PathDecoder decoder = new PathDecoder();
+    private CameraFile.Path lastPath = null;
+    private boolean captured = false;
+    /**
+     * The last capture went to the camera RAM and was not downloaded yet.
+     */
+    private boolean ramPending = false;
+    /**
+     * The {@link Camera#ramSession} of the pending capture: a reopen drops the RAM images of the old session.
+     */
+    private int ramSession;
+
+    CaptureContext(Camera camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Captures a full-quality image, leaving it on the camera. The path is available by {@link #getPath()}. When capturing to the
+     * {@link CaptureTarget#InternalRam camera RAM}, the image must be downloaded before the next capture.
+     */
+    public void capture() {
+        if (isRamPending()) {
+            // the context only remembers the last capture, the previous one would stay in the RAM for good.
+            throw new IllegalStateException("Invalid state: the previous capture to the camera RAM was not downloaded yet");
+        }
+        camera.checkRamCapacity();
+        captured = false;
+        lastPath = null;
+        camera.invoke("gp_camera_capture", captureCall);
+        captured = true;
+        if (camera.isCapturingToRam()) {
+            setRamPending(true);
+        }
+    }
+
+    private boolean isRamPending() {
+        return ramPending && ramSession == camera.ramSession;
+    }
+
+    private void setRamPending(boolean pending) {
+        if (isRamPending() != pending) {
+            ramPending = pending;
+            ramSession = camera.ramSession;
+            camera.contextRamCaptures += pending ? 1 : -1;
+        }
+    }
+
+    /**
+     * Downloads the image taken by the last {@link #capture()}.
+     * @return the file, owned by this context: valid until the next download, must not be closed.
+     */
+    public CameraFile download() {
+        if (!captured) {
+            throw new IllegalStateException("Invalid state: nothing captured");
+        }
+        file.clean();
+        camera.invoke("gp_camera_file_get", downloadCall);
+        file.updateSize(data, size);
+        setRamPending(false);
+        return file;
+    }
+
+    /**
+     * Captures and downloads a full-quality image.
+     * @return the file, owned by this context: valid until the next download, must not be closed.
+     */
+    public CameraFile captureImage() {
+        capture();
+        return download();
+    }
+
+    /**
+     * Returns the path of the image taken by the last {@link #capture()}.
+     * @return the path, never null.
+     */
+    public CameraFile.Path getPath() {
+        if (!captured) {
+            throw new IllegalStateException("Invalid state: nothing captured");
+        }
+        if (lastPath == null) {
+            lastPath = decoder.decode(path);
+        }
+        return lastPath;
+    }
+
+    /**
+     * Decodes native <code>CameraFilePath</code> structures, reusing the buffers and the folder string of the previous path.
+     * Thread-unsafe.
+     */
+    static final class PathDecoder {
+
+        private final byte[] pathBytes = new byte[CameraFilePath.SIZE];
+        private final byte[] lastFolderBytes = new byte[CameraFilePath.SIZE - CameraFilePath.FOLDER_OFFSET];
+        private String lastFolder = null;
+
+        /**
+         * Decodes the path.
+         * @param path the native structure, {@link CameraFilePath#SIZE} bytes, not null.
+         * @return the path, never null.
+         */
+        CameraFile.Path decode(Pointer path) {
+            path.read(0, pathBytes, 0, pathBytes.length);
+            final int folderLength = lastFolderBytes.length;
+            if (lastFolder == null || !regionEquals(pathBytes, CameraFilePath.FOLDER_OFFSET, lastFolderBytes, folderLength)) {
+                lastFolder = CameraUtils.toString(pathBytes, CameraFilePath.FOLDER_OFFSET, folderLength);
+                System.arraycopy(pathBytes, CameraFilePath.FOLDER_OFFSET, lastFolderBytes, 0, folderLength);
+            }
+            return new CameraFile.Path(CameraUtils.toString(pathBytes, 0, CameraFilePath.FOLDER_OFFSET), lastFolder);
+        }
+
+        /**
+         * Compares the NUL-terminated strings.
+         */
+        private static boolean regionEquals(byte[] a, int offset, byte[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[offset + i] != b[i]) {
+                    return false;
+                }
+                if (b[i] == 0) {
+                    return true;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Frees the native file. Further invocations do nothing.
+     */
+    public void close() {
+        setRamPending(false);
+        file.close();
+    }
+}
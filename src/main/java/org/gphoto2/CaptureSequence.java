@@ -0,0 +1,373 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A declarative plan of setting changes and captures, e.g. an exposure bracket or a focus stack. Build the plan with
+ * {@link #set(String, Object)} and {@link #capture()}, then {@link #run(Camera, FrameSink) run} it.
+ * <p></p>
+ * The configuration is read once per run; between shots only the settings which actually changed are sent to the camera, via
+ * single-config access where available. When the camera supports trigger capture, the download of each frame overlaps with the
+ * exposure of the next one. All files a shot produces, e.g. both images of RAW+JPEG, are attributed to its frame.
+ */
+public final class CaptureSequence {
+
+    /**
+     * Receives the captured frames.
+     */
+    public static interface FrameSink {
+
+        /**
+         * Invoked for every downloaded file, on the thread running the sequence.
+         * @param frame the zero-based index of the capture step which produced the file.
+         * @param path the path of the file on the camera, not null.
+         * @param file the downloaded file, not null. The sink must close it.
+         */
+        void frameCaptured(int frame, CameraFile.Path path, CameraFile file);
+    }
+
+    private static final class Step {
+
+        /**
+         * The widget name, null for a capture step.
+         */
+        final String name;
+        final Object value;
+
+        Step(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return name == null ? "capture" : "set " + name + "=" + value;
+        }
+    }
+    private final List<Step> steps = new ArrayList<Step>();
+    private boolean overlapDownloads = true;
+    private int eventTimeoutMillis = 30000;
+    private int quietMillis = 300;
+
+    /**
+     * Appends a setting change. The change is sent to the camera before the next capture, and only if the value differs from the
+     * camera's current value.
+     * @param name the widget name, not null.
+     * @param value the value, see {@link CameraWidgets#setValue(String, Object)}.
+     * @return this
+     */
+    public CaptureSequence set(String name, Object value) {
+        steps.add(new Step(CameraUtils.requireNotNull(name, "name"), value));
+        return this;
+    }
+
+    /**
+     * Appends a capture.
+     * @return this
+     */
+    public CaptureSequence capture() {
+        steps.add(new Step(null, null));
+        return this;
+    }
+
+    /**
+     * Creates a bracket: for every value, sets the widget and captures a frame.
+     * @param name the widget name, e.g. <code>/settings/shutterspeed</code> or <code>/actions/manualfocusdrive</code>, not null.
+     * @param values the values, one per frame.
+     * @return the sequence, never null.
+     */
+    public static CaptureSequence bracket(String name, Object... values) {
+        final CaptureSequence result = new CaptureSequence();
+        for (final Object value : values) {
+            result.set(name, value).capture();
+        }
+        return result;
+    }
+
+    /**
+     * If true (the default), shots are taken with trigger capture and the previous frame is downloaded during the exposure of the
+     * next one. Falls back to sequential capture and download if the camera does not support trigger capture.
+     * @param overlapDownloads true to overlap downloads with exposures.
+     */
+    public void setOverlapDownloads(boolean overlapDownloads) {
+        this.overlapDownloads = overlapDownloads;
+    }
+
+    /**
+     * Sets how long to wait for the camera to announce a captured file when overlapping downloads. Defaults to 30 seconds.
+     * @param eventTimeoutMillis the timeout in milliseconds.
+     */
+    public void setEventTimeoutMillis(int eventTimeoutMillis) {
+        this.eventTimeoutMillis = eventTimeoutMillis;
+    }
+
+    /**
+     * Sets how long to wait for further files of a shot when overlapping downloads. After the first file of a shot is announced,
+     * the files announced until the camera reports the capture complete, or until no file is announced for this long, belong to
+     * the same shot. Defaults to 300 milliseconds.
+     * @param quietMillis the quiet window in milliseconds.
+     */
+    public void setQuietMillis(int quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    /**
+     * Runs the sequence.
+     * @param camera the initialized camera, not null.
+     * @param sink receives the captured frames, not null.
+     * @return the per-step timing, never null.
+     */
+    public Report run(final Camera camera, FrameSink sink) {
+        CameraUtils.requireNotNull(sink, "sink");
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            return run(new Shooter() {
+                public void triggerCapture() {
+                    camera.triggerCapture();
+                }
+
+                public CameraEvent waitForEvent(int timeoutMillis) {
+                    return camera.waitForEvent(timeoutMillis);
+                }
+
+                public CameraFile.Path capture() {
+                    return camera.capture();
+                }
+
+                public CameraFile download(CameraFile.Path path) {
+                    return camera.download(path);
+                }
+
+                public boolean isRamFull() {
+                    return camera.getPendingRamCaptures() >= camera.getRamCaptureLimit();
+                }
+            }, cfg, sink);
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    /**
+     * The camera operations of a run, separated so that the order of shots and downloads can be tested without a camera.
+     */
+    static interface Shooter {
+
+        void triggerCapture();
+
+        CameraEvent waitForEvent(int timeoutMillis);
+
+        CameraFile.Path capture();
+
+        CameraFile download(CameraFile.Path path);
+
+        /**
+         * @return true if a further capture to the camera RAM would exceed the {@link Camera#getRamCaptureLimit() limit}.
+         */
+        boolean isRamFull();
+    }
+
+    /**
+     * Runs the sequence.
+     * @param shooter the camera, not null.
+     * @param cfg the configuration of the camera, may be null if the sequence has no setting changes.
+     * @param sink receives the captured frames, not null.
+     * @return the per-step timing, never null.
+     */
+    Report run(Shooter shooter, CameraWidgets cfg, FrameSink sink) {
+        final long start = System.nanoTime();
+        final Report report = new Report();
+        // resolve all widgets up-front, so that a typo fails the sequence before the first shot.
+        final Map<String, Object> current = new HashMap<String, Object>();
+        for (final Step step : steps) {
+            if (step.name != null && !current.containsKey(step.name)) {
+                current.put(step.name, cfg.getValue(step.name));
+            }
+        }
+        final Set<String> changed = new LinkedHashSet<String>();
+        final LinkedList<Pending> downloads = new LinkedList<Pending>();
+        boolean trigger = overlapDownloads;
+        int frame = 0;
+        for (final Step step : steps) {
+            final long stepStart = System.nanoTime();
+            if (step.name != null) {
+                // actions such as the focus drive must be sent even when set to the same value.
+                final boolean action = step.name.startsWith("/actions/") || cfg.getType(step.name) == CameraWidgets.WidgetTypeEnum.Button;
+                final Object old = current.get(step.name);
+                if (action || (old == null ? step.value != null : !old.equals(step.value))) {
+                    cfg.setValue(step.name, step.value);
+                    // libgphoto2 does not mark the widget changed when the same value is set again, e.g. a focus drive step.
+                    cfg.setChanged(step.name, true);
+                    changed.add(step.name);
+                    current.put(step.name, step.value);
+                }
+                report.add(step.toString(), System.nanoTime() - stepStart);
+                continue;
+            }
+            if (!changed.isEmpty()) {
+                cfg.apply(changed);
+                changed.clear();
+            }
+            if (shooter.isRamFull()) {
+                // e.g. RAW+JPEG shots fill the RAM limit with a single frame; free it before the next shot is refused.
+                downloadAll(shooter, sink, downloads, report);
+            }
+            if (trigger) {
+                try {
+                    shooter.triggerCapture();
+                } catch (GPhotoException ex) {
+                    if (ex.result != GPhoto2Native.GP_ERROR_NOT_SUPPORTED) {
+                        throw ex;
+                    }
+                    trigger = false;
+                }
+            }
+            if (trigger) {
+                // the camera is exposing, download the previous frames meanwhile.
+                downloadAll(shooter, sink, downloads, report);
+                waitForFiles(shooter, frame, downloads);
+            } else {
+                downloads.add(new Pending(frame, shooter.capture()));
+                downloadAll(shooter, sink, downloads, report);
+            }
+            report.add("capture #" + frame, System.nanoTime() - stepStart);
+            frame++;
+        }
+        if (!changed.isEmpty()) {
+            cfg.apply(changed);
+        }
+        downloadAll(shooter, sink, downloads, report);
+        report.totalNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static final class Pending {
+
+        final int frame;
+        final CameraFile.Path path;
+
+        Pending(int frame, CameraFile.Path path) {
+            this.frame = frame;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Waits for the files of a triggered shot: the first file within the event timeout, the further ones, e.g. the JPEG of
+     * RAW+JPEG, until the capture completes or the quiet window passes. All of them belong to given frame, so that the next shot
+     * does not pick up a file of this one.
+     */
+    private void waitForFiles(Shooter camera, int frame, List<Pending> downloads) {
+        final long deadline = System.nanoTime() + eventTimeoutMillis * 1000000L;
+        while (true) {
+            final int remaining = (int) ((deadline - System.nanoTime()) / 1000000L);
+            if (remaining <= 0) {
+                throw new GPhotoException("The camera did not announce the captured file within " + eventTimeoutMillis + "ms", GPhoto2Native.GP_ERROR_TIMEOUT);
+            }
+            final CameraEvent event = camera.waitForEvent(remaining);
+            if (event.type == CameraEvent.Type.FileAdded) {
+                downloads.add(new Pending(frame, event.path));
+                break;
+            }
+        }
+        // other events, e.g. property changes, do not extend the window.
+        long quietEnd = System.nanoTime() + quietMillis * 1000000L;
+        while (true) {
+            final int remaining = (int) ((quietEnd - System.nanoTime()) / 1000000L);
+            if (remaining <= 0) {
+                return;
+            }
+            final CameraEvent event = camera.waitForEvent(remaining);
+            if (event.type == CameraEvent.Type.FileAdded) {
+                downloads.add(new Pending(frame, event.path));
+                quietEnd = System.nanoTime() + quietMillis * 1000000L;
+            } else if (event.type == CameraEvent.Type.Timeout || event.type == CameraEvent.Type.CaptureComplete) {
+                return;
+            }
+        }
+    }
+
+    private static void downloadAll(Shooter camera, FrameSink sink, LinkedList<Pending> downloads, Report report) {
+        while (!downloads.isEmpty()) {
+            final Pending p = downloads.removeFirst();
+            final long start = System.nanoTime();
+            final CameraFile file = camera.download(p.path);
+            report.add("download #" + p.frame + " " + p.path.filename, System.nanoTime() - start);
+            sink.frameCaptured(p.frame, p.path, file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureSequence" + steps;
+    }
+
+    /**
+     * Timing of a sequence run.
+     */
+    public static final class Report {
+
+        private final List<String> descriptions = new ArrayList<String>();
+        private final List<Long> durations = new ArrayList<Long>();
+        private long totalNanos;
+
+        void add(String description, long nanos) {
+            descriptions.add(description);
+            durations.add(nanos);
+        }
+
+        /**
+         * @return descriptions of the executed steps, in the execution order; downloads are reported as separate steps.
+         */
+        public List<String> getSteps() {
+            return Collections.unmodifiableList(descriptions);
+        }
+
+        /**
+         * @return the duration of each step in nanoseconds, in the order of {@link #getSteps()}.
+         */
+        public List<Long> getDurationsNanos() {
+            return Collections.unmodifiableList(durations);
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < descriptions.size(); i++) {
+                sb.append(String.format("%9.3fms %s%n", durations.get(i) / 1000000d, descriptions.get(i)));
+            }
+            sb.append(String.format("%9.3fms total%n", totalNanos / 1000000d));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the camera stores the captured images, see {@link Camera#setCaptureTarget(CaptureTarget)}. Maps to a choice of the
+ * <code>capturetarget</code> widget; the choice labels differ between the drivers and models, thus every target has a list of
+ * known labels, matched case-insensitively, and models may register their own labels by
+ * {@link #registerChoice(String, CaptureTarget, String)}.
+ */
+public enum CaptureTarget {
+
+    /**
+     * The camera's internal RAM: the image is not written to the card, it is kept only until downloaded. The fastest path from the
+     * shutter to the bytes, but the RAM holds a few images only: download every capture promptly.
+     */
+    InternalRam("Internal RAM", "SDRAM", "RAM"),
+    /**
+     * The memory card.
+     */
+    MemoryCard("Memory card", "Card");
+
+    private final String[] defaultChoices;
+    /**
+     * Maps model prefix to the labels of the targets.
+     */
+    private static final Map<String, Map<CaptureTarget, String>> MODEL_CHOICES = new HashMap<String, Map<CaptureTarget, String>>();
+
+    static {
+        // Sony bodies only send the file to the host when it goes to the RAM, "card" alone keeps it on the card.
+        registerChoice("Sony", InternalRam, "sdram");
+        registerChoice("Sony", MemoryCard, "card+sdram");
+    }
+
+    private CaptureTarget(String... defaultChoices) {
+        this.defaultChoices = defaultChoices;
+    }
+
+    /**
+     * Registers the choice label of given target for a model, taking precedence over the known labels.
+     * @param modelPrefix the model, or its prefix such as "Nikon", as reported by {@link CameraList#getModel(int)}; matched
+     * case-insensitively. Not null.
+     * @param target the target, not null.
+     * @param choice the label of the <code>capturetarget</code> choice, not null.
+     */
+    public static void registerChoice(String modelPrefix, CaptureTarget target, String choice) {
+        CameraUtils.requireNotNull(modelPrefix, "modelPrefix");
+        CameraUtils.requireNotNull(target, "target");
+        CameraUtils.requireNotNull(choice, "choice");
+        synchronized (MODEL_CHOICES) {
+            final String key = modelPrefix.toLowerCase();
+            Map<CaptureTarget, String> m = MODEL_CHOICES.get(key);
+            if (m == null) {
+                m = new HashMap<CaptureTarget, String>();
+                MODEL_CHOICES.put(key, m);
+            }
+            m.put(target, choice);
+        }
+    }
+
+    private String getModelChoice(String model) {
+        if (model == null) {
+            return null;
+        }
+        final String lower = model.toLowerCase();
+        String result = null;
+        int matchLength = -1;
+        synchronized (MODEL_CHOICES) {
+            for (final Map.Entry<String, Map<CaptureTarget, String>> e : MODEL_CHOICES.entrySet()) {
+                final String choice = e.getValue().get(this);
+                // the longest prefix wins.
+                if (choice != null && lower.startsWith(e.getKey()) && e.getKey().length() > matchLength) {
+                    result = choice;
+                    matchLength = e.getKey().length();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String find(List<String> choices, String label) {
+        for (final String c : choices) {
+            if (c.equalsIgnoreCase(label)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the widget choice selecting this target.
+     * @param model the camera model, may be null.
+     * @param choices the choices of the <code>capturetarget</code> widget, not null.
+     * @return the choice, exactly as listed; null if none matches.
+     */
+    String resolveChoice(String model, List<String> choices) {
+        final String modelChoice = getModelChoice(model);
+        if (modelChoice != null) {
+            final String c = find(choices, modelChoice);
+            if (c != null) {
+                return c;
+            }
+        }
+        for (final String label : defaultChoices) {
+            final String c = find(choices, label);
+            if (c != null) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps the value of the <code>capturetarget</code> widget to the target.
+     * @param model the camera model, may be null.
+     * @param choice the widget value, may be null.
+     * @return the target, null if not recognized.
+     */
+    static CaptureTarget fromChoice(String model, String choice) {
+        if (choice == null) {
+            return null;
+        }
+        for (final CaptureTarget t : values()) {
+            final String modelChoice = t.getModelChoice(model);
+            if (modelChoice != null && modelChoice.equalsIgnoreCase(choice)) {
+                return t;
+            }
+        }
+        for (final CaptureTarget t : values()) {
+            for (final String label : t.defaultChoices) {
+                if (label.equalsIgnoreCase(choice)) {
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+}
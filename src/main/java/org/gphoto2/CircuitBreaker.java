@@ -0,0 +1,169 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+/**
+ * Stops calling a wedged camera. After given number of consecutive device failures the breaker opens and all camera operations
+ * fail immediately, without touching the device. After the open period elapses, a single trial operation is let through: if it
+ * succeeds the breaker closes, otherwise it opens again. Thread-safe.
+ * <p></p>
+ * Only device failures are counted; errors caused by the caller (bad parameters, unsupported operation, missing file etc) are not.
+ */
+public final class CircuitBreaker {
+
+    public static enum State {
+
+        /**
+         * Operations are passed to the camera.
+         */
+        Closed,
+        /**
+         * Operations fail immediately.
+         */
+        Open,
+        /**
+         * A single trial operation is passed to the camera.
+         */
+        HalfOpen
+    }
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private State state = State.Closed;
+    private int consecutiveFailures = 0;
+    private int lastError = GPhoto2Native.GP_OK;
+    private long openedAt = 0;
+
+    /**
+     * Creates new breaker.
+     * @param failureThreshold the number of consecutive device failures which opens the breaker, 1 or greater.
+     * @param openDurationMillis how long the breaker stays open before a trial operation is allowed.
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Parameter failureThreshold: invalid value " + failureThreshold + ": must be 1 or greater");
+        }
+        if (openDurationMillis < 0) {
+            throw new IllegalArgumentException("Parameter openDurationMillis: invalid value " + openDurationMillis + ": must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    /**
+     * Creates a breaker which never opens, but still counts the consecutive device failures, see
+     * {@link #getConsecutiveFailures()}. The default of every {@link Camera}.
+     * @return new breaker, never null.
+     */
+    public static CircuitBreaker disabled() {
+        return new CircuitBreaker(Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Checks whether an operation may be passed to the camera.
+     * @param methodName the native function name, for the exception message.
+     * @throws GPhotoException if the breaker is open. The {@link GPhotoException#result} is the last device error.
+     */
+    synchronized void beforeCall(String methodName) {
+        if (state == State.Open) {
+            if (System.nanoTime() - openedAt < openDurationMillis * 1000000L) {
+                throw new GPhotoException(methodName + " rejected: circuit breaker is open after " + consecutiveFailures + " consecutive failures, last one "
+                        + CameraUtils.getErrorName(lastError) + " #" + lastError, lastError);
+            }
+            state = State.HalfOpen;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.Closed;
+        consecutiveFailures = 0;
+    }
+
+    synchronized void onFailure(int result) {
+        if (!isDeviceFailure(result)) {
+            if (state == State.HalfOpen) {
+                // the device responded, it is not wedged.
+                onSuccess();
+            }
+            return;
+        }
+        lastError = result;
+        consecutiveFailures++;
+        if (state == State.HalfOpen || consecutiveFailures >= failureThreshold) {
+            state = State.Open;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Checks whether given error indicates a problem with the device rather than with the request.
+     * @param result the libgphoto2 error code.
+     * @return true if the error is counted by the breaker.
+     */
+    public static boolean isDeviceFailure(int result) {
+        switch (result) {
+            case GPhoto2Native.GP_OK:
+            case GPhoto2Native.GP_ERROR_BAD_PARAMETERS:
+            case GPhoto2Native.GP_ERROR_NOT_SUPPORTED:
+            case GPhoto2Native.GP_ERROR_FILE_EXISTS:
+            case GPhoto2Native.GP_ERROR_FILE_NOT_FOUND:
+            case GPhoto2Native.GP_ERROR_DIRECTORY_EXISTS:
+            case GPhoto2Native.GP_ERROR_DIRECTORY_NOT_FOUND:
+            case GPhoto2Native.GP_ERROR_PATH_NOT_ABSOLUTE:
+            case GPhoto2Native.GP_ERROR_MODEL_NOT_FOUND:
+            case GPhoto2Native.GP_ERROR_CANCEL:
+                return false;
+            default:
+                return result < GPhoto2Native.GP_OK;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of consecutive device failures.
+     * @return 0 or greater.
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Returns the last device error.
+     * @return the libgphoto2 error code, {@link GPhoto2Native#GP_OK} if there was no failure yet.
+     */
+    public synchronized int getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Closes the breaker and clears the failure count.
+     */
+    public synchronized void reset() {
+        onSuccess();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" + state + ", failures=" + consecutiveFailures + "/" + failureThreshold + ", lastError=" + lastError + '}';
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The values of all writable camera settings at a point in time. Immutable, thread-safe.
+ * <p></p>
+ * Use to switch between setting presets, or to restore a known-good configuration: {@link #applyTo(Camera)} writes only the
+ * settings which differ from the camera's current values, via <code>gp_camera_set_single_config</code> where supported, so a
+ * preset which changes a few settings applies in a few round trips rather than by rewriting the whole configuration. Snapshots
+ * {@link #toBytes() serialize} to a compact binary form, to be stored in a file or a database.
+ * <pre>
+ * final ConfigurationSnapshot studio = ConfigurationSnapshot.capture(camera);
+ * ...
+ * studio.applyTo(camera);
+ * </pre>
+ */
+public final class ConfigurationSnapshot {
+
+    private static final Logger log = Logger.getLogger(ConfigurationSnapshot.class.getName());
+    private static final int MAGIC = 0x47504353;
+    private static final int VERSION = 1;
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_FLOAT = 2;
+    private static final byte TAG_BOOLEAN = 3;
+    private static final byte TAG_DATE = 4;
+    /**
+     * Base names of the settings which select a mode, and therefore decide which values the other settings accept: e.g. the
+     * shutter speed is not writable in the aperture priority mode.
+     */
+    private static final Set<String> MODE_SETTINGS = new TreeSet<String>(Arrays.asList("autoexposuremode", "autoexposuremodedial",
+            "expprogram", "exposuremode", "capturemode", "shootingmode"));
+    /**
+     * The settings, sorted by name.
+     */
+    private final Map<String, Object> values;
+
+    private ConfigurationSnapshot(TreeMap<String, Object> values) {
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Reads the current configuration of the camera.
+     * @param camera the initialized camera, not null.
+     * @return the snapshot, never null.
+     */
+    public static ConfigurationSnapshot capture(Camera camera) {
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            return capture(cfg);
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    /**
+     * Reads the values of given configuration. Actions and read-only settings are not settings to be restored, they are skipped.
+     * @param cfg the configuration, not null. Not closed.
+     * @return the snapshot, never null.
+     */
+    public static ConfigurationSnapshot capture(CameraWidgets cfg) {
+        final TreeMap<String, Object> result = new TreeMap<String, Object>();
+        for (final String name : cfg.getNames()) {
+            if (isSetting(cfg, name)) {
+                result.put(name, cfg.getValue(name));
+            }
+        }
+        return new ConfigurationSnapshot(result);
+    }
+
+    private static boolean isSetting(CameraWidgets cfg, String name) {
+        final CameraWidgets.WidgetTypeEnum type = cfg.getType(name);
+        return type.hasValue && type != CameraWidgets.WidgetTypeEnum.Button && !name.startsWith("/actions/") && !cfg.isReadOnly(name);
+    }
+
+    /**
+     * @return the setting values keyed by the widget name, sorted by the name. Never null, unmodifiable.
+     */
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the value of a setting.
+     * @param name the widget name, not null.
+     * @return the value, null if the setting has no value or is not in the snapshot.
+     */
+    public Object get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * Derives a snapshot with a setting changed, e.g. to build a preset.
+     * @param name the widget name, not null.
+     * @param value the value, of the type of the widget, see {@link CameraWidgets#setValue(String, Object)}.
+     * @return new snapshot, never null.
+     */
+    public ConfigurationSnapshot with(String name, Object value) {
+        CameraUtils.requireNotNull(name, "name");
+        checkValue(name, value);
+        final TreeMap<String, Object> result = new TreeMap<String, Object>(values);
+        result.put(name, value);
+        return new ConfigurationSnapshot(result);
+    }
+
+    private static void checkValue(String name, Object value) {
+        if (value != null && !(value instanceof String) && !(value instanceof Float) && !(value instanceof Boolean) && !(value instanceof Date)) {
+            throw new IllegalArgumentException("Parameter value: invalid value " + value + " of " + name + ": unsupported " + value.getClass());
+        }
+    }
+
+    /**
+     * Computes the settings which must be written to turn <code>current</code> into this snapshot. Settings not present in
+     * <code>current</code> are skipped: the camera does not offer them, e.g. in the current mode.
+     * @param current the current state, not null.
+     * @return the values of this snapshot which differ from <code>current</code>, sorted by name. Never null, may be empty.
+     */
+    public Map<String, Object> diff(ConfigurationSnapshot current) {
+        final Map<String, Object> result = new TreeMap<String, Object>();
+        for (final Map.Entry<String, Object> e : values.entrySet()) {
+            if (current.values.containsKey(e.getKey()) && !equal(e.getValue(), current.values.get(e.getKey()))) {
+                result.put(e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Writes the settings which differ from the current values of the camera. Reads the configuration once, then writes only the
+     * difference. See {@link #applyTo(CameraWidgets, Map)}.
+     * @param camera the initialized camera, not null.
+     * @return the names of the changed settings, never null, may be empty.
+     */
+    public List<String> applyTo(Camera camera) {
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            return applyTo(cfg);
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    /**
+     * Writes the settings which differ from the values of given configuration, and applies them to the camera. See
+     * {@link #applyTo(CameraWidgets, Map)}; refused settings are logged.
+     * @param cfg the current configuration of the camera, not null. Not closed.
+     * @return the names of the changed settings, never null, may be empty.
+     */
+    public List<String> applyTo(CameraWidgets cfg) {
+        return applyTo(cfg, null);
+    }
+
+    /**
+     * Writes the settings which differ from the values of given configuration, and applies them to the camera in a single
+     * {@link CameraWidgets#apply(java.util.Collection)}. If the camera refuses that, the settings are applied one at a time, so
+     * that a setting the camera refuses does not prevent the others from being applied.
+     * <p></p>
+     * The settings are applied by name, except that the mode settings (such as <code>autoexposuremode</code> or
+     * <code>expprogram</code>) go first, since they decide which values the other settings accept. When applying one at a time,
+     * settings refused before the mode changed are retried once after all the other settings are applied.
+     * @param cfg the current configuration of the camera, not null. Not closed.
+     * @param failures if not null, receives the exception of every setting the camera refused, keyed by the name. If null, the
+     * failures are logged.
+     * @return the names of the changed settings, in the order they were applied, never null, may be empty.
+     */
+    public List<String> applyTo(CameraWidgets cfg, Map<String, RuntimeException> failures) {
+        final ConfigurationSnapshot current = capture(cfg);
+        final Map<String, Object> diff = diff(current);
+        final List<String> order = new ArrayList<String>(diff.size());
+        for (final String name : diff.keySet()) {
+            if (isMode(name)) {
+                order.add(name);
+            }
+        }
+        final int modes = order.size();
+        for (final String name : diff.keySet()) {
+            if (!isMode(name)) {
+                order.add(name);
+            }
+        }
+        final List<String> changed = new ArrayList<String>(diff.size());
+        final Map<String, RuntimeException> refused = new TreeMap<String, RuntimeException>();
+        final List<String> batch = new ArrayList<String>(order.size());
+        for (final String name : order) {
+            try {
+                cfg.setValue(name, diff.get(name));
+                batch.add(name);
+            } catch (RuntimeException ex) {
+                refused.put(name, ex);
+            }
+        }
+        if (applyBatch(cfg, batch, current)) {
+            changed.addAll(batch);
+        } else {
+            for (final String name : batch) {
+                final RuntimeException ex = applySetting(cfg, name, diff.get(name), current.get(name));
+                if (ex == null) {
+                    changed.add(name);
+                } else {
+                    refused.put(name, ex);
+                }
+            }
+        }
+        if (modes > 0 && !refused.isEmpty() && !Collections.disjoint(changed, order.subList(0, modes))) {
+            // a new mode may have made the refused settings writable.
+            for (final String name : new ArrayList<String>(refused.keySet())) {
+                if (applySetting(cfg, name, diff.get(name), current.get(name)) == null) {
+                    changed.add(name);
+                    refused.remove(name);
+                }
+            }
+        }
+        for (final Map.Entry<String, RuntimeException> e : refused.entrySet()) {
+            if (failures != null) {
+                failures.put(e.getKey(), e.getValue());
+            } else {
+                log.log(Level.WARNING, "Failed to set " + e.getKey() + "=" + diff.get(e.getKey()), e.getValue());
+            }
+        }
+        log.fine("Applied " + changed);
+        return changed;
+    }
+
+    private static boolean isMode(String name) {
+        return MODE_SETTINGS.contains(name.substring(name.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * Applies the settings already set in a single call: without single-config support, one <code>gp_camera_set_config</code> for
+     * the whole diff rather than one per setting. If the camera refuses, the widgets are set back to their previous values.
+     * @return true on success.
+     */
+    private static boolean applyBatch(CameraWidgets cfg, List<String> names, ConfigurationSnapshot previous) {
+        if (names.isEmpty()) {
+            return true;
+        }
+        try {
+            cfg.apply(names);
+            return true;
+        } catch (RuntimeException ex) {
+            log.log(Level.FINE, "Failed to apply " + names + " at once, applying one at a time", ex);
+            for (final String name : names) {
+                try {
+                    cfg.setValue(name, previous.get(name));
+                } catch (RuntimeException revert) {
+                    log.log(Level.FINE, "Failed to revert " + name, revert);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sets and applies a single setting. If the camera refuses it, the widget is set back to the previous value, so that the
+     * refused value is not sent again with the next setting when the camera has no single-config support.
+     * @return null on success, the failure otherwise.
+     */
+    private static RuntimeException applySetting(CameraWidgets cfg, String name, Object value, Object previous) {
+        try {
+            cfg.setValue(name, value);
+            cfg.apply(Collections.singletonList(name));
+            return null;
+        } catch (RuntimeException ex) {
+            try {
+                cfg.setValue(name, previous);
+            } catch (RuntimeException revert) {
+                log.log(Level.FINE, "Failed to revert " + name, revert);
+            }
+            return ex;
+        }
+    }
+
+    /**
+     * Serializes the snapshot. The names are sorted and prefix-compressed, since most settings share a few section prefixes.
+     * @return the serialized form, never null.
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(values.size());
+            String previous = "";
+            for (final Map.Entry<String, Object> e : values.entrySet()) {
+                final String name = e.getKey();
+                final int common = commonPrefix(previous, name);
+                out.writeShort(common);
+                out.writeUTF(name.substring(common));
+                previous = name;
+                final Object value = e.getValue();
+                if (value == null) {
+                    out.writeByte(TAG_NULL);
+                } else if (value instanceof String) {
+                    out.writeByte(TAG_STRING);
+                    out.writeUTF((String) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(TAG_FLOAT);
+                    out.writeFloat((Float) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(TAG_BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else {
+                    out.writeByte(TAG_DATE);
+                    out.writeLong(((Date) value).getTime());
+                }
+            }
+            out.close();
+        } catch (IOException ex) {
+            // ByteArrayOutputStream does not throw
+            throw new RuntimeException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        final int max = Math.min(Math.min(a.length(), b.length()), 0xFFFF);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Deserializes a snapshot produced by {@link #toBytes()}.
+     * @param data the serialized form, not null.
+     * @return the snapshot, never null.
+     * @throws IllegalArgumentException if the data is not a valid snapshot.
+     */
+    public static ConfigurationSnapshot fromBytes(byte[] data) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Parameter data: invalid value: not a configuration snapshot");
+            }
+            final int count = in.readInt();
+            final TreeMap<String, Object> result = new TreeMap<String, Object>();
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                final int common = in.readUnsignedShort();
+                if (common > previous.length()) {
+                    throw new IllegalArgumentException("Parameter data: invalid value: corrupted name #" + i);
+                }
+                final String name = previous.substring(0, common) + in.readUTF();
+                previous = name;
+                final byte tag = in.readByte();
+                switch (tag) {
+                    case TAG_NULL:
+                        result.put(name, null);
+                        break;
+                    case TAG_STRING:
+                        result.put(name, in.readUTF());
+                        break;
+                    case TAG_FLOAT:
+                        result.put(name, in.readFloat());
+                        break;
+                    case TAG_BOOLEAN:
+                        result.put(name, in.readBoolean());
+                        break;
+                    case TAG_DATE:
+                        result.put(name, new Date(in.readLong()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Parameter data: invalid value: unknown value tag " + tag + " of " + name);
+                }
+            }
+            return new ConfigurationSnapshot(result);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Parameter data: invalid value: truncated", ex);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ConfigurationSnapshot && values.equals(((ConfigurationSnapshot) obj).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationSnapshot" + values;
+    }
+}
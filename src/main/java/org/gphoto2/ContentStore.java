@@ -0,0 +1,195 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores downloaded files by their content: each file is kept once, under its SHA-256 digest, regardless of how many times it was
+ * downloaded. Thread-safe.
+ * <p></p>
+ * Besides the content, the store remembers the camera-side identity of every file it received (the path, size and modification
+ * time, see {@link #keyOf(CameraFile.Path, CameraFile.Info)}), so that a file seen before, e.g. when the same card is offloaded
+ * again, is recognized before it is transferred. The store layout is <code>root/ab/abcdef...jpg</code>, plus an append-only
+ * <code>index.txt</code> which maps the camera-side identities to the digests and survives restarts.
+ */
+public final class ContentStore implements Closeable {
+
+    private static final String INDEX = "index.txt";
+    private final File root;
+    /**
+     * Maps the digest to the stored file.
+     */
+    private final Map<String, File> files = new HashMap<String, File>();
+    /**
+     * Maps the camera-side file identity to the digest.
+     */
+    private final Map<String, String> keys = new HashMap<String, String>();
+    private final Writer index;
+
+    /**
+     * Opens the store, creating the directory if needed.
+     * @param root the store directory, not null.
+     * @throws IOException if the index cannot be read or opened for writing.
+     */
+    public ContentStore(File root) throws IOException {
+        this.root = CameraUtils.requireNotNull(root, "root");
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Failed to create " + root);
+        }
+        final File indexFile = new File(root, INDEX);
+        if (indexFile.exists()) {
+            load(indexFile);
+        }
+        index = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+    }
+
+    private void load(File indexFile) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // digest, stored file, key; the key is empty when the camera did not report the file identity.
+                final String[] columns = line.split("\t", 3);
+                if (columns.length < 3) {
+                    continue;
+                }
+                final File file = new File(root, columns[1]);
+                if (!file.exists()) {
+                    continue;
+                }
+                files.put(columns[0], file);
+                if (columns[2].length() > 0) {
+                    keys.put(columns[2], columns[0]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Computes the camera-side identity of a file.
+     * @param path the path of the file on the camera, not null.
+     * @param info the file metadata, not null.
+     * @return the key, null unless the camera reported both the size and the modification time: the path and the size alone do
+     * not tell a file from another one of the same size written later under a reused name, so such files are downloaded and
+     * deduplicated by their digest.
+     */
+    public static String keyOf(CameraFile.Path path, CameraFile.Info info) {
+        if (info.size < 0 || info.modified < 0) {
+            return null;
+        }
+        return (path.path + "/" + path.filename + "|" + info.size + "|" + info.modified).replace('\t', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Returns the digest of a file received before.
+     * @param key the camera-side identity, see {@link #keyOf(CameraFile.Path, CameraFile.Info)}. May be null.
+     * @return the lowercase hexadecimal SHA-256 digest, null if a file with given identity was not stored yet.
+     */
+    public synchronized String getDigest(String key) {
+        return key == null ? null : keys.get(key);
+    }
+
+    /**
+     * Returns the stored file with given content.
+     * @param digest the lowercase hexadecimal SHA-256 digest, not null.
+     * @return the file, null if there is no such content.
+     */
+    public synchronized File getFile(String digest) {
+        return files.get(digest);
+    }
+
+    /**
+     * @return the number of distinct files in the store.
+     */
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Creates a temporary file in the store directory, to be filled and then {@link #commit(File, String, String, String) committed}.
+     * Being on the same file system, the commit is a rename.
+     * @return new empty file, never null.
+     * @throws IOException if the file cannot be created.
+     */
+    File newTempFile() throws IOException {
+        return File.createTempFile("incoming", ".tmp", root);
+    }
+
+    /**
+     * Moves a fully written temporary file into the store. When the store already holds the same content, the temporary file is
+     * deleted instead.
+     * @param temp the temporary file created by {@link #newTempFile()}, not null.
+     * @param filename the file name on the camera, provides the extension of the stored file.
+     * @param digest the lowercase hexadecimal SHA-256 digest of the file, not null.
+     * @param key the camera-side identity, may be null.
+     * @return true if the content was new, false if it was a duplicate.
+     * @throws IOException if the file cannot be moved or the index cannot be written.
+     */
+    synchronized boolean commit(File temp, String filename, String digest, String key) throws IOException {
+        final boolean isNew = !files.containsKey(digest);
+        if (isNew) {
+            final File dir = new File(root, digest.substring(0, 2));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            final int dot = filename.lastIndexOf('.');
+            final File target = new File(dir, digest + (dot < 0 ? "" : filename.substring(dot).toLowerCase()));
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to move " + temp + " to " + target);
+            }
+            files.put(digest, target);
+        } else if (!temp.delete()) {
+            temp.deleteOnExit();
+        }
+        if (isNew || (key != null && !keys.containsKey(key))) {
+            if (key != null) {
+                keys.put(key, digest);
+            }
+            final File stored = files.get(digest);
+            index.write(digest + "\t" + stored.getParentFile().getName() + "/" + stored.getName() + "\t" + (key == null ? "" : key) + "\n");
+            index.flush();
+        }
+        return isNew;
+    }
+
+    /**
+     * Closes the index. Further commits fail.
+     * @throws IOException if the index cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        index.close();
+    }
+}
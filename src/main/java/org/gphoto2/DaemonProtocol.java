@@ -0,0 +1,113 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * The wire protocol between {@link CameraDaemon} and {@link CameraClient}.
+ * <p></p>
+ * A connection starts with the client sending the daemon token, an <code>unsigned short</code> length followed by the token
+ * bytes; the daemon answers with a status and closes the connection if the token is invalid. A request is an <code>int</code> operation code followed by the operation arguments. A response starts with a status byte:
+ * {@link #STATUS_OK} followed by the operation result, or {@link #STATUS_ERROR} followed by the <code>int</code> libgphoto2
+ * result code and an UTF error message. Files are sent as a stream of chunks, see {@link #CHUNK_END}.
+ */
+final class DaemonProtocol {
+
+    private DaemonProtocol() {
+        throw new AssertionError();
+    }
+    static final int OP_LIST = 0;
+    static final int OP_CAPTURE = 1;
+    static final int OP_DOWNLOAD = 2;
+    static final int OP_CAPTURE_IMAGE = 3;
+    static final int OP_PREVIEW = 4;
+    /**
+     * Reads the whole configuration: the count, then the name, type, read-only flag and value of each widget.
+     */
+    static final int OP_CONFIG_NAMES = 5;
+    static final int OP_CONFIG_SET = 7;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    /**
+     * Ends a file. A file is sent as chunks, each an <code>int</code> length followed by the data, and ends with this length, or
+     * with {@link #CHUNK_ERROR} followed by the <code>int</code> libgphoto2 result code and an UTF error message if the download
+     * failed midway. Neither side holds the whole file, which may be a movie of several gigabytes.
+     */
+    static final int CHUNK_END = 0;
+    static final int CHUNK_ERROR = -1;
+    /**
+     * The maximum data length of a chunk.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * The size of a single read from the camera by the daemon.
+     */
+    static final int DOWNLOAD_CHUNK_SIZE = 1024 * 1024;
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_FLOAT = 2;
+    private static final byte VALUE_BOOLEAN = 3;
+    private static final byte VALUE_DATE = 4;
+    /**
+     * The size of the preview slot header: <code>long</code> sequence number followed by <code>int</code> length.
+     */
+    static final int SLOT_HEADER = 12;
+
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Float) {
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Date) {
+            out.writeByte(VALUE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else {
+            throw new IllegalArgumentException("Parameter value: invalid value " + value + ": unsupported type " + value.getClass());
+        }
+    }
+
+    static Object readValue(DataInput in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return in.readUTF();
+            case VALUE_FLOAT:
+                return in.readFloat();
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_DATE:
+                return new Date(in.readLong());
+            default:
+                throw new IOException("Protocol error: unknown value tag " + tag);
+        }
+    }
+}
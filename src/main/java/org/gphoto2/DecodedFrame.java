@@ -0,0 +1,125 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded preview frame, backed by a pooled pixel buffer. Reference-counted: every consumer which keeps the frame after the
+ * {@link PreviewDecoder.FrameListener} callback returns must {@link #retain()} it and {@link #release()} it when done. The buffer
+ * returns to the pool only after the last reference is released; the frame must not be touched afterwards.
+ */
+public final class DecodedFrame {
+
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final AtomicInteger refs = new AtomicInteger();
+    private final PreviewDecoder owner;
+    private long sequence;
+    private long capturedAtNanos;
+
+    DecodedFrame(PreviewDecoder owner, int width, int height) {
+        this.owner = owner;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Prepares a pooled frame for a new decode.
+     */
+    void reset(long sequence, long capturedAtNanos) {
+        this.sequence = sequence;
+        this.capturedAtNanos = capturedAtNanos;
+        refs.set(1);
+    }
+
+    /**
+     * The frame number, assigned in the order in which the previews were submitted to the decoder.
+     * @return 0 or greater.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when the preview was submitted to the decoder.
+     */
+    public long getCapturedAtNanos() {
+        return capturedAtNanos;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * Returns the image, backed by the pooled buffer. Do not modify.
+     * @return {@link BufferedImage#TYPE_INT_RGB} image, never null.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the pixels, backed by the pooled buffer. Do not modify.
+     * @return the pixels in the 0xRRGGBB format, row by row, never null.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Adds a reference to this frame.
+     * @return this
+     */
+    public DecodedFrame retain() {
+        for (;;) {
+            final int current = refs.get();
+            if (current <= 0) {
+                throw new IllegalStateException("Invalid state: frame " + sequence + " already released");
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference. When the last reference is released, the buffer returns to the pool.
+     */
+    public void release() {
+        final int current = refs.decrementAndGet();
+        if (current == 0) {
+            owner.recycle(this);
+        } else if (current < 0) {
+            throw new IllegalStateException("Invalid state: frame " + sequence + " released too many times");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedFrame{#" + sequence + ", " + getWidth() + "x" + getHeight() + ", refs=" + refs.get() + '}';
+    }
+}
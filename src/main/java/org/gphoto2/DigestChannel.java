@@ -0,0 +1,74 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Passes the written data through a {@link MessageDigest} on its way to another channel, so that a checksum is computed in the same
+ * pass which writes the data. Thread-unsafe.
+ */
+public final class DigestChannel implements WritableByteChannel {
+
+    private final WritableByteChannel out;
+    private final MessageDigest digest;
+    private long written = 0;
+
+    /**
+     * Creates the channel.
+     * @param out receives the data, not null. Closed when this channel is closed.
+     * @param digest updated with the data actually written, not null.
+     */
+    public DigestChannel(WritableByteChannel out, MessageDigest digest) {
+        this.out = CameraUtils.requireNotNull(out, "out");
+        this.digest = CameraUtils.requireNotNull(digest, "digest");
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        final ByteBuffer view = src.duplicate();
+        final int result = out.write(src);
+        // digest only the bytes the target accepted.
+        view.limit(view.position() + result);
+        digest.update(view);
+        written += result;
+        return result;
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    public MessageDigest getDigest() {
+        return digest;
+    }
+
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Software autofocus: steps the manual focus drive, grabs a live-view preview at each step, scores its sharpness and finally drives
+ * the focus back to the sharpest position.
+ * <p></p>
+ * The drive is relative: each step moves the focus by the same amount, so positions are expressed as the number of steps from
+ * the position at which the sweep started. The camera must be in the live-view mode with manual focus drive enabled (for Canon
+ * bodies this means the lens switched to AF and live view active).
+ * <p></p>
+ * To keep up with the live view, the previews are decoded straight from the native memory and only the region of interest is
+ * decoded, into an image and a luma plane reused across the steps.
+ */
+public final class FocusSweep {
+
+    /**
+     * The widget which drives the focus on Canon and Nikon bodies.
+     */
+    public static final String MANUAL_FOCUS_DRIVE = "/actions/manualfocusdrive";
+    private final Camera camera;
+    private final String widget;
+    private final Object towardsNear;
+    private final Object towardsFar;
+    private int settleFrames = 1;
+    private int[] luma = null;
+    private ImageReader reader = null;
+    /**
+     * The decoded region of interest, reused while the region size stays the same.
+     */
+    private BufferedImage region = null;
+    private int[] fallbackPixels = null;
+
+    /**
+     * Creates the sweep.
+     * @param camera the initialized camera, not null.
+     * @param widget the focus drive widget name, not null.
+     * @param towardsNear the widget value which moves the focus by one step towards near, not null.
+     * @param towardsFar the widget value which moves the focus by one step towards far, not null.
+     */
+    public FocusSweep(Camera camera, String widget, Object towardsNear, Object towardsFar) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        this.widget = CameraUtils.requireNotNull(widget, "widget");
+        this.towardsNear = CameraUtils.requireNotNull(towardsNear, "towardsNear");
+        this.towardsFar = CameraUtils.requireNotNull(towardsFar, "towardsFar");
+    }
+
+    /**
+     * Creates the sweep for the {@link #MANUAL_FOCUS_DRIVE} widget: uses the "Near 2"/"Far 2" choices on Canon-style radio
+     * widgets, and a step of given size on Nikon-style range widgets.
+     * @param camera the initialized camera, not null.
+     * @param rangeStep the drive step for range widgets, ignored for radio widgets.
+     * @return the sweep, never null.
+     * @throws IllegalArgumentException if the camera does not have the widget.
+     */
+    public static FocusSweep forManualFocusDrive(Camera camera, float rangeStep) {
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            if (!cfg.getNames().contains(MANUAL_FOCUS_DRIVE)) {
+                throw new IllegalArgumentException("Parameter camera: invalid value " + camera + ": does not support " + MANUAL_FOCUS_DRIVE);
+            }
+            final CameraWidgets.WidgetTypeEnum type = cfg.getType(MANUAL_FOCUS_DRIVE);
+            if (type == CameraWidgets.WidgetTypeEnum.Range) {
+                return new FocusSweep(camera, MANUAL_FOCUS_DRIVE, -Math.abs(rangeStep), Math.abs(rangeStep));
+            }
+            final List<String> choices = cfg.listChoices(MANUAL_FOCUS_DRIVE);
+            return new FocusSweep(camera, MANUAL_FOCUS_DRIVE, pick(choices, "Near 2", "Near 1"), pick(choices, "Far 2", "Far 1"));
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    private static String pick(List<String> choices, String... preferred) {
+        for (final String p : preferred) {
+            if (choices.contains(p)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("Parameter choices: invalid value " + choices + ": none of " + Arrays.toString(preferred));
+    }
+
+    /**
+     * Sets the number of previews discarded after each focus move, to let the live view catch up with the lens. Defaults to 1.
+     * @param settleFrames 0 or greater.
+     */
+    public void setSettleFrames(int settleFrames) {
+        if (settleFrames < 0) {
+            throw new IllegalArgumentException("Parameter settleFrames: invalid value " + settleFrames + ": must not be negative");
+        }
+        this.settleFrames = settleFrames;
+    }
+
+    /**
+     * Scores the current position, then moves the focus <code>steps</code> times towards far, scoring each position. Finally the
+     * focus is driven back to the sharpest position.
+     * @param steps the number of steps, 1 or greater.
+     * @param roi the region of interest of the preview, null for the whole preview.
+     * @return the sweep result, never null.
+     */
+    public Result sweep(int steps, Rectangle roi) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("Parameter steps: invalid value " + steps + ": must be 1 or greater");
+        }
+        final double[] scores = new double[steps + 1];
+        final long start = System.nanoTime();
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            scores[0] = score(roi);
+            int best = 0;
+            for (int i = 1; i <= steps; i++) {
+                drive(cfg, towardsFar);
+                scores[i] = score(roi);
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            for (int i = steps; i > best; i--) {
+                drive(cfg, towardsNear);
+            }
+            return new Result(scores, best, System.nanoTime() - start);
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+    }
+
+    private void drive(CameraWidgets cfg, Object value) {
+        cfg.setValue(widget, value);
+        // libgphoto2 does not mark the widget changed when the same value is set again.
+        cfg.setChanged(widget, true);
+        // only the drive: a full set_config per step would rewrite the whole configuration.
+        cfg.apply(Collections.singleton(widget));
+    }
+
+    private double score(Rectangle roi) {
+        for (int i = 0; i < settleFrames; i++) {
+            camera.capturePreview().close();
+        }
+        final CameraFile preview = camera.capturePreview();
+        final Rectangle r;
+        final int[] rgb;
+        try {
+            r = decode(preview.getByteBuffer(), roi);
+            rgb = fallbackPixels != null ? fallbackPixels : ((DataBufferInt) region.getRaster().getDataBuffer()).getData();
+        } catch (IOException ex) {
+            throw new GPhotoException("Failed to decode the preview: " + ex, ex, GPhoto2Native.GP_ERROR_CORRUPTED_DATA);
+        } finally {
+            CameraUtils.closeQuietly(preview);
+        }
+        luma = Sharpness.toLuma(rgb, r.width, new Rectangle(0, 0, r.width, r.height), luma);
+        return Sharpness.laplacianVariance(luma, r.width, r.height);
+    }
+
+    /**
+     * Decodes the region of interest of a JPEG preview into {@link #region}, or into {@link #fallbackPixels} if the JPEG color
+     * space cannot be decoded into an RGB image.
+     * @return the decoded region, clipped to the preview.
+     */
+    private Rectangle decode(ByteBuffer jpeg, Rectangle roi) throws IOException {
+        if (reader == null) {
+            final Iterator<ImageReader> i = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!i.hasNext()) {
+                throw new IllegalStateException("No JPEG decoder available");
+            }
+            reader = i.next();
+        }
+        final BufferInputStream in = new BufferInputStream(jpeg);
+        try {
+            reader.setInput(in, true, true);
+            final int w = reader.getWidth(0);
+            final int h = reader.getHeight(0);
+            final Rectangle r = roi == null ? new Rectangle(0, 0, w, h) : roi.intersection(new Rectangle(0, 0, w, h));
+            if (r.isEmpty()) {
+                throw new IllegalArgumentException("Parameter roi: invalid value " + roi + ": outside of the " + w + "x" + h + " preview");
+            }
+            if (region == null || region.getWidth() != r.width || region.getHeight() != r.height) {
+                region = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+            }
+            final ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(r);
+            param.setDestination(region);
+            fallbackPixels = null;
+            try {
+                reader.read(0, param);
+            } catch (IllegalArgumentException ex) {
+                // the JPEG color space is not compatible with the RGB destination; decode into a new image and copy.
+                param.setDestination(null);
+                in.seek(0);
+                reader.setInput(in, true, true);
+                final BufferedImage img = reader.read(0, param);
+                fallbackPixels = img.getRGB(0, 0, r.width, r.height, null, 0, r.width);
+            }
+            return r;
+        } finally {
+            reader.setInput(null);
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the JPEG data straight from the buffer, typically backed by the native memory of the preview, without a copy.
+     */
+    private static final class BufferInputStream extends ImageInputStreamImpl {
+
+        private final ByteBuffer data;
+
+        BufferInputStream(ByteBuffer data) {
+            this.data = data.duplicate();
+        }
+
+        @Override
+        public int read() {
+            if (streamPos >= data.limit()) {
+                return -1;
+            }
+            bitOffset = 0;
+            return data.get((int) streamPos++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            final int n = (int) Math.min(len, data.limit() - streamPos);
+            if (n <= 0) {
+                return -1;
+            }
+            bitOffset = 0;
+            data.position((int) streamPos);
+            data.get(b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return data.limit();
+        }
+    }
+
+    /**
+     * The result of the sweep.
+     */
+    public static final class Result {
+
+        /**
+         * The sharpness score of each position; index 0 is the starting position.
+         */
+        public final double[] scores;
+        /**
+         * The sharpest position, in steps from the starting position. The focus was left at this position.
+         */
+        public final int bestPosition;
+        /**
+         * The duration of the sweep, in nanoseconds.
+         */
+        public final long durationNanos;
+
+        Result(double[] scores, int bestPosition, long durationNanos) {
+            this.scores = scores;
+            this.bestPosition = bestPosition;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "FocusSweep.Result{best=" + bestPosition + ", scores=" + Arrays.toString(scores) + ", " + durationNanos / 1000000 + "ms}";
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads files and computes their SHA-256 digest in the same pass which writes them to the disk, so that no read-back pass is
+ * needed to verify them. The camera transfers one file at a time on the caller thread; writing and hashing run on a thread pool,
+ * so the previous files are hashed while the next one is transferred.
+ * <p></p>
+ * With a {@link ContentStore}, files the store has seen before are recognized by their camera-side identity (which needs both the
+ * size and the modification time, see {@link ContentStore#keyOf(CameraFile.Path, CameraFile.Info)}) and not transferred at
+ * all, and files whose content is already stored are discarded after the transfer. Files larger than the streaming threshold are
+ * streamed by {@link Camera#download(CameraFile.Path, java.nio.channels.WritableByteChannel, int)} and hashed chunk by chunk as
+ * they are received, on the caller thread.
+ * <p></p>
+ * {@link #download(CameraFile.Path)} must be invoked from the thread which owns the camera.
+ */
+public final class HashingDownloader implements Closeable {
+
+    /**
+     * The outcome of a single download.
+     */
+    public static final class Result {
+
+        public final CameraFile.Path path;
+        /**
+         * The local file, never null. With a {@link ContentStore}, the stored file, which may have been downloaded earlier.
+         */
+        public final File file;
+        /**
+         * The SHA-256 digest of the file.
+         */
+        public final byte[] digest;
+        /**
+         * The number of bytes transferred from the camera, 0 if the file was skipped.
+         */
+        public final long transferred;
+        /**
+         * True if the content was already in the {@link ContentStore}: either the transfer was skipped or the downloaded copy was
+         * discarded.
+         */
+        public final boolean duplicate;
+
+        Result(CameraFile.Path path, File file, byte[] digest, long transferred, boolean duplicate) {
+            this.path = path;
+            this.file = file;
+            this.digest = digest;
+            this.transferred = transferred;
+            this.duplicate = duplicate;
+        }
+
+        /**
+         * @return the digest as a lowercase hexadecimal string, never null.
+         */
+        public String getDigestHex() {
+            return toHex(digest);
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + path + " -> " + file + ", sha256=" + getDigestHex() + ", transferred=" + transferred + (duplicate ? ", duplicate" : "") + '}';
+        }
+    }
+    /**
+     * Files larger than this are streamed rather than downloaded into memory.
+     */
+    public static final long DEFAULT_STREAMING_THRESHOLD = 64L * 1024 * 1024;
+    private final Camera camera;
+    private final File dir;
+    private final ContentStore store;
+    private final ExecutorService executor;
+    private final Semaphore pending;
+    private final long streamingThreshold;
+    private final LatencyStats writeStats = new LatencyStats("hash-write");
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong skippedFiles = new AtomicLong();
+    private final AtomicLong duplicateFiles = new AtomicLong();
+
+    private HashingDownloader(Camera camera, File dir, ContentStore store, int threads, int maxPendingFiles, long streamingThreshold) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        this.dir = dir;
+        this.store = store;
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parameter threads: invalid value " + threads + ": must be 1 or greater");
+        }
+        if (maxPendingFiles < 1) {
+            throw new IllegalArgumentException("Parameter maxPendingFiles: invalid value " + maxPendingFiles + ": must be 1 or greater");
+        }
+        this.streamingThreshold = streamingThreshold;
+        pending = new Semaphore(maxPendingFiles);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-hashing-downloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates a downloader which saves the files under their camera file names.
+     * @param camera the initialized camera, not null.
+     * @param dir the target directory, not null. Existing files are overwritten.
+     * @param threads the number of threads writing and hashing the files in parallel.
+     * @param maxPendingFiles the maximum number of downloaded files held in memory while waiting to be written; bounds the memory use.
+     */
+    public HashingDownloader(Camera camera, File dir, int threads, int maxPendingFiles) {
+        this(camera, CameraUtils.requireNotNull(dir, "dir"), null, threads, maxPendingFiles, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    /**
+     * Creates a downloader which saves the files to a content-addressed store, skipping files the store already holds.
+     * @param camera the initialized camera, not null.
+     * @param store the store, not null.
+     * @param threads the number of threads writing and hashing the files in parallel.
+     * @param maxPendingFiles the maximum number of downloaded files held in memory while waiting to be written; bounds the memory use.
+     */
+    public HashingDownloader(Camera camera, ContentStore store, int threads, int maxPendingFiles) {
+        this(camera, null, CameraUtils.requireNotNull(store, "store"), threads, maxPendingFiles, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    /**
+     * Downloads a file. Returns once the file was transferred from the camera; the writing and hashing completes in the background.
+     * @param path the path of the file on the camera, not null.
+     * @return the result, completed when the file is written and hashed. Fails with {@link java.util.concurrent.ExecutionException}
+     * if the file cannot be written.
+     * @throws GPhotoException if the file cannot be transferred.
+     * @throws IOException if a streamed file cannot be written.
+     * @throws InterruptedException if interrupted while waiting for a free slot, see <code>maxPendingFiles</code>.
+     */
+    public Future<Result> download(final CameraFile.Path path) throws IOException, InterruptedException {
+        CameraUtils.requireNotNull(path, "path");
+        final CameraFile.Info info = getInfo(path);
+        final String key = info == null || store == null ? null : ContentStore.keyOf(path, info);
+        final String known = store == null ? null : store.getDigest(key);
+        if (known != null) {
+            skippedFiles.incrementAndGet();
+            return completed(new Result(path, store.getFile(known), fromHex(known), 0, true));
+        }
+        if (info != null && info.size > streamingThreshold) {
+            return completed(stream(path, key));
+        }
+        pending.acquire();
+        boolean submitted = false;
+        try {
+            final CameraFile file = camera.download(path);
+            try {
+                final Future<Result> result = executor.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        try {
+                            return write(path, file, key);
+                        } finally {
+                            file.close();
+                            pending.release();
+                        }
+                    }
+                });
+                submitted = true;
+                return result;
+            } finally {
+                if (!submitted) {
+                    file.close();
+                }
+            }
+        } finally {
+            if (!submitted) {
+                pending.release();
+            }
+        }
+    }
+
+    private CameraFile.Info getInfo(CameraFile.Path path) {
+        try {
+            return camera.getFileInfo(path);
+        } catch (GPhotoException ex) {
+            if (ex.result != GPhoto2Native.GP_ERROR_NOT_SUPPORTED) {
+                throw ex;
+            }
+            return null;
+        }
+    }
+
+    private File newTarget(CameraFile.Path path) throws IOException {
+        return store != null ? store.newTempFile() : new File(dir, path.filename);
+    }
+
+    private Result write(CameraFile.Path path, CameraFile file, String key) throws IOException {
+        final long start = System.nanoTime();
+        final MessageDigest digest = newDigest();
+        final File target = newTarget(path);
+        final long size = file.save(target, digest);
+        final Result result = finish(path, target, digest.digest(), size, key);
+        writeStats.recordSince(start);
+        return result;
+    }
+
+    private Result stream(CameraFile.Path path, String key) throws IOException {
+        final long start = System.nanoTime();
+        final MessageDigest digest = newDigest();
+        final File target = newTarget(path);
+        final FileOutputStream out = new FileOutputStream(target);
+        final long size;
+        try {
+            size = camera.download(path, new DigestChannel(out.getChannel(), digest), 1024 * 1024);
+        } finally {
+            out.close();
+        }
+        final Result result = finish(path, target, digest.digest(), size, key);
+        writeStats.recordSince(start);
+        return result;
+    }
+
+    private Result finish(CameraFile.Path path, File target, byte[] digest, long size, String key) throws IOException {
+        bytesWritten.addAndGet(size);
+        if (store == null) {
+            return new Result(path, target, digest, size, false);
+        }
+        final String hex = toHex(digest);
+        final boolean isNew = store.commit(target, path.filename, hex, key);
+        if (!isNew) {
+            duplicateFiles.incrementAndGet();
+        }
+        return new Result(path, store.getFile(hex), digest, size, !isNew);
+    }
+
+    private static <T> Future<T> completed(final T value) {
+        final FutureTask<T> result = new FutureTask<T>(new Callable<T>() {
+            public T call() {
+                return value;
+            }
+        });
+        result.run();
+        return result;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256.
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            result[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(result);
+    }
+
+    static byte[] fromHex(String hex) {
+        final byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return result;
+    }
+
+    /**
+     * Time spent writing and hashing a file, per file.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getWriteStats() {
+        return writeStats;
+    }
+
+    /**
+     * @return the number of bytes transferred, written and hashed.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the number of files which the store recognized before the transfer and which were thus not transferred.
+     */
+    public long getSkippedFileCount() {
+        return skippedFiles.get();
+    }
+
+    /**
+     * @return the number of files which were transferred but whose content the store already held.
+     */
+    public long getDuplicateFileCount() {
+        return duplicateFiles.get();
+    }
+
+    /**
+     * Waits until the files downloaded so far are written, then stops the threads. Does not close the camera nor the store.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+/**
+ * Collects durations of an operation: count, min, max, mean and a histogram with power-of-two buckets. Thread-safe.
+ */
+public final class LatencyStats {
+
+    private final String name;
+    private final long[] buckets = new long[64];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos = 0;
+
+    /**
+     * Creates new statistics.
+     * @param name displayable name of the measured operation, not null.
+     */
+    public LatencyStats(String name) {
+        this.name = CameraUtils.requireNotNull(name, "name");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a single duration.
+     * @param nanos the duration in nanoseconds. Negative values are recorded as 0.
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        count++;
+        totalNanos += nanos;
+        minNanos = Math.min(minNanos, nanos);
+        maxNanos = Math.max(maxNanos, nanos);
+        buckets[bucketOf(nanos)]++;
+    }
+
+    /**
+     * Records the time elapsed since given moment.
+     * @param startNanos the {@link System#nanoTime()} when the operation started.
+     * @return the recorded duration in nanoseconds.
+     */
+    public long recordSince(long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    private static int bucketOf(long nanos) {
+        return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the shortest recorded duration, 0 if nothing was recorded yet.
+     */
+    public synchronized long getMinNanos() {
+        return count == 0 ? 0 : minNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return the mean duration, 0 if nothing was recorded yet.
+     */
+    public synchronized long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Returns an upper estimate of given percentile: the upper bound of the histogram bucket containing the percentile, capped by
+     * the maximum recorded value.
+     * @param percentile 0..100
+     * @return the percentile in nanoseconds, 0 if nothing was recorded yet.
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Parameter percentile: invalid value " + percentile + ": must be 0..100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                final long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(upper, maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * Returns a copy of the histogram. Bucket <code>i</code> counts durations in the range of 2<sup>i</sup>..2<sup>i+1</sup>-1
+     * nanoseconds; bucket 0 also counts zero durations.
+     * @return the histogram, never null, 64 items.
+     */
+    public synchronized long[] getHistogram() {
+        return buckets.clone();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public synchronized void reset() {
+        count = 0;
+        totalNanos = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = 0;
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1000000d);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + "{count=" + count + ", min=" + millis(getMinNanos()) + ", mean=" + millis(getMeanNanos()) + ", p50<=" + millis(getPercentileNanos(50))
+                + ", p99<=" + millis(getPercentileNanos(99)) + ", max=" + millis(maxNanos) + '}';
+    }
+}
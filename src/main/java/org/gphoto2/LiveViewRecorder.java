@@ -0,0 +1,233 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the live view at a fixed frame rate into segmented Motion JPEG files on disk, for cameras whose movie mode is not
+ * available or not wanted. Each segment is a plain concatenation of JPEG frames (readable e.g. by <code>ffmpeg -f mjpeg
+ * -framerate N</code>), so a crash loses at most the frame being written.
+ * <p></p>
+ * Frames are scheduled on absolute deadlines, so the recording time is exact regardless of the preview capture time. When a
+ * preview is not captured by its deadline, the previous frame is repeated for the missed slots to keep the frame rate constant.
+ * The frames are written straight from the native buffer; memory use does not grow with the recording length.
+ */
+public final class LiveViewRecorder implements Closeable {
+
+    private static final Logger log = Logger.getLogger(LiveViewRecorder.class.getName());
+    private static final long SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private final Camera camera;
+    private final File dir;
+    private final String prefix;
+    private final long periodNanos;
+    private final long framesPerSegment;
+    private final List<File> segments = new ArrayList<File>();
+    private final LatencyStats captureStats = new LatencyStats("liveview-capture");
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong repeatedFrames = new AtomicLong();
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile Throwable failure;
+
+    /**
+     * Creates the recorder.
+     * @param camera the initialized camera. Used exclusively by the recorder thread until the recorder is closed.
+     * @param dir the directory for the segments, not null.
+     * @param prefix the segment file name prefix, not null. The segments are named prefix-00000.mjpg, prefix-00001.mjpg etc.
+     * @param framesPerSecond the frame rate; most cameras deliver 15 to 30 previews per second.
+     * @param segmentSeconds the length of a segment, in seconds of the recording.
+     */
+    public LiveViewRecorder(Camera camera, File dir, String prefix, double framesPerSecond, int segmentSeconds) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        this.dir = CameraUtils.requireNotNull(dir, "dir");
+        this.prefix = CameraUtils.requireNotNull(prefix, "prefix");
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("Parameter framesPerSecond: invalid value " + framesPerSecond + ": must be positive");
+        }
+        if (segmentSeconds < 1) {
+            throw new IllegalArgumentException("Parameter segmentSeconds: invalid value " + segmentSeconds + ": must be 1 or greater");
+        }
+        periodNanos = (long) (1e9 / framesPerSecond);
+        framesPerSegment = Math.max(1, Math.round(framesPerSecond * segmentSeconds));
+    }
+
+    /**
+     * Starts recording.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Invalid state: already started");
+        }
+        running = true;
+        thread = new Thread("gphoto2-liveview-recorder") {
+            @Override
+            public void run() {
+                try {
+                    record();
+                } catch (Throwable t) {
+                    failure = t;
+                    log.log(Level.SEVERE, "Live view recording failed", t);
+                }
+            }
+        };
+        thread.start();
+    }
+
+    private void record() throws IOException {
+        final long start = System.nanoTime();
+        long slot = 0;
+        FileChannel segment = null;
+        CameraFile last = null;
+        try {
+            while (running) {
+                final long captureStart = System.nanoTime();
+                CameraFile cf = null;
+                try {
+                    cf = camera.capturePreview();
+                    captureStats.recordSince(captureStart);
+                } catch (GPhotoException ex) {
+                    log.log(Level.FINE, "Failed to capture a preview, repeating the previous frame", ex);
+                }
+                if (cf != null) {
+                    if (last != null) {
+                        last.close();
+                    }
+                    last = cf;
+                }
+                if (last == null) {
+                    // no frame yet to repeat; retry at the next slot rather than hammering a camera which keeps failing.
+                    waitUntil(start + ((System.nanoTime() - start) / periodNanos + 1) * periodNanos);
+                    continue;
+                }
+                // the slot the frame belongs to; slots missed meanwhile repeat the previous frame.
+                final long current = Math.max(slot, (System.nanoTime() - start) / periodNanos);
+                for (; slot <= current; slot++) {
+                    if (slot % framesPerSegment == 0) {
+                        if (segment != null) {
+                            segment.close();
+                        }
+                        segment = openSegment(slot / framesPerSegment);
+                    }
+                    final ByteBuffer data = last.getByteBuffer();
+                    while (data.hasRemaining()) {
+                        segment.write(data);
+                    }
+                    frames.incrementAndGet();
+                    if (cf == null || slot < current) {
+                        repeatedFrames.incrementAndGet();
+                    }
+                }
+                waitUntil(start + slot * periodNanos);
+            }
+        } finally {
+            if (last != null) {
+                last.close();
+            }
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    private FileChannel openSegment(long index) throws IOException {
+        final File f = new File(dir, String.format("%s-%05d.mjpg", prefix, index));
+        synchronized (segments) {
+            segments.add(f);
+        }
+        return new FileOutputStream(f).getChannel();
+    }
+
+    private void waitUntil(long deadline) {
+        while (running) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return the segment files written so far, never null.
+     */
+    public List<File> getSegments() {
+        synchronized (segments) {
+            return Collections.unmodifiableList(new ArrayList<File>(segments));
+        }
+    }
+
+    /**
+     * @return the number of frames written, including the repeated ones.
+     */
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    /**
+     * @return the number of frames which repeat the previous preview because a new one was not captured in time.
+     */
+    public long getRepeatedFrameCount() {
+        return repeatedFrames.get();
+    }
+
+    public LatencyStats getCaptureStats() {
+        return captureStats;
+    }
+
+    /**
+     * @return the failure which stopped the recording, null if none.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops recording and closes the last segment. Further invocations do nothing.
+     */
+    public void close() {
+        final Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Forwards libgphoto2 log messages to the <code>org.gphoto2.CameraUtils</code> {@link Logger}. The native domain (camlib or
+ * module name, e.g. <code>ptp2/library.c</code>) becomes the source class name of the record.
+ * <p></p>
+ * The camera thread only copies the raw message bytes into a bounded queue; the strings are built and logged by a background
+ * thread. Messages above the configured level are filtered by libgphoto2 itself and never even formatted. When the queue is
+ * full, messages are dropped and counted rather than blocking the camera thread.
+ * <p></p>
+ * The native level is derived from the logger level when {@link #install()} is invoked: <code>GP_LOG_ERROR</code> maps to
+ * {@link Level#WARNING}, <code>GP_LOG_VERBOSE</code> to {@link Level#FINE}, <code>GP_LOG_DEBUG</code> to {@link Level#FINER} and
+ * <code>GP_LOG_DATA</code> to {@link Level#FINEST}. Call {@link #install()} again after changing the logger level.
+ */
+public final class NativeLog {
+
+    private static final Logger log = Logger.getLogger(CameraUtils.class.getName());
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final Level[] LEVELS = {Level.WARNING, Level.FINE, Level.FINER, Level.FINEST};
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    /**
+     * Reports the handler failures. The default error manager prints the first failure only, so a broken handler does not flood
+     * the standard error with a stack trace per libgphoto2 message.
+     */
+    private static final ErrorManager errorManager = new ErrorManager();
+    /**
+     * The native domain strings are static constants: cache them by address instead of decoding them for every message.
+     */
+    private static final Map<Long, String> domains = new HashMap<Long, String>();
+    /**
+     * Strongly referenced for as long as it is registered, otherwise JNA would free the native trampoline.
+     */
+    private static final GPhoto2Native.GPLogFunc CALLBACK = new GPhoto2Native.GPLogFunc() {
+        public void log(int level, Pointer domain, Pointer str, Pointer data) {
+            onMessage(level, domain, str);
+        }
+    };
+    private static volatile int maxLevel = -1;
+    private static int funcId = -1;
+    private static Thread worker = null;
+
+    private NativeLog() {
+        throw new AssertionError();
+    }
+
+    private static final class Message {
+
+        final int level;
+        final long domain;
+        final byte[] text;
+        final long millis;
+
+        Message(int level, long domain, byte[] text) {
+            this.level = level;
+            this.domain = domain;
+            this.text = text;
+            this.millis = System.currentTimeMillis();
+        }
+    }
+
+    private static void onMessage(int level, Pointer domain, Pointer str) {
+        // libgphoto2 dispatches up to the highest level among all registered functions, filter again.
+        if (level > maxLevel || str == null) {
+            return;
+        }
+        final int length = (int) str.indexOf(0, (byte) 0);
+        final Message m = new Message(level, Pointer.nativeValue(domain), str.getByteArray(0, length));
+        synchronized (domains) {
+            if (domain != null && !domains.containsKey(m.domain)) {
+                domains.put(m.domain, domain.getString(0));
+            }
+        }
+        if (!queue.offer(m)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Computes the highest native level accepted by the logger.
+     * @return one of the GP_LOG_* constants, -1 if the logger accepts none.
+     */
+    private static int computeLevel() {
+        for (int i = LEVELS.length - 1; i >= 0; i--) {
+            if (log.isLoggable(LEVELS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts forwarding native messages, at the level derived from the current logger level. Re-registers the native log function
+     * when already installed, to pick up a changed logger level.
+     */
+    public static synchronized void install() {
+        uninstall0();
+        final int level = computeLevel();
+        if (level < 0) {
+            return;
+        }
+        funcId = CameraUtils.check(GPhoto2Native.INSTANCE.gp_log_add_func(level, CALLBACK, null), "gp_log_add_func");
+        maxLevel = level;
+        if (worker == null) {
+            worker = new Thread("gphoto2-native-log") {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops forwarding native messages. Messages already queued are still logged.
+     */
+    public static synchronized void uninstall() {
+        uninstall0();
+    }
+
+    private static void uninstall0() {
+        maxLevel = -1;
+        if (funcId >= 0) {
+            CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_log_remove_func(funcId), "gp_log_remove_func");
+            funcId = -1;
+        }
+    }
+
+    public static synchronized boolean isInstalled() {
+        return funcId >= 0;
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue was full.
+     * @return 0 or greater.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of messages lost because a log handler failed to publish them.
+     * @return 0 or greater.
+     */
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    private static void drain() {
+        final List<Message> batch = new ArrayList<Message>();
+        // the drops already reported; the counter itself keeps the total for getDroppedCount().
+        long reported = 0;
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (final Message m : batch) {
+                publish(m);
+            }
+            batch.clear();
+            final long total = dropped.get();
+            if (total > reported) {
+                log.warning("Dropped " + (total - reported) + " libgphoto2 log messages, the log queue was full");
+                reported = total;
+            }
+        }
+    }
+
+    // LogRecord.setInstant() needs Java 9, the build targets 1.8.
+    @SuppressWarnings("deprecation")
+    private static void publish(Message m) {
+        final String domain;
+        synchronized (domains) {
+            domain = domains.get(m.domain);
+        }
+        final String text;
+        try {
+            text = new String(m.text, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        final LogRecord record = new LogRecord(LEVELS[m.level], text);
+        record.setLoggerName(log.getName());
+        record.setSourceClassName(domain);
+        record.setMillis(m.millis);
+        try {
+            log.log(record);
+        } catch (Throwable t) {
+            // never let a broken handler kill the thread.
+            failed.incrementAndGet();
+            errorManager.error("Failed to publish a libgphoto2 log message", t instanceof Exception ? (Exception) t : new RuntimeException(t),
+                    ErrorManager.WRITE_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves blocking libgphoto2 calls off virtual threads. A native call pins the virtual thread to its carrier for the whole
+ * duration of the call, and a capture or a download takes seconds: a few such calls starve all other virtual threads of the
+ * service. {@link GPhoto2Native#INSTANCE} is therefore a proxy which hands the blocking calls made from virtual threads to a
+ * bounded set of platform threads, the lanes, and parks the virtual thread until the call completes.
+ * <p></p>
+ * All <code>gp_camera_*</code> calls of a camera go to the same lane, so they stay serialized, as libgphoto2 requires; a new camera
+ * gets the lane with the fewest cameras, so up to {@link #getLaneCount()} cameras never share a lane. Other blocking
+ * calls (<code>gp_file_save</code>, the port and abilities list loading) are spread over the lanes. Non-blocking calls (widgets,
+ * lists, file data access) are always invoked directly. The {@link OperationContext} scope of the calling thread, and its
+ * interrupt, are propagated to the lane. Native callbacks run on the lane and may call libgphoto2 again; such calls are invoked
+ * directly.
+ * <p></p>
+ * The mode is set by the <code>gphoto2.offload</code> system property (<code>never</code>, <code>virtual</code> - the default,
+ * <code>always</code>) or by {@link #setMode(Mode)}; the number of lanes by <code>gphoto2.offload.lanes</code>, defaulting to twice the
+ * number of processors but at least 16; the lanes mostly wait for USB I/O. The lanes are created on first use. Thread-safe.
+ * <p></p>
+ * The proxy dispatch costs a reflective call and an argument array per native call. It is therefore installed only if calls may
+ * ever be offloaded: when the library is loaded in the {@link Mode#Never} mode, or on Java older than 21 in the
+ * {@link Mode#VirtualThreads} mode, {@link #wrap(Class, Object)} returns the library itself and a later {@link #setMode(Mode)}
+ * has no effect on it.
+ * <p></p>
+ * Calls which pin a carrier are not measured: in the {@link Mode#Never} mode they bypass the proxy altogether.
+ */
+public final class NativeOffload {
+
+    private static final Logger log = Logger.getLogger(NativeOffload.class.getName());
+
+    public static enum Mode {
+
+        /**
+         * Blocking calls are invoked on the calling thread; virtual threads pin their carrier.
+         */
+        Never,
+        /**
+         * Blocking calls made by virtual threads are offloaded, platform threads invoke them directly.
+         */
+        VirtualThreads,
+        /**
+         * All blocking calls are offloaded. Serializes the calls per camera even for platform threads.
+         */
+        Always
+    }
+    private static final Set<String> BLOCKING = new HashSet<String>(Arrays.asList("gp_file_save", "gp_port_info_list_load", "gp_abilities_list_load",
+            "gp_abilities_list_detect"));
+    private static final Method IS_VIRTUAL = findIsVirtual();
+    private static volatile Mode mode = parseMode(System.getProperty("gphoto2.offload", "virtual"));
+    private static final int LANE_COUNT = Math.max(1, Integer.getInteger("gphoto2.offload.lanes", Math.max(16, 2 * Runtime.getRuntime().availableProcessors())));
+    private static volatile ExecutorService[] lanes;
+    private static final ConcurrentMap<Method, Boolean> blockingMethods = new ConcurrentHashMap<Method, Boolean>();
+    private static final AtomicInteger nextLane = new AtomicInteger();
+    private static final ConcurrentMap<Long, Integer> cameraLanes = new ConcurrentHashMap<Long, Integer>();
+    /**
+     * Number of cameras assigned to each lane. Guarded by itself.
+     */
+    private static final int[] camerasPerLane = new int[LANE_COUNT];
+    private static final AtomicLong offloadedCalls = new AtomicLong();
+    private static final LatencyStats queueStats = new LatencyStats("offload-queue");
+    private static final LatencyStats callStats = new LatencyStats("offload-call");
+
+    private NativeOffload() {
+        throw new AssertionError();
+    }
+
+    private static Method findIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException ex) {
+            // Java older than 21: there are no virtual threads.
+            return null;
+        }
+    }
+
+    private static Mode parseMode(String value) {
+        if ("never".equalsIgnoreCase(value)) {
+            return Mode.Never;
+        }
+        if ("always".equalsIgnoreCase(value)) {
+            return Mode.Always;
+        }
+        if (!"virtual".equalsIgnoreCase(value)) {
+            log.warning("Invalid gphoto2.offload value " + value + ", using virtual");
+        }
+        return Mode.VirtualThreads;
+    }
+
+    /**
+     * Checks whether given thread is a virtual thread.
+     * @param thread the thread, not null.
+     * @return true if virtual; always false on Java older than 21.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode mode) {
+        NativeOffload.mode = CameraUtils.requireNotNull(mode, "mode");
+    }
+
+    /**
+     * Wraps a native library with the offloading proxy. Used to create {@link GPhoto2Native#INSTANCE}. The blocking calls are
+     * recognized by the libgphoto2 function names.
+     * @param type the library interface, not null.
+     * @param delegate the library, not null.
+     * @param <T> the library interface.
+     * @return the proxy; the delegate itself if the current mode can never offload a call.
+     */
+    public static <T> T wrap(Class<T> type, final T delegate) {
+        CameraUtils.requireNotNull(delegate, "delegate");
+        final Mode m = mode;
+        if (m == Mode.Never || (m == Mode.VirtualThreads && IS_VIRTUAL == null)) {
+            log.fine("Native calls are never offloaded in mode " + m + ", using " + type.getSimpleName() + " directly");
+            return delegate;
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return call(delegate, method, args);
+                }
+                final Thread thread = Thread.currentThread();
+                if (thread instanceof LaneThread || !isBlocking(method)) {
+                    return call(delegate, method, args);
+                }
+                final Mode m = mode;
+                if (m == Mode.Always || (m == Mode.VirtualThreads && isVirtual(thread))) {
+                    return offload(delegate, method, args, thread);
+                }
+                return call(delegate, method, args);
+            }
+        }));
+    }
+
+    private static boolean isBlocking(Method method) {
+        Boolean result = blockingMethods.get(method);
+        if (result == null) {
+            final String name = method.getName();
+            result = name.startsWith("gp_camera_") || BLOCKING.contains(name);
+            blockingMethods.put(method, result);
+        }
+        return result;
+    }
+
+    private static Object call(Object delegate, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static Object offload(final Object delegate, final Method method, final Object[] args, Thread caller) throws Throwable {
+        final OperationContext.Offloaded context = new OperationContext.Offloaded(caller, OperationContext.current());
+        final long queued = System.nanoTime();
+        final FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                final long start = queueStats.recordSince(queued) + queued;
+                OperationContext.enterOffloaded(context);
+                try {
+                    return NativeOffload.call(delegate, method, args);
+                } catch (Exception ex) {
+                    throw ex;
+                } catch (Error ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    throw new RuntimeException(t);
+                } finally {
+                    OperationContext.exitOffloaded();
+                    callStats.recordSince(start);
+                }
+            }
+        });
+        getLane(method, args).execute(task);
+        offloadedCalls.incrementAndGet();
+        // the native call writes into the caller's memory: the caller must not leave before it completes. An interrupt cancels
+        // the call through the context cancel callback instead.
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                context.interrupted = true;
+            } catch (ExecutionException ex) {
+                throw ex.getCause();
+            } finally {
+                if (context.interrupted && task.isDone()) {
+                    caller.interrupt();
+                }
+            }
+        }
+    }
+
+    private static ExecutorService getLane(Method method, Object[] args) {
+        ExecutorService[] l = lanes;
+        if (l == null) {
+            synchronized (NativeOffload.class) {
+                l = lanes;
+                if (l == null) {
+                    l = new ExecutorService[LANE_COUNT];
+                    for (int i = 0; i < l.length; i++) {
+                        final int lane = i;
+                        l[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                return new LaneThread(r, "gphoto2-native-" + lane);
+                            }
+                        });
+                    }
+                    lanes = l;
+                    log.fine("Started " + l.length + " native offload lanes");
+                }
+            }
+        }
+        if (method.getName().startsWith("gp_camera_") && args != null && args.length > 0 && args[0] instanceof Pointer) {
+            // keep a camera on a single lane: libgphoto2 cameras must not be used concurrently.
+            final Long address = Pointer.nativeValue((Pointer) args[0]);
+            Integer index = cameraLanes.get(address);
+            if (index == null) {
+                index = assignCameraLane(address);
+            }
+            if (method.getName().equals("gp_camera_free")) {
+                releaseCameraLane(address);
+            }
+            return l[index];
+        }
+        return l[nextLane()];
+    }
+
+    /**
+     * Assigns the lane with the fewest cameras, so that cameras share a lane only when there are more cameras than lanes.
+     */
+    private static int assignCameraLane(Long address) {
+        synchronized (camerasPerLane) {
+            final Integer existing = cameraLanes.get(address);
+            if (existing != null) {
+                return existing;
+            }
+            int best = 0;
+            for (int i = 1; i < camerasPerLane.length; i++) {
+                if (camerasPerLane[i] < camerasPerLane[best]) {
+                    best = i;
+                }
+            }
+            camerasPerLane[best]++;
+            cameraLanes.put(address, best);
+            return best;
+        }
+    }
+
+    private static void releaseCameraLane(Long address) {
+        synchronized (camerasPerLane) {
+            final Integer index = cameraLanes.remove(address);
+            if (index != null) {
+                camerasPerLane[index]--;
+            }
+        }
+    }
+
+    private static int nextLane() {
+        return (nextLane.getAndIncrement() & Integer.MAX_VALUE) % LANE_COUNT;
+    }
+
+    /**
+     * Daemon platform thread of a lane. Calls made by the thread itself, e.g. from native callbacks, are never offloaded.
+     */
+    private static final class LaneThread extends Thread {
+
+        LaneThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+            setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+                public void uncaughtException(Thread t, Throwable e) {
+                    log.log(Level.SEVERE, "Native offload lane failed", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of lanes, i.e. the maximum number of concurrently executing offloaded calls.
+     */
+    public static int getLaneCount() {
+        return LANE_COUNT;
+    }
+
+    /**
+     * @return the number of calls executed on a lane on behalf of another thread.
+     */
+    public static long getOffloadedCount() {
+        return offloadedCalls.get();
+    }
+
+    /**
+     * Time the offloaded calls waited for their lane.
+     * @return the statistics, never null.
+     */
+    public static LatencyStats getQueueStats() {
+        return queueStats;
+    }
+
+    /**
+     * Time the offloaded calls executed on their lane.
+     * @return the statistics, never null.
+     */
+    public static LatencyStats getCallStats() {
+        return callStats;
+    }
+
+    public static String getStats() {
+        return "NativeOffload{mode=" + mode + ", lanes=" + LANE_COUNT + ", offloaded=" + getOffloadedCount() + ", " + queueStats + ", " + callStats + '}';
+    }
+}
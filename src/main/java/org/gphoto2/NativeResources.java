@@ -0,0 +1,288 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks native memory held by {@link Camera}, {@link CameraFile}, {@link CameraWidgets} and {@link CameraList} objects. When such
+ * an object is garbage-collected without being closed, its native memory is freed by a background thread and the leak is logged.
+ * <p></p>
+ * Leak tracking mode additionally records the stack trace of every allocation, so that a leak can be traced to the code which
+ * forgot to close the object. The mode is off by default since taking a stack trace is expensive; it can be turned on by
+ * {@link #setLeakTracking(boolean)} or by the <code>gphoto2.leakTracking</code> system property.
+ */
+public final class NativeResources {
+
+    private NativeResources() {
+        throw new AssertionError();
+    }
+    private static final Logger log = Logger.getLogger(NativeResources.class.getName());
+
+    /**
+     * The kind of the tracked native object, knows how to free it.
+     */
+    static enum Kind {
+
+        Camera {
+            int free(Pointer p) {
+                // also performs gp_camera_exit.
+                return GPhoto2Native.INSTANCE.gp_camera_free(p);
+            }
+        },
+        CameraFile {
+            int free(Pointer p) {
+                return GPhoto2Native.INSTANCE.gp_file_free(p);
+            }
+        },
+        CameraWidgets {
+            int free(Pointer p) {
+                return GPhoto2Native.INSTANCE.gp_widget_free(p);
+            }
+        },
+        CameraList {
+            int free(Pointer p) {
+                return GPhoto2Native.INSTANCE.gp_list_free(p);
+            }
+        };
+
+        abstract int free(Pointer p);
+    }
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+    /**
+     * Keeps the phantom references reachable until they are enqueued.
+     */
+    private static final Set<Handle> OPEN = new HashSet<Handle>();
+    private static final AtomicLong CAMERA_FILE_BYTES = new AtomicLong();
+    private static final AtomicLong LEAKED = new AtomicLong();
+    private static volatile boolean leakTracking = Boolean.getBoolean("gphoto2.leakTracking");
+
+    static {
+        final Thread t = new Thread("gphoto2-native-cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((Handle) QUEUE.remove()).leaked();
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Failed to free leaked native resource", t);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Turns the allocation site recording on or off. Affects only objects created afterwards.
+     * @param enabled true if allocation stack traces should be recorded.
+     */
+    public static void setLeakTracking(boolean enabled) {
+        leakTracking = enabled;
+    }
+
+    public static boolean isLeakTracking() {
+        return leakTracking;
+    }
+
+    /**
+     * Returns the number of native bytes held by open {@link CameraFile}s.
+     * @return bytes, 0 or greater.
+     */
+    public static long getCameraFileBytes() {
+        return CAMERA_FILE_BYTES.get();
+    }
+
+    /**
+     * Returns the number of objects which were garbage-collected without being closed.
+     * @return 0 or greater.
+     */
+    public static long getLeakCount() {
+        return LEAKED.get();
+    }
+
+    /**
+     * Returns the number of objects holding native memory which were not closed yet.
+     * @return 0 or greater.
+     */
+    public static int getOpenCount() {
+        synchronized (OPEN) {
+            return OPEN.size();
+        }
+    }
+
+    /**
+     * Describes all objects holding native memory which were not closed yet. In the leak tracking mode the description contains the
+     * allocation stack trace.
+     * @return a list of descriptions, never null, may be empty.
+     */
+    public static List<String> getOpenResources() {
+        final List<Handle> handles;
+        synchronized (OPEN) {
+            handles = new ArrayList<Handle>(OPEN);
+        }
+        final List<String> result = new ArrayList<String>(handles.size());
+        for (final Handle handle : handles) {
+            result.add(handle.describe());
+        }
+        return result;
+    }
+
+    /**
+     * Starts tracking given object.
+     * @param owner the Java object owning the native memory, not null.
+     * @param ptr the native object, not null.
+     * @param kind the kind of the native object.
+     * @return the handle, never null. Call {@link Handle#close()} to free the native memory.
+     */
+    static Handle register(Object owner, Pointer ptr, Kind kind) {
+        final Handle handle = new Handle(owner, ptr, kind);
+        synchronized (OPEN) {
+            OPEN.add(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Frees the native object, either when the owner is closed or when the owner is garbage-collected. Must not reference the owner.
+     */
+    static final class Handle extends PhantomReference<Object> {
+
+        private final Pointer ptr;
+        private final Kind kind;
+        private final Throwable allocationSite;
+        private final AtomicBoolean freed = new AtomicBoolean();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Handle(Object owner, Pointer ptr, Kind kind) {
+            super(owner, QUEUE);
+            this.ptr = ptr;
+            this.kind = kind;
+            allocationSite = leakTracking ? new Throwable(kind + " allocated here") : null;
+        }
+
+        boolean isFreed() {
+            return freed.get();
+        }
+
+        /**
+         * Sets the number of native bytes held by the object; reflected in {@link #getCameraFileBytes()}.
+         * @param newBytes bytes, 0 or greater.
+         */
+        void setBytes(long newBytes) {
+            if (freed.get()) {
+                return;
+            }
+            final long old = bytes.getAndSet(newBytes);
+            if (kind == Kind.CameraFile) {
+                CAMERA_FILE_BYTES.addAndGet(newBytes - old);
+            }
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Frees the native memory. Further invocations do nothing.
+         * @return true if the memory was freed by this call, false if it was already freed.
+         * @throws GPhotoException if the native free fails.
+         */
+        boolean close() {
+            if (!markFreed()) {
+                return false;
+            }
+            CameraUtils.check(kind.free(ptr), "free " + kind);
+            return true;
+        }
+
+        /**
+         * Frees the native memory and logs a failure. Further invocations do nothing.
+         */
+        void closeQuietly() {
+            if (markFreed()) {
+                CameraUtils.checkQuietly(kind.free(ptr), "free " + kind);
+            }
+        }
+
+        /**
+         * Marks the memory as freed, without calling the native free. Use when libgphoto2 frees the object by itself.
+         * @return true if the handle was open.
+         */
+        boolean markFreed() {
+            if (!freed.compareAndSet(false, true)) {
+                return false;
+            }
+            clear();
+            synchronized (OPEN) {
+                OPEN.remove(this);
+            }
+            setBytesFreed();
+            return true;
+        }
+
+        private void setBytesFreed() {
+            final long old = bytes.getAndSet(0);
+            if (kind == Kind.CameraFile) {
+                CAMERA_FILE_BYTES.addAndGet(-old);
+            }
+        }
+
+        private void leaked() {
+            final long size = bytes.get();
+            if (!markFreed()) {
+                return;
+            }
+            LEAKED.incrementAndGet();
+            final String msg = kind + " was not closed" + (size > 0 ? ", freeing " + size + " bytes" : "")
+                    + (allocationSite == null ? "; enable leak tracking by -Dgphoto2.leakTracking=true to see the allocation site" : "");
+            log.log(Level.WARNING, msg, allocationSite);
+            CameraUtils.checkQuietly(kind.free(ptr), "free " + kind);
+        }
+
+        String describe() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(kind).append('@').append(ptr);
+            if (bytes.get() > 0) {
+                sb.append(", ").append(bytes.get()).append(" bytes");
+            }
+            if (allocationSite != null) {
+                for (final StackTraceElement e : allocationSite.getStackTrace()) {
+                    sb.append("\n    at ").append(e);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves captured files off the camera: downloads each file, hands it to a {@link Store}, and deletes it from the camera only after
+ * the store confirmed that the file was persisted. Keeps the camera storage from filling up during long shoots.
+ * <p></p>
+ * The camera work is done in small portions by {@link #pump(long)}, invoked by the capture loop between the shots with a time
+ * budget, so that the offloading never delays the shutter by more than a single download. Storing runs on a background thread.
+ * Deletes are batched per folder: a folder's batch is deleted once it is full or once no other file of the folder is in flight;
+ * when the batch covers the whole folder and the camera supports it, the folder is emptied by a single
+ * <code>gp_camera_folder_delete_all</code>. Thread-unsafe except for the statistics getters: use from the thread which owns the
+ * camera.
+ * <pre>
+ * final Path path = camera.capture();
+ * pipeline.enqueue(path);
+ * pipeline.pump(200000000); // at most ~200ms until the next shot
+ * </pre>
+ */
+public final class OffloadPipeline implements Closeable {
+
+    private static final Logger log = Logger.getLogger(OffloadPipeline.class.getName());
+
+    /**
+     * Persists the downloaded files.
+     */
+    public static interface Store {
+
+        /**
+         * Persists the file, e.g. writes and syncs it to the disk. Invoked on the background thread. Must not close the file.
+         * @param path the path of the file on the camera, not null.
+         * @param file the downloaded file, not null.
+         * @return true if the file was persisted and verified: the file is then deleted from the camera. False leaves the file on
+         * the camera.
+         * @throws Exception if the file could not be persisted; the file stays on the camera.
+         */
+        boolean store(CameraFile.Path path, CameraFile file) throws Exception;
+    }
+
+    private final Camera camera;
+    private final Store store;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final ExecutorService storeExecutor;
+    private final LinkedList<CameraFile.Path> pendingDownloads = new LinkedList<CameraFile.Path>();
+    private final ConcurrentLinkedQueue<Stored> stored = new ConcurrentLinkedQueue<Stored>();
+    /**
+     * Verified files waiting for delete, per folder.
+     */
+    private final Map<String, List<Stored>> pendingDeletes = new LinkedHashMap<String, List<Stored>>();
+    /**
+     * The number of files of the folder which are queued, being downloaded or stored.
+     */
+    private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+    private int storing = 0;
+    private final LatencyStats downloadStats = new LatencyStats("offload-download");
+    private final LatencyStats deleteStats = new LatencyStats("offload-delete");
+    private final AtomicLong freedBytes = new AtomicLong();
+    private final AtomicLong deletedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private static final class Stored {
+
+        final CameraFile.Path path;
+        final long size;
+        final boolean verified;
+
+        Stored(CameraFile.Path path, long size, boolean verified) {
+            this.path = path;
+            this.size = size;
+            this.verified = verified;
+        }
+    }
+
+    /**
+     * Creates the pipeline.
+     * @param camera the initialized camera, not null.
+     * @param store persists the files, not null.
+     * @param batchSize maximum number of files deleted in one batch, 1 or greater.
+     * @param maxInFlight maximum number of downloaded files waiting for the store, bounds the memory use; 1 or greater.
+     */
+    public OffloadPipeline(Camera camera, Store store, int batchSize, int maxInFlight) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        this.store = CameraUtils.requireNotNull(store, "store");
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Parameter batchSize: invalid value " + batchSize + ": must be 1 or greater");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Parameter maxInFlight: invalid value " + maxInFlight + ": must be 1 or greater");
+        }
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        storeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-offload-store");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a file on the camera for offloading.
+     * @param path the path of the file on the camera, not null.
+     */
+    public void enqueue(CameraFile.Path path) {
+        pendingDownloads.add(CameraUtils.requireNotNull(path, "path"));
+        final Integer n = inFlight.get(path.path);
+        inFlight.put(path.path, n == null ? 1 : n + 1);
+    }
+
+    private void done(String folder) {
+        final int n = inFlight.get(folder) - 1;
+        if (n == 0) {
+            inFlight.remove(folder);
+        } else {
+            inFlight.put(folder, n);
+        }
+    }
+
+    /**
+     * Performs camera work for up to given time: deletes verified files and downloads queued files. A download which has started
+     * is finished even if it exceeds the budget.
+     * @param budgetNanos the time budget in nanoseconds.
+     * @return true if there is nothing left to do on the camera.
+     */
+    public boolean pump(long budgetNanos) {
+        final long deadline = System.nanoTime() + budgetNanos;
+        collectStored();
+        for (final Iterator<Map.Entry<String, List<Stored>>> i = pendingDeletes.entrySet().iterator(); i.hasNext() && deadline - System.nanoTime() > 0;) {
+            final Map.Entry<String, List<Stored>> e = i.next();
+            if (e.getValue().size() >= batchSize || !inFlight.containsKey(e.getKey())) {
+                i.remove();
+                deleteBatch(e.getKey(), e.getValue());
+            }
+        }
+        while (!pendingDownloads.isEmpty() && storing < maxInFlight && deadline - System.nanoTime() > 0) {
+            download(pendingDownloads.removeFirst());
+        }
+        return isIdle();
+    }
+
+    /**
+     * Offloads everything queued, waiting for the store.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void drain() throws InterruptedException {
+        while (!pump(Long.MAX_VALUE / 2)) {
+            if (storing > 0) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private boolean isIdle() {
+        return pendingDownloads.isEmpty() && storing == 0 && stored.isEmpty() && pendingDeletes.isEmpty();
+    }
+
+    private void collectStored() {
+        for (Stored s = stored.poll(); s != null; s = stored.poll()) {
+            storing--;
+            done(s.path.path);
+            if (!s.verified) {
+                failedCount.incrementAndGet();
+                continue;
+            }
+            List<Stored> batch = pendingDeletes.get(s.path.path);
+            if (batch == null) {
+                batch = new ArrayList<Stored>();
+                pendingDeletes.put(s.path.path, batch);
+            }
+            batch.add(s);
+        }
+    }
+
+    private void download(final CameraFile.Path path) {
+        final long start = System.nanoTime();
+        final CameraFile file;
+        try {
+            file = camera.download(path);
+        } catch (GPhotoException ex) {
+            log.log(Level.WARNING, "Failed to download " + path + ", leaving it on the camera", ex);
+            failedCount.incrementAndGet();
+            done(path.path);
+            return;
+        }
+        downloadStats.recordSince(start);
+        storing++;
+        storeExecutor.execute(new Runnable() {
+            public void run() {
+                final long size = file.getSize();
+                boolean verified = false;
+                try {
+                    verified = size > 0 && store.store(path, file);
+                    if (!verified) {
+                        log.warning("Store rejected " + path + ", leaving it on the camera");
+                    }
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Failed to store " + path + ", leaving it on the camera", t);
+                } finally {
+                    CameraUtils.closeQuietly(file);
+                    stored.add(new Stored(path, size, verified));
+                }
+            }
+        });
+    }
+
+    private void deleteBatch(String folder, List<Stored> batch) {
+        final long start = System.nanoTime();
+        try {
+            if (camera.getCapabilities().canDeleteAllFiles() && coversFolder(folder, batch)) {
+                camera.deleteAllFiles(folder);
+                for (final Stored s : batch) {
+                    deleted(s);
+                }
+            } else {
+                for (final Stored s : batch) {
+                    try {
+                        camera.deleteFile(s.path);
+                        deleted(s);
+                    } catch (GPhotoException ex) {
+                        log.log(Level.WARNING, "Failed to delete " + s.path, ex);
+                        failedCount.incrementAndGet();
+                    }
+                }
+            }
+        } catch (GPhotoException ex) {
+            log.log(Level.WARNING, "Failed to delete " + batch.size() + " files from " + folder, ex);
+            failedCount.addAndGet(batch.size());
+        }
+        deleteStats.recordSince(start);
+    }
+
+    /**
+     * Checks whether the folder contains exactly the files of the batch.
+     */
+    private boolean coversFolder(String folder, List<Stored> batch) {
+        final List<String> files = camera.listFiles(folder);
+        if (files.size() != batch.size()) {
+            return false;
+        }
+        final Set<String> names = new HashSet<String>(files);
+        for (final Stored s : batch) {
+            if (!names.contains(s.path.filename)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleted(Stored s) {
+        deletedCount.incrementAndGet();
+        freedBytes.addAndGet(s.size);
+    }
+
+    /**
+     * @return the number of files waiting for download, being stored or waiting for delete.
+     */
+    public int getPendingCount() {
+        int result = pendingDownloads.size() + storing;
+        for (final List<Stored> batch : pendingDeletes.values()) {
+            result += batch.size();
+        }
+        return result;
+    }
+
+    /**
+     * Time spent downloading single files.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getDownloadStats() {
+        return downloadStats;
+    }
+
+    /**
+     * Time spent deleting a batch of files from a folder.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getDeleteStats() {
+        return deleteStats;
+    }
+
+    /**
+     * @return the number of bytes freed on the camera storage by the deletes.
+     */
+    public long getFreedBytes() {
+        return freedBytes.get();
+    }
+
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * @return the number of files left on the camera because the download, store or delete failed.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops the store thread after the files being stored are finished. Files not yet offloaded stay on the camera.
+     */
+    public void close() {
+        storeExecutor.shutdown();
+        try {
+            storeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffloadPipeline{pending=" + getPendingCount() + ", deleted=" + deletedCount.get() + ", freed=" + freedBytes.get() + "B, failed=" + failedCount.get() + '}';
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines, cancellation and progress reporting of camera operations invoked by the current thread.
+ * <p></p>
+ * libgphoto2 drivers poll the cancel function of the context during long operations, for example between the chunks of a
+ * download. The poll cancels the operation when the calling thread has been {@link Thread#interrupt() interrupted} or when the
+ * deadline of the current {@link #begin(long, TimeUnit, ProgressListener) scope} has passed; the operation then fails with a
+ * {@link GPhotoException} with {@link GPhoto2Native#GP_ERROR_CANCEL}. The deadline is also checked before every native call and
+ * retry. Note that a driver blocked inside a single USB transfer only notices the cancellation after the transfer times out.
+ * <pre>
+ * final OperationContext.Scope scope = OperationContext.begin(10, TimeUnit.SECONDS, listener);
+ * try {
+ *     camera.download(path);
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ */
+public final class OperationContext {
+
+    /**
+     * Receives the progress of camera operations, e.g. downloads. Invoked on the thread performing the operation; must be fast.
+     */
+    public static interface ProgressListener {
+
+        /**
+         * An operation started.
+         * @param id identifies the operation in {@link #onUpdate(int, float)} and {@link #onStop(int)}.
+         * @param text the operation description provided by the driver, never null.
+         * @param target the value of the progress when the operation completes, e.g. the file size.
+         */
+        void onStart(int id, String text, float target);
+
+        /**
+         * @param id the operation id.
+         * @param current the current progress, 0..target.
+         */
+        void onUpdate(int id, float current);
+
+        /**
+         * @param id the operation id.
+         */
+        void onStop(int id);
+    }
+
+    private static final ThreadLocal<State> current = new ThreadLocal<State>();
+    /**
+     * Set on the platform threads which execute native calls on behalf of another thread, see {@link NativeOffload}.
+     */
+    private static final ThreadLocal<Offloaded> offloaded = new ThreadLocal<Offloaded>();
+    /**
+     * The callbacks are strongly referenced: JNA frees the native trampolines of collected callbacks.
+     */
+    private static final GPhoto2Native.GPContextCancelFunc CANCEL = new GPhoto2Native.GPContextCancelFunc() {
+        public int cancel(Pointer context, Pointer data) {
+            return isCancelled() ? GPhoto2Native.GP_CONTEXT_FEEDBACK_CANCEL : GPhoto2Native.GP_CONTEXT_FEEDBACK_OK;
+        }
+    };
+    private static final GPhoto2Native.GPContextProgressStartFunc PROGRESS_START = new GPhoto2Native.GPContextProgressStartFunc() {
+        public int start(Pointer context, float target, Pointer text, Pointer data) {
+            final State s = current.get();
+            if (s == null || s.listener == null) {
+                return 0;
+            }
+            final int id = ++s.lastProgressId;
+            s.listener.onStart(id, text == null ? "" : text.getString(0), target);
+            return id;
+        }
+    };
+    private static final GPhoto2Native.GPContextProgressUpdateFunc PROGRESS_UPDATE = new GPhoto2Native.GPContextProgressUpdateFunc() {
+        public void update(Pointer context, int id, float current, Pointer data) {
+            final State s = OperationContext.current.get();
+            if (s != null && s.listener != null) {
+                s.listener.onUpdate(id, current);
+            }
+        }
+    };
+    private static final GPhoto2Native.GPContextProgressStopFunc PROGRESS_STOP = new GPhoto2Native.GPContextProgressStopFunc() {
+        public void stop(Pointer context, int id, Pointer data) {
+            final State s = current.get();
+            if (s != null && s.listener != null) {
+                s.listener.onStop(id);
+            }
+        }
+    };
+
+    private OperationContext() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Registers the cancel and progress functions with given context.
+     * @param context the libgphoto2 context, not null.
+     */
+    static void install(Pointer context) {
+        GPhoto2Native.INSTANCE.gp_context_set_cancel_func(context, CANCEL, null);
+        GPhoto2Native.INSTANCE.gp_context_set_progress_funcs(context, PROGRESS_START, PROGRESS_UPDATE, PROGRESS_STOP, null);
+    }
+
+    /**
+     * Per-thread state of a scope. Immutable except for the progress id counter.
+     */
+    static final class State {
+
+        final long deadlineNanos;
+        final boolean hasDeadline;
+        final ProgressListener listener;
+        final State previous;
+        int lastProgressId = 0;
+
+        State(long deadlineNanos, boolean hasDeadline, ProgressListener listener, State previous) {
+            this.deadlineNanos = deadlineNanos;
+            this.hasDeadline = hasDeadline;
+            this.listener = listener;
+            this.previous = previous;
+        }
+
+        long remainingNanos() {
+            return hasDeadline ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Starts a scope with a deadline. Nested scopes never extend the deadline of the enclosing scope.
+     * @param timeout the time the operations in the scope may take in total.
+     * @param unit the timeout unit, not null.
+     * @return the scope, must be closed by the same thread.
+     */
+    public static Scope begin(long timeout, TimeUnit unit) {
+        return begin(timeout, unit, null);
+    }
+
+    /**
+     * Starts a scope with a deadline and a progress listener. Nested scopes never extend the deadline of the enclosing scope and
+     * inherit its listener when given none.
+     * @param timeout the time the operations in the scope may take in total.
+     * @param unit the timeout unit, not null.
+     * @param listener receives the progress of the operations, may be null.
+     * @return the scope, must be closed by the same thread.
+     */
+    public static Scope begin(long timeout, TimeUnit unit, ProgressListener listener) {
+        final State previous = current.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (previous != null && previous.hasDeadline && previous.deadlineNanos - deadline < 0) {
+            deadline = previous.deadlineNanos;
+        }
+        if (listener == null && previous != null) {
+            listener = previous.listener;
+        }
+        return attach(new State(deadline, true, listener, previous));
+    }
+
+    /**
+     * Starts a scope with a progress listener and no deadline, besides the deadline of the enclosing scope.
+     * @param listener receives the progress of the operations, not null.
+     * @return the scope, must be closed by the same thread.
+     */
+    public static Scope begin(ProgressListener listener) {
+        CameraUtils.requireNotNull(listener, "listener");
+        final State previous = current.get();
+        final boolean hasDeadline = previous != null && previous.hasDeadline;
+        return attach(new State(hasDeadline ? previous.deadlineNanos : 0, hasDeadline, listener, previous));
+    }
+
+    private static Scope attach(State state) {
+        current.set(state);
+        return new Scope(state);
+    }
+
+    /**
+     * Returns the state of the current thread.
+     * @return the state, null if there is no scope.
+     */
+    static State current() {
+        return current.get();
+    }
+
+    /**
+     * A native call executed by another thread: the thread sees the caller's scope, and the caller's interrupt cancels the call.
+     */
+    static final class Offloaded {
+
+        final Thread caller;
+        final State state;
+        /**
+         * Set when the caller was interrupted while waiting for the call; its interrupt flag is cleared meanwhile.
+         */
+        volatile boolean interrupted = false;
+
+        Offloaded(Thread caller, State state) {
+            this.caller = caller;
+            this.state = state;
+        }
+
+        boolean isInterrupted() {
+            return interrupted || caller.isInterrupted();
+        }
+    }
+
+    /**
+     * Makes the current thread act on behalf of the caller until {@link #exitOffloaded()}.
+     * @param call the call, not null.
+     */
+    static void enterOffloaded(Offloaded call) {
+        offloaded.set(call);
+        if (call.state == null) {
+            current.remove();
+        } else {
+            current.set(call.state);
+        }
+    }
+
+    static void exitOffloaded() {
+        offloaded.remove();
+        current.remove();
+    }
+
+    private static boolean isInterrupted() {
+        final Offloaded call = offloaded.get();
+        return call != null ? call.isInterrupted() : Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Checks whether the current operation should be cancelled.
+     * @return true if the current thread is interrupted or the deadline has passed.
+     */
+    static boolean isCancelled() {
+        if (isInterrupted()) {
+            return true;
+        }
+        final State s = current.get();
+        return s != null && s.remainingNanos() <= 0;
+    }
+
+    /**
+     * Returns the time remaining until the deadline.
+     * @return the remaining nanoseconds, {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public static long getRemainingNanos() {
+        final State s = current.get();
+        return s == null ? Long.MAX_VALUE : s.remainingNanos();
+    }
+
+    /**
+     * Fails if the current operation should be cancelled.
+     * @param methodName the native function name, for the exception message.
+     * @throws GPhotoException with {@link GPhoto2Native#GP_ERROR_CANCEL} if the thread is interrupted or the deadline has passed.
+     */
+    static void checkNotCancelled(String methodName) {
+        if (isInterrupted()) {
+            throw new GPhotoException(methodName + " cancelled: the thread was interrupted", GPhoto2Native.GP_ERROR_CANCEL);
+        }
+        final State s = current.get();
+        if (s != null && s.remainingNanos() <= 0) {
+            throw new GPhotoException(methodName + " cancelled: the deadline has passed", GPhoto2Native.GP_ERROR_CANCEL);
+        }
+    }
+
+    /**
+     * A deadline and progress listener for the operations of the current thread. Closing the scope restores the enclosing scope.
+     */
+    public static final class Scope implements Closeable {
+
+        private final State state;
+        private boolean closed = false;
+
+        private Scope(State state) {
+            this.state = state;
+        }
+
+        /**
+         * Ends the scope. Further invocations do nothing.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            if (current.get() != state) {
+                throw new IllegalStateException("Invalid state: the scope must be closed by the thread which began it, in reverse order");
+            }
+            closed = true;
+            if (state.previous == null) {
+                current.remove();
+            } else {
+                current.set(state.previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Captures live-view frames on a single thread and hands each frame to any number of subscribers without copying it. Every
+ * subscriber receives the frames on its own thread, from its own bounded queue; when the queue is full the subscriber's
+ * {@link LagPolicy} decides which frame to drop, so a slow subscriber never stalls the camera or the other subscribers.
+ * <p></p>
+ * The frames are reference-counted native {@link CameraFile}s: the native memory is returned to libgphoto2 when the last
+ * subscriber is done with the frame.
+ */
+public final class PreviewBroadcaster implements Closeable {
+
+    private static final Logger log = Logger.getLogger(PreviewBroadcaster.class.getName());
+
+    /**
+     * Tells which frame to drop when the subscriber does not keep up.
+     */
+    public static enum LagPolicy {
+
+        /**
+         * Drop the oldest queued frame: the subscriber always gets the latest frames. Suits displays and detectors.
+         */
+        DropOldest,
+        /**
+         * Drop the new frame: the subscriber gets a gap-free run of older frames after it catches up. Suits recorders which prefer
+         * continuous segments.
+         */
+        DropNewest
+    }
+
+    /**
+     * Receives the frames.
+     */
+    public static interface Subscriber {
+
+        /**
+         * Invoked on the subscriber's thread for every frame which was not dropped. The frame is released when the method returns;
+         * {@link Frame#retain()} it to keep it longer.
+         * @param frame the frame, never null.
+         */
+        void onFrame(Frame frame);
+    }
+
+    private final Camera camera;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final LatencyStats captureStats = new LatencyStats("preview-capture");
+    private final AtomicLong failedCount = new AtomicLong();
+    private Thread captureThread;
+    private volatile boolean closed = false;
+    private long sequence = 0;
+
+    /**
+     * Creates the broadcaster.
+     * @param camera the initialized camera. Used exclusively by the capture thread until the broadcaster is closed.
+     */
+    public PreviewBroadcaster(Camera camera) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+    }
+
+    /**
+     * Adds a subscriber. May be invoked while the broadcaster is running; the subscriber receives the frames captured afterwards.
+     * @param name the subscriber name, used for the thread name, not null.
+     * @param queueCapacity the maximum number of frames waiting for the subscriber, 1 or greater.
+     * @param policy what to do when the queue is full, not null.
+     * @param subscriber the subscriber, not null.
+     * @return the subscription, never null. Close to unsubscribe.
+     */
+    public Subscription subscribe(String name, int queueCapacity, LagPolicy policy, Subscriber subscriber) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Parameter queueCapacity: invalid value " + queueCapacity + ": must be 1 or greater");
+        }
+        if (closed) {
+            throw new IllegalStateException("Invalid state: closed");
+        }
+        final Subscription s = new Subscription(CameraUtils.requireNotNull(name, "name"), queueCapacity, CameraUtils.requireNotNull(policy, "policy"),
+                CameraUtils.requireNotNull(subscriber, "subscriber"));
+        subscriptions.add(s);
+        s.thread.start();
+        return s;
+    }
+
+    /**
+     * Starts capturing.
+     */
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("Invalid state: closed");
+        }
+        if (captureThread != null) {
+            throw new IllegalStateException("Invalid state: already started");
+        }
+        captureThread = new Thread("gphoto2-preview-broadcaster") {
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        };
+        captureThread.setDaemon(true);
+        captureThread.start();
+    }
+
+    private void captureLoop() {
+        while (!closed) {
+            final CameraFile cf;
+            final long start = System.nanoTime();
+            try {
+                cf = camera.capturePreview();
+            } catch (GPhotoException ex) {
+                if (closed) {
+                    return;
+                }
+                failedCount.incrementAndGet();
+                log.log(Level.WARNING, "Failed to capture a preview", ex);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            captureStats.recordSince(start);
+            try {
+                final Frame frame = new Frame(cf, sequence++, start);
+                for (final Subscription s : subscriptions) {
+                    s.offer(frame);
+                }
+            } catch (RuntimeException ex) {
+                log.log(Level.SEVERE, "Failed to publish a preview", ex);
+            } finally {
+                // the subscribers hold their own references.
+                cf.close();
+            }
+        }
+    }
+
+    /**
+     * Time spent capturing the previews.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getCaptureStats() {
+        return captureStats;
+    }
+
+    /**
+     * @return the number of failed preview captures.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops capturing and unsubscribes all subscribers. Frames still queued are released without being delivered. Further
+     * invocations do nothing.
+     */
+    public void close() {
+        final Thread t;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            t = captureThread;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (final Subscription s : subscriptions) {
+            s.close();
+        }
+    }
+
+    /**
+     * A preview frame shared by the subscribers. Reference-counted, backed by the native memory: must not be touched after the
+     * last reference is released.
+     */
+    public static final class Frame {
+
+        private final CameraFile file;
+        private final ByteBuffer data;
+        private final long sequence;
+        private final long capturedAtNanos;
+
+        private Frame(CameraFile file, long sequence, long capturedAtNanos) {
+            this.file = file;
+            this.data = file.getByteBuffer();
+            this.sequence = sequence;
+            this.capturedAtNanos = capturedAtNanos;
+        }
+
+        /**
+         * Returns the JPEG data, backed by the native memory.
+         * @return a new read-only view of the data, never null.
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        /**
+         * The frame number, in capture order; frames dropped for a subscriber leave gaps.
+         * @return 0 or greater.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} when the capture started.
+         */
+        public long getCapturedAtNanos() {
+            return capturedAtNanos;
+        }
+
+        /**
+         * Adds a reference to this frame.
+         * @return this
+         */
+        public Frame retain() {
+            file.ref();
+            return this;
+        }
+
+        /**
+         * Releases a reference. When the last reference is released, the native memory is freed.
+         */
+        public void release() {
+            file.unref();
+        }
+
+        @Override
+        public String toString() {
+            return "Frame{#" + sequence + ", " + data.remaining() + " bytes}";
+        }
+    }
+
+    /**
+     * A subscriber with its queue and thread.
+     */
+    public final class Subscription implements Closeable {
+
+        private final String name;
+        private final BlockingQueue<Frame> queue;
+        private final LagPolicy policy;
+        private final Subscriber subscriber;
+        private final Thread thread;
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final LatencyStats latencyStats;
+        private volatile boolean closed = false;
+
+        private Subscription(String name, int capacity, LagPolicy policy, Subscriber subscriber) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<Frame>(capacity);
+            this.policy = policy;
+            this.subscriber = subscriber;
+            latencyStats = new LatencyStats(name + "-latency");
+            thread = new Thread("gphoto2-preview-" + name) {
+                @Override
+                public void run() {
+                    deliverLoop();
+                }
+            };
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Enqueues the frame. Invoked by the capture thread only.
+         */
+        void offer(Frame frame) {
+            if (closed) {
+                return;
+            }
+            frame.retain();
+            if (policy == LagPolicy.DropNewest) {
+                if (!queue.offer(frame)) {
+                    frame.release();
+                    dropped.incrementAndGet();
+                }
+            } else {
+                while (!queue.offer(frame)) {
+                    final Frame oldest = queue.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            if (closed) {
+                // closed meanwhile, the subscriber thread may have already drained the queue.
+                releaseQueued();
+            }
+        }
+
+        private void deliverLoop() {
+            while (!closed) {
+                final Frame frame;
+                try {
+                    frame = queue.take();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                try {
+                    subscriber.onFrame(frame);
+                    delivered.incrementAndGet();
+                    latencyStats.recordSince(frame.capturedAtNanos);
+                } catch (Throwable t) {
+                    log.log(Level.SEVERE, "Subscriber " + name + " failed", t);
+                } finally {
+                    frame.release();
+                }
+            }
+            releaseQueued();
+        }
+
+        private void releaseQueued() {
+            for (Frame f = queue.poll(); f != null; f = queue.poll()) {
+                f.release();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LagPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return the number of frames delivered to the subscriber.
+         */
+        public long getDeliveredCount() {
+            return delivered.get();
+        }
+
+        /**
+         * @return the number of frames dropped because the subscriber did not keep up.
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        /**
+         * Time from the start of the capture until the subscriber finished processing the frame.
+         * @return the statistics, never null.
+         */
+        public LatencyStats getLatencyStats() {
+            return latencyStats;
+        }
+
+        /**
+         * Unsubscribes: interrupts the subscriber thread and waits for it to finish. Frames still queued are released.
+         * Further invocations do nothing.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            subscriptions.remove(this);
+            thread.interrupt();
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            releaseQueued();
+        }
+
+        @Override
+        public String toString() {
+            return "Subscription{" + name + ", " + policy + ", delivered=" + delivered.get() + ", dropped=" + dropped.get() + '}';
+        }
+    }
+}
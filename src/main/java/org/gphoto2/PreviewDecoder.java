@@ -0,0 +1,313 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes JPEG preview frames, as returned by {@link Camera#capturePreview()}, on a pool of worker threads into a pool of reusable
+ * pixel buffers. Frames are delivered to the {@link FrameListener} on a single delivery thread, in the order in which they were
+ * submitted. Thread-safe.
+ * <p></p>
+ * The number of frames in flight (queued, being decoded, or held by consumers) is bounded by the buffer pool size. When all
+ * buffers are in use, {@link #submit(CameraFile)} drops the frame rather than blocking the capture thread.
+ */
+public final class PreviewDecoder implements Closeable {
+
+    private static final Logger log = Logger.getLogger(PreviewDecoder.class.getName());
+
+    /**
+     * Receives decoded frames.
+     */
+    public static interface FrameListener {
+
+        /**
+         * Invoked for every decoded frame, in the submission order, on the delivery thread. The frame is released by the decoder
+         * when this method returns; call {@link DecodedFrame#retain()} to keep it longer.
+         * @param frame the frame, not null.
+         */
+        void frameDecoded(DecodedFrame frame);
+    }
+    private final FrameListener listener;
+    private final ExecutorService workers;
+    private final Thread delivery;
+    private final BlockingQueue<Future<DecodedFrame>> pending = new LinkedBlockingQueue<Future<DecodedFrame>>();
+    private final Semaphore buffers;
+    private final List<DecodedFrame> pool = new ArrayList<DecodedFrame>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final LatencyStats decodeStats = new LatencyStats("preview-decode");
+    private final LatencyStats latencyStats = new LatencyStats("preview-submit-to-delivery");
+    private final ThreadLocal<ImageReader> readers = new ThreadLocal<ImageReader>() {
+        @Override
+        protected ImageReader initialValue() {
+            final Iterator<ImageReader> i = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!i.hasNext()) {
+                throw new IllegalStateException("No JPEG decoder available");
+            }
+            return i.next();
+        }
+    };
+    /**
+     * Marks the end of the frame stream.
+     */
+    private final Future<DecodedFrame> endOfStream = new FutureTask<DecodedFrame>(new Callable<DecodedFrame>() {
+        public DecodedFrame call() {
+            return null;
+        }
+    });
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the decoder.
+     * @param threads the number of decoding threads, 1 or greater.
+     * @param bufferCount maximum number of frames in flight, 1 or greater. Each buffer takes 4 bytes per pixel.
+     * @param listener receives the decoded frames, not null.
+     */
+    public PreviewDecoder(int threads, int bufferCount, FrameListener listener) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parameter threads: invalid value " + threads + ": must be 1 or greater");
+        }
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("Parameter bufferCount: invalid value " + bufferCount + ": must be 1 or greater");
+        }
+        this.listener = CameraUtils.requireNotNull(listener, "listener");
+        buffers = new Semaphore(bufferCount);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-preview-decoder-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        delivery = new Thread("gphoto2-preview-delivery") {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        delivery.setDaemon(true);
+        delivery.start();
+    }
+
+    /**
+     * Submits a preview for decoding. The data is copied, the file may be closed or reused as soon as this method returns.
+     * @param preview the JPEG preview, not null.
+     * @return true if the frame was submitted, false if it was dropped because all buffers are in use.
+     */
+    public boolean submit(CameraFile preview) {
+        return submit(preview.getBytes());
+    }
+
+    /**
+     * Submits a JPEG image for decoding. The array must not be modified afterwards.
+     * @param jpeg the JPEG data, not null.
+     * @return true if the frame was submitted, false if it was dropped because all buffers are in use.
+     */
+    public boolean submit(final byte[] jpeg) {
+        CameraUtils.requireNotNull(jpeg, "jpeg");
+        if (closed) {
+            throw new IllegalStateException("Invalid state: closed");
+        }
+        if (!buffers.tryAcquire()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        final long seq = sequence.getAndIncrement();
+        final long submittedAt = System.nanoTime();
+        final Future<DecodedFrame> f = workers.submit(new Callable<DecodedFrame>() {
+            public DecodedFrame call() throws IOException {
+                return decode(jpeg, seq, submittedAt);
+            }
+        });
+        pending.add(f);
+        return true;
+    }
+
+    private DecodedFrame decode(byte[] jpeg, long seq, long submittedAt) throws IOException {
+        final long start = System.nanoTime();
+        final ImageReader reader = readers.get();
+        final ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg));
+        DecodedFrame frame = null;
+        try {
+            reader.setInput(in, true, true);
+            frame = obtain(reader.getWidth(0), reader.getHeight(0));
+            final ImageReadParam param = reader.getDefaultReadParam();
+            param.setDestination(frame.getImage());
+            try {
+                reader.read(0, param);
+            } catch (IllegalArgumentException ex) {
+                // the JPEG color space is not compatible with the RGB destination; decode into a new image and copy.
+                in.seek(0);
+                reader.setInput(in, true, true);
+                final BufferedImage img = reader.read(0);
+                img.getRGB(0, 0, frame.getWidth(), frame.getHeight(), frame.getPixels(), 0, frame.getWidth());
+            }
+            frame.reset(seq, submittedAt);
+            decodeStats.recordSince(start);
+            return frame;
+        } catch (IOException ex) {
+            if (frame != null) {
+                pool(frame);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (frame != null) {
+                pool(frame);
+            }
+            throw ex;
+        } finally {
+            reader.setInput(null);
+            in.close();
+        }
+    }
+
+    private DecodedFrame obtain(int width, int height) {
+        synchronized (pool) {
+            for (int i = pool.size() - 1; i >= 0; i--) {
+                final DecodedFrame frame = pool.get(i);
+                if (frame.getWidth() == width && frame.getHeight() == height) {
+                    return pool.remove(i);
+                }
+            }
+            // buffers with other dimensions are useless after a live view resolution change.
+            pool.clear();
+        }
+        return new DecodedFrame(this, width, height);
+    }
+
+    private void pool(DecodedFrame frame) {
+        synchronized (pool) {
+            pool.add(frame);
+        }
+    }
+
+    /**
+     * Invoked when the last reference to the frame is released.
+     */
+    void recycle(DecodedFrame frame) {
+        pool(frame);
+        buffers.release();
+    }
+
+    private void deliver() {
+        while (true) {
+            final Future<DecodedFrame> f;
+            try {
+                f = pending.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (f == endOfStream) {
+                return;
+            }
+            final DecodedFrame frame;
+            try {
+                frame = f.get();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (ExecutionException ex) {
+                log.log(Level.WARNING, "Failed to decode a preview frame", ex.getCause());
+                buffers.release();
+                continue;
+            }
+            latencyStats.recordSince(frame.getCapturedAtNanos());
+            try {
+                listener.frameDecoded(frame);
+            } catch (Throwable t) {
+                log.log(Level.WARNING, "Frame listener failed", t);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Time spent decoding a single frame.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getDecodeStats() {
+        return decodeStats;
+    }
+
+    /**
+     * Time from {@link #submit(byte[])} to the delivery to the listener, including queueing and decoding.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Returns the number of frames dropped because all buffers were in use.
+     * @return 0 or greater.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Decodes and delivers all submitted frames, then stops the worker threads. Blocks until the delivery is done.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(endOfStream);
+        try {
+            delivery.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
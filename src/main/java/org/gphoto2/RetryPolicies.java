@@ -0,0 +1,108 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps libgphoto2 error codes to {@link RetryPolicy retry policies}, optionally per native operation. Thread-safe.
+ * <p></p>
+ * The operation is identified by the name of the native function, e.g. <code>gp_camera_capture</code>. A policy registered for
+ * an operation and an error code takes precedence over a policy registered for the error code only. Errors without a policy
+ * fail immediately.
+ */
+public final class RetryPolicies {
+
+    private final Map<Integer, RetryPolicy> byError = new HashMap<Integer, RetryPolicy>();
+    private final Map<String, Map<Integer, RetryPolicy>> byOperation = new HashMap<String, Map<Integer, RetryPolicy>>();
+
+    /**
+     * Creates policies which fail immediately on any error.
+     */
+    public RetryPolicies() {
+    }
+
+    /**
+     * Creates policies suitable for transient errors reported by busy cameras: <code>GP_ERROR_CAMERA_BUSY</code> and
+     * <code>GP_ERROR_IO_USB_CLAIM</code> are retried with an exponential backoff, <code>GP_ERROR_TIMEOUT</code> re-initializes
+     * the camera once.
+     * @return new instance of policies, never null.
+     */
+    public static RetryPolicies newDefault() {
+        final RetryPolicies result = new RetryPolicies();
+        result.set(GPhoto2Native.GP_ERROR_CAMERA_BUSY, RetryPolicy.backoff(6, 50, 800, 0.5));
+        result.set(GPhoto2Native.GP_ERROR_IO_USB_CLAIM, RetryPolicy.backoff(6, 100, 1000, 0.5));
+        result.set(GPhoto2Native.GP_ERROR_TIMEOUT, RetryPolicy.reinitialize(2, 200));
+        // re-initializing a camera which fails to initialize makes no sense.
+        result.set("gp_camera_init", GPhoto2Native.GP_ERROR_TIMEOUT, RetryPolicy.backoff(3, 200, 1000, 0.5));
+        return result;
+    }
+
+    /**
+     * Sets the policy for given error code, for all operations.
+     * @param errorCode the libgphoto2 error code, e.g. {@link GPhoto2Native#GP_ERROR_CAMERA_BUSY}.
+     * @param policy the policy, not null.
+     * @return this
+     */
+    public synchronized RetryPolicies set(int errorCode, RetryPolicy policy) {
+        byError.put(errorCode, CameraUtils.requireNotNull(policy, "policy"));
+        return this;
+    }
+
+    /**
+     * Sets the policy for given error code and operation.
+     * @param methodName the native function name, e.g. <code>gp_camera_capture</code>, not null.
+     * @param errorCode the libgphoto2 error code, e.g. {@link GPhoto2Native#GP_ERROR_CAMERA_BUSY}.
+     * @param policy the policy, not null.
+     * @return this
+     */
+    public synchronized RetryPolicies set(String methodName, int errorCode, RetryPolicy policy) {
+        CameraUtils.requireNotNull(methodName, "methodName");
+        Map<Integer, RetryPolicy> m = byOperation.get(methodName);
+        if (m == null) {
+            m = new HashMap<Integer, RetryPolicy>();
+            byOperation.put(methodName, m);
+        }
+        m.put(errorCode, CameraUtils.requireNotNull(policy, "policy"));
+        return this;
+    }
+
+    /**
+     * Returns the policy for given operation and error.
+     * @param methodName the native function name, not null.
+     * @param errorCode the libgphoto2 error code.
+     * @return the policy, never null. {@link RetryPolicy#FAIL} if there is no policy registered.
+     */
+    public synchronized RetryPolicy get(String methodName, int errorCode) {
+        final Map<Integer, RetryPolicy> m = byOperation.get(methodName);
+        RetryPolicy result = m == null ? null : m.get(errorCode);
+        if (result == null) {
+            result = byError.get(errorCode);
+        }
+        return result == null ? RetryPolicy.FAIL : result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryPolicies{" + byError + ", " + byOperation + '}';
+    }
+}
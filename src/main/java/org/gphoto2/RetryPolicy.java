@@ -0,0 +1,139 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.util.Random;
+
+/**
+ * Tells the {@link Camera} what to do when a native call fails with a particular error. Immutable.
+ */
+public final class RetryPolicy {
+
+    public static enum Action {
+
+        /**
+         * Fail immediately with {@link GPhotoException}.
+         */
+        Fail,
+        /**
+         * Invoke the native call again, possibly after a delay.
+         */
+        Retry,
+        /**
+         * Re-initialize the camera (<code>gp_camera_exit</code> followed by <code>gp_camera_init</code>), then invoke the native call again.
+         */
+        Reinitialize
+    }
+    /**
+     * Fails on first error. This is the default behavior for all errors.
+     */
+    public static final RetryPolicy FAIL = new RetryPolicy(Action.Fail, 1, 0, 0, 0);
+    public final Action action;
+    /**
+     * Maximum number of invocations of the native call, including the first one.
+     */
+    public final int maxAttempts;
+    /**
+     * The delay before the first retry, in milliseconds.
+     */
+    public final long initialDelayMillis;
+    /**
+     * The delay is doubled on each retry but never exceeds this value, in milliseconds.
+     */
+    public final long maxDelayMillis;
+    /**
+     * 0..1, the fraction of the delay which is randomized. 0 means no randomization, 0.5 means that the delay is randomly picked from
+     * 50%..100% of the computed delay.
+     */
+    public final double jitter;
+
+    private RetryPolicy(Action action, int maxAttempts, long initialDelayMillis, long maxDelayMillis, double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Parameter maxAttempts: invalid value " + maxAttempts + ": must be 1 or greater");
+        }
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Parameter initialDelayMillis: invalid value " + initialDelayMillis + ": must be 0.." + maxDelayMillis);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Parameter jitter: invalid value " + jitter + ": must be 0..1");
+        }
+        this.action = action;
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Retries immediately, without any delay.
+     * @param maxAttempts maximum number of invocations, including the first one.
+     * @return the policy, never null.
+     */
+    public static RetryPolicy immediate(int maxAttempts) {
+        return new RetryPolicy(Action.Retry, maxAttempts, 0, 0, 0);
+    }
+
+    /**
+     * Retries with an exponentially growing delay.
+     * @param maxAttempts maximum number of invocations, including the first one.
+     * @param initialDelayMillis the delay before the first retry.
+     * @param maxDelayMillis the upper bound of the delay.
+     * @param jitter 0..1, see {@link #jitter}.
+     * @return the policy, never null.
+     */
+    public static RetryPolicy backoff(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double jitter) {
+        return new RetryPolicy(Action.Retry, maxAttempts, initialDelayMillis, maxDelayMillis, jitter);
+    }
+
+    /**
+     * Re-initializes the camera and retries.
+     * @param maxAttempts maximum number of invocations, including the first one.
+     * @param delayMillis the delay between the camera exit and re-init, gives the device time to settle.
+     * @return the policy, never null.
+     */
+    public static RetryPolicy reinitialize(int maxAttempts, long delayMillis) {
+        return new RetryPolicy(Action.Reinitialize, maxAttempts, delayMillis, delayMillis, 0);
+    }
+
+    /**
+     * Computes the delay before given retry.
+     * @param retry 1 for the first retry, 2 for the second etc.
+     * @param random the source of the jitter.
+     * @return the delay in milliseconds, 0 or greater.
+     */
+    long getDelayMillis(int retry, Random random) {
+        if (initialDelayMillis == 0) {
+            return 0;
+        }
+        long delay = initialDelayMillis;
+        for (int i = 1; i < retry && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        if (jitter > 0) {
+            delay -= (long) (delay * jitter * random.nextDouble());
+        }
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" + action + ", maxAttempts=" + maxAttempts + ", delay=" + initialDelayMillis + ".." + maxDelayMillis + "ms, jitter=" + jitter + '}';
+    }
+}
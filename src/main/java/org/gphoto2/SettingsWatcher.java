@@ -0,0 +1,490 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.FloatByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+import org.gphoto2.jna.GPhoto2Native;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the camera settings and reports the settings whose value changed. Much cheaper than re-reading and formatting the whole
+ * {@link CameraWidgets configuration} periodically: the widget tree is enumerated once, the values are kept in primitive arrays and
+ * compared in place, and no strings are built unless a text setting actually changed.
+ * <p></p>
+ * The whole configuration is re-read at an adaptive interval: it starts at the minimum interval, doubles after every refresh
+ * which found no change up to the maximum interval, and drops back to the minimum on a change. Hot settings, e.g. the shutter
+ * speed or the battery level, are additionally read every minimum interval by <code>gp_camera_get_single_config</code>, which
+ * transfers only the one value; hot settings without single-config access are refreshed with the rest.
+ * <p></p>
+ * Thread-unsafe, as is the camera: invoke {@link #poll()} from the thread which owns the camera, or {@link #start(ScheduledExecutorService)}
+ * when the camera is dedicated to the watcher. A single executor can serve the watchers of many cameras.
+ */
+public final class SettingsWatcher implements Closeable {
+
+    private static final Logger log = Logger.getLogger(SettingsWatcher.class.getName());
+
+    /**
+     * Receives the changes. Invoked on the thread which polls.
+     */
+    public static interface Listener {
+
+        /**
+         * A setting changed its value.
+         * @param watcher the watcher, not null.
+         * @param name the widget name, e.g. <code>/main/capturesettings/shutterspeed</code>, not null.
+         * @param oldValue the previous value, may be null.
+         * @param newValue the current value, may be null.
+         */
+        void onChanged(SettingsWatcher watcher, String name, Object oldValue, Object newValue);
+    }
+    private final Camera camera;
+    private final String[] names;
+    private final String[] basenames;
+    private final CameraWidgets.WidgetTypeEnum[] types;
+    /**
+     * The values of numeric settings: the float bits of ranges, 0/1/2 of toggles, the seconds of dates.
+     */
+    private final int[] numbers;
+    /**
+     * The values of text, radio and menu settings.
+     */
+    private final String[] texts;
+    /**
+     * The native bytes of {@link #texts}, compared on every poll so that a value is decoded only when it changed. Null when the
+     * value is null.
+     */
+    private final byte[][] textBytes;
+    /**
+     * Reused buffer for the native bytes of the value being read.
+     */
+    private byte[] scratch = new byte[64];
+    /**
+     * Whether the setting was present in the last read; settings come and go with the camera mode.
+     */
+    private final boolean[] present;
+    private final int[] hot;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final IntByReference intRef = new IntByReference();
+    private final FloatByReference floatRef = new FloatByReference();
+    private final PointerByReference ptrRef = new PointerByReference();
+    private final PointerByReference widgetRef = new PointerByReference();
+    private final AtomicLong fullReads = new AtomicLong();
+    private final AtomicLong hotReads = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final LatencyStats pollStats = new LatencyStats("settings-poll");
+    private long intervalNanos;
+    private long nextFull;
+    private long nextHot;
+    private volatile boolean closed = false;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * Creates the watcher and reads the current values. No events are fired for the initial values.
+     * @param camera the initialized camera, not null.
+     * @param hotSettings the names of settings read every minimum interval, e.g. <code>/main/capturesettings/shutterspeed</code>;
+     * not null, may be empty. Names the camera does not offer are ignored.
+     * @param minIntervalMillis the minimum refresh interval, in milliseconds.
+     * @param maxIntervalMillis the maximum interval of the whole configuration refresh, in milliseconds.
+     */
+    public SettingsWatcher(Camera camera, Collection<String> hotSettings, long minIntervalMillis, long maxIntervalMillis) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        CameraUtils.requireNotNull(hotSettings, "hotSettings");
+        if (minIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Parameter minIntervalMillis: invalid value " + minIntervalMillis + ": must be positive");
+        }
+        if (maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Parameter maxIntervalMillis: invalid value " + maxIntervalMillis + ": must be " + minIntervalMillis + " or greater");
+        }
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis);
+        intervalNanos = minIntervalNanos;
+        final List<String> n = new ArrayList<String>();
+        final List<CameraWidgets.WidgetTypeEnum> t = new ArrayList<CameraWidgets.WidgetTypeEnum>();
+        final CameraWidgets cfg = camera.newConfiguration();
+        try {
+            for (final String name : cfg.getNames()) {
+                final CameraWidgets.WidgetTypeEnum type = cfg.getType(name);
+                if (type.hasValue && type != CameraWidgets.WidgetTypeEnum.Button) {
+                    n.add(name);
+                    t.add(type);
+                }
+            }
+        } finally {
+            CameraUtils.closeQuietly(cfg);
+        }
+        names = n.toArray(new String[n.size()]);
+        types = t.toArray(new CameraWidgets.WidgetTypeEnum[t.size()]);
+        basenames = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            basenames[i] = names[i].substring(names[i].lastIndexOf('/') + 1);
+        }
+        numbers = new int[names.length];
+        texts = new String[names.length];
+        textBytes = new byte[names.length][];
+        present = new boolean[names.length];
+        final Set<String> hotNames = new HashSet<String>(hotSettings);
+        final List<Integer> h = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; i++) {
+            if (hotNames.contains(names[i])) {
+                h.add(i);
+            }
+        }
+        hot = new int[h.size()];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = h.get(i);
+        }
+        readFull(false);
+        final long now = System.nanoTime();
+        nextFull = now + intervalNanos;
+        nextHot = now + minIntervalNanos;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(CameraUtils.requireNotNull(listener, "listener"));
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Refreshes the settings which are due and fires the change events.
+     * @return the time until the next refresh is due, in nanoseconds, 0 or greater.
+     */
+    public long poll() {
+        if (closed) {
+            throw new IllegalStateException("Invalid state: closed");
+        }
+        final long start = System.nanoTime();
+        if (start >= nextFull) {
+            final boolean changed = readFull(true);
+            intervalNanos = changed ? minIntervalNanos : Math.min(intervalNanos * 2, maxIntervalNanos);
+            nextFull = System.nanoTime() + intervalNanos;
+            nextHot = System.nanoTime() + minIntervalNanos;
+        } else if (start >= nextHot) {
+            if (hot.length > 0 && camera.getCapabilities().isSingleConfigSupported()) {
+                readHot();
+            }
+            nextHot = System.nanoTime() + minIntervalNanos;
+        } else {
+            return Math.min(nextFull, nextHot) - start;
+        }
+        pollStats.recordSince(start);
+        return Math.max(0, Math.min(nextFull, nextHot) - System.nanoTime());
+    }
+
+    /**
+     * Polls on given executor until {@link #close() closed}. The camera must not be used by anyone else meanwhile. Failures are
+     * logged and the poll is retried after the maximum interval.
+     * @param executor the executor, not null. May be shared by many watchers.
+     */
+    public synchronized void start(final ScheduledExecutorService executor) {
+        if (scheduled != null) {
+            throw new IllegalStateException("Invalid state: already started");
+        }
+        scheduled = executor.schedule(new Runnable() {
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                long delay;
+                try {
+                    delay = poll();
+                } catch (RuntimeException ex) {
+                    log.log(Level.WARNING, "Failed to poll the settings of " + camera, ex);
+                    delay = maxIntervalNanos;
+                }
+                synchronized (SettingsWatcher.this) {
+                    if (!closed) {
+                        scheduled = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+        }, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads the whole configuration and compares all settings.
+     * @return true if any setting changed.
+     */
+    private boolean readFull(boolean fire) {
+        final PointerByReference rootRef = new PointerByReference();
+        camera.invoke("gp_camera_get_config", new Camera.NativeCall() {
+            public int invoke() {
+                return GPhoto2Native.INSTANCE.gp_camera_get_config(camera.camera, rootRef, CameraList.CONTEXT);
+            }
+        });
+        final Pointer root = rootRef.getValue();
+        fullReads.incrementAndGet();
+        boolean changed = false;
+        try {
+            for (int i = 0; i < names.length; i++) {
+                final Pointer widget = GPhoto2Native.INSTANCE.gp_widget_get_child_by_name(root, basenames[i], widgetRef) >= GPhoto2Native.GP_OK
+                        ? widgetRef.getValue() : null;
+                changed |= update(i, widget, fire);
+            }
+        } finally {
+            CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_widget_free(root), "gp_widget_free");
+        }
+        return changed;
+    }
+
+    private void readHot() {
+        for (final int i : hot) {
+            final String basename = basenames[i];
+            if (!camera.isSingleConfigSupported(basename)) {
+                // refreshed with the whole configuration.
+                continue;
+            }
+            try {
+                camera.invoke("gp_camera_get_single_config", new Camera.NativeCall() {
+                    public int invoke() {
+                        return GPhoto2Native.INSTANCE.gp_camera_get_single_config(camera.camera, basename, widgetRef, CameraList.CONTEXT);
+                    }
+                });
+            } catch (GPhotoException ex) {
+                if (ex.result == GPhoto2Native.GP_ERROR_NOT_SUPPORTED) {
+                    camera.markSingleConfigUnsupported(basename);
+                    continue;
+                }
+                if (ex.result == GPhoto2Native.GP_ERROR_BAD_PARAMETERS) {
+                    // not offered in the current mode.
+                    update(i, null, true);
+                    continue;
+                }
+                throw ex;
+            } catch (UnsatisfiedLinkError ex) {
+                // libgphoto2 older than 2.5.10
+                CameraCapabilities.markSingleConfigMissing();
+                return;
+            }
+            final Pointer widget = widgetRef.getValue();
+            try {
+                update(i, widget, true);
+            } finally {
+                CameraUtils.checkQuietly(GPhoto2Native.INSTANCE.gp_widget_free(widget), "gp_widget_free");
+            }
+            hotReads.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the value of a single setting and compares it to the previous one.
+     * @param widget the widget, null if the camera does not offer the setting now.
+     * @return true if the value changed.
+     */
+    private boolean update(int i, Pointer widget, boolean fire) {
+        final boolean wasPresent = present[i];
+        if (widget == null) {
+            if (!wasPresent) {
+                return false;
+            }
+            final Object old = getValue(i);
+            present[i] = false;
+            texts[i] = null;
+            textBytes[i] = null;
+            fire(fire, i, old, null);
+            return true;
+        }
+        switch (types[i]) {
+            case Text:
+            case Radio:
+            case Menu: {
+                CameraUtils.check(GPhoto2Native.INSTANCE.gp_widget_get_value(widget, ptrRef), "gp_widget_get_value");
+                final Pointer p = ptrRef.getValue();
+                final int length = p == null ? -1 : (int) p.indexOf(0, (byte) 0);
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                if (length > 0) {
+                    p.read(0, scratch, 0, length);
+                }
+                if (wasPresent && sameBytes(textBytes[i], length)) {
+                    return false;
+                }
+                final String value = p == null ? null : p.getString(0);
+                final Object old = wasPresent ? texts[i] : null;
+                texts[i] = value;
+                textBytes[i] = p == null ? null : Arrays.copyOf(scratch, length);
+                present[i] = true;
+                fire(fire, i, old, value);
+                return true;
+            }
+            case Range: {
+                CameraUtils.check(GPhoto2Native.INSTANCE.gp_widget_get_value(widget, floatRef), "gp_widget_get_value");
+                return updateNumber(i, Float.floatToIntBits(floatRef.getValue()), fire);
+            }
+            default: {
+                CameraUtils.check(GPhoto2Native.INSTANCE.gp_widget_get_value(widget, intRef), "gp_widget_get_value");
+                return updateNumber(i, intRef.getValue(), fire);
+            }
+        }
+    }
+
+    /**
+     * Compares the cached bytes of a value to the first <code>length</code> bytes of the scratch buffer.
+     * @param length the length of the new value, -1 if the new value is null.
+     */
+    private boolean sameBytes(byte[] cached, int length) {
+        if (cached == null || length < 0) {
+            return cached == null && length < 0;
+        }
+        if (cached.length != length) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (cached[j] != scratch[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean updateNumber(int i, int value, boolean fire) {
+        if (present[i] && numbers[i] == value) {
+            return false;
+        }
+        final Object old = present[i] ? getValue(i) : null;
+        numbers[i] = value;
+        present[i] = true;
+        fire(fire, i, old, getValue(i));
+        return true;
+    }
+
+    private void fire(boolean fire, int i, Object oldValue, Object newValue) {
+        if (!fire) {
+            return;
+        }
+        changes.incrementAndGet();
+        for (final Listener listener : listeners) {
+            try {
+                listener.onChanged(this, names[i], oldValue, newValue);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Converts the stored value to the type returned by {@link CameraWidgets#getValue(String)}.
+     */
+    private Object getValue(int i) {
+        if (!present[i]) {
+            return null;
+        }
+        switch (types[i]) {
+            case Text:
+            case Radio:
+            case Menu:
+                return texts[i];
+            case Range:
+                return Float.intBitsToFloat(numbers[i]);
+            case Toggle:
+                return numbers[i] == 2 ? null : numbers[i] == 1;
+            case Date:
+                return new Date(((long) numbers[i]) * 1000L);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the last known value of a setting.
+     * @param name the widget name, not null.
+     * @return the value as returned by {@link CameraWidgets#getValue(String)}, null if unknown or not offered by the camera.
+     */
+    public Object getValue(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return getValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the current interval of the whole configuration refresh, in milliseconds.
+     */
+    public long getIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    /**
+     * @return the number of whole configuration reads, including the initial one.
+     */
+    public long getFullReadCount() {
+        return fullReads.get();
+    }
+
+    /**
+     * @return the number of single-config reads of hot settings.
+     */
+    public long getHotReadCount() {
+        return hotReads.get();
+    }
+
+    /**
+     * @return the number of change events fired.
+     */
+    public long getChangeCount() {
+        return changes.get();
+    }
+
+    /**
+     * Time spent by {@link #poll()} invocations which read the camera.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getPollStats() {
+        return pollStats;
+    }
+
+    /**
+     * Stops polling started by {@link #start(ScheduledExecutorService)}. Does not close the camera. Further invocations do nothing.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+}
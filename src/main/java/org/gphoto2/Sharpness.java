@@ -0,0 +1,108 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.awt.Rectangle;
+
+/**
+ * Computes focus metrics over the luma plane of a decoded preview frame. The loops are kept branch-free over plain
+ * <code>int</code> arrays so that the JIT can vectorize them.
+ */
+public final class Sharpness {
+
+    private Sharpness() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Converts the region of interest of an RGB image to luma, using the BT.601 weights.
+     * @param rgb the pixels in the 0xRRGGBB format, row by row.
+     * @param width the image width.
+     * @param roi the region of interest, must lie within the image.
+     * @param luma the target array of at least roi.width * roi.height items, or null.
+     * @return the luma plane of the region, row by row, 0..255. The <code>luma</code> array if it was big enough.
+     */
+    public static int[] toLuma(int[] rgb, int width, Rectangle roi, int[] luma) {
+        final int size = roi.width * roi.height;
+        if (luma == null || luma.length < size) {
+            luma = new int[size];
+        }
+        for (int y = 0; y < roi.height; y++) {
+            final int src = (roi.y + y) * width + roi.x;
+            final int dst = y * roi.width;
+            for (int x = 0; x < roi.width; x++) {
+                final int p = rgb[src + x];
+                luma[dst + x] = (77 * ((p >> 16) & 0xff) + 150 * ((p >> 8) & 0xff) + 29 * (p & 0xff)) >> 8;
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Computes the variance of the 4-neighbour Laplacian of the luma plane. Sharp images have strong edges and therefore a high
+     * variance; the value is only comparable between frames of the same scene and region.
+     * @param luma the luma plane, row by row.
+     * @param width the plane width, 3 or greater.
+     * @param height the plane height, 3 or greater.
+     * @return the variance, 0 or greater.
+     */
+    public static double laplacianVariance(int[] luma, int width, int height) {
+        if (width < 3 || height < 3) {
+            throw new IllegalArgumentException("Parameter width/height: invalid value " + width + "x" + height + ": must be 3x3 or greater");
+        }
+        long sum = 0;
+        long sumSquares = 0;
+        for (int y = 1; y < height - 1; y++) {
+            final int row = y * width;
+            for (int x = 1; x < width - 1; x++) {
+                final int i = row + x;
+                final int l = luma[i - width] + luma[i + width] + luma[i - 1] + luma[i + 1] - 4 * luma[i];
+                sum += l;
+                sumSquares += l * l;
+            }
+        }
+        final double n = (double) (width - 2) * (height - 2);
+        final double mean = sum / n;
+        return sumSquares / n - mean * mean;
+    }
+
+    /**
+     * Computes the Laplacian variance of the region of interest of given frame.
+     * @param frame the frame, not null.
+     * @param roi the region of interest, null for the whole frame.
+     * @return the variance, 0 or greater.
+     */
+    public static double laplacianVariance(DecodedFrame frame, Rectangle roi) {
+        return laplacianVariance(frame.getPixels(), frame.getWidth(), frame.getHeight(), roi);
+    }
+
+    /**
+     * Computes the Laplacian variance of the region of interest of given image.
+     * @param rgb the pixels in the 0xRRGGBB format, row by row.
+     * @param width the image width.
+     * @param height the image height.
+     * @param roi the region of interest, null for the whole image. Clipped to the image.
+     * @return the variance, 0 or greater.
+     */
+    public static double laplacianVariance(int[] rgb, int width, int height, Rectangle roi) {
+        final Rectangle r = roi == null ? new Rectangle(0, 0, width, height) : roi.intersection(new Rectangle(0, 0, width, height));
+        final int[] luma = toLuma(rgb, width, r, null);
+        return laplacianVariance(luma, r.width, r.height);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.gphoto2.jna.GPhoto2Native;
+import org.gphoto2.jna.GPhoto2Native.CameraStorageInformation;
+
+/**
+ * Capacity and free space of a camera storage, e.g. a memory card. Immutable. See {@link Camera#getStorageInfo()}.
+ */
+public final class StorageInfo {
+
+    private final int fields;
+    private final String baseDir;
+    private final String label;
+    private final String description;
+    private final int access;
+    private final long capacityBytes;
+    private final long freeBytes;
+    private final long freeImages;
+
+    StorageInfo(CameraStorageInformation si) {
+        fields = si.fields;
+        baseDir = CameraUtils.toString(si.basedir);
+        label = CameraUtils.toString(si.label);
+        description = CameraUtils.toString(si.description);
+        access = si.access;
+        capacityBytes = si.capacitykbytes * 1024;
+        freeBytes = si.freekbytes * 1024;
+        freeImages = si.freeimages;
+    }
+
+    private boolean has(int field) {
+        return (fields & field) != 0;
+    }
+
+    /**
+     * @return the base directory of the storage, for example /store_00010001, never null, empty if not reported.
+     */
+    public String getBaseDir() {
+        return baseDir;
+    }
+
+    /**
+     * @return the label, never null, empty if not reported.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return the description, never null, empty if not reported.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return false if the storage is known to be read-only.
+     */
+    public boolean isWritable() {
+        return !has(GPhoto2Native.GP_STORAGEINFO_ACCESS) || access == GPhoto2Native.GP_STORAGEINFO_AC_READWRITE;
+    }
+
+    /**
+     * @return the capacity in bytes, -1 if not reported.
+     */
+    public long getCapacityBytes() {
+        return has(GPhoto2Native.GP_STORAGEINFO_MAXCAPACITY) ? capacityBytes : -1;
+    }
+
+    /**
+     * @return the free space in bytes, -1 if not reported.
+     */
+    public long getFreeBytes() {
+        return has(GPhoto2Native.GP_STORAGEINFO_FREESPACEKBYTES) ? freeBytes : -1;
+    }
+
+    /**
+     * @return the number of images which still fit, as estimated by the camera itself; -1 if not reported.
+     */
+    public long getFreeImages() {
+        return has(GPhoto2Native.GP_STORAGEINFO_FREESPACEIMAGES) ? freeImages : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageInfo{" + baseDir + " " + label + ", free=" + getFreeBytes() + "/" + getCapacityBytes() + "B, freeImages=" + getFreeImages()
+                + (isWritable() ? "" : ", read-only") + '}';
+    }
+}
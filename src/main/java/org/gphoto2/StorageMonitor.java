@@ -0,0 +1,234 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the free space of the camera storages and projects how many shots still fit, so that a full card is noticed before
+ * a capture fails. Thread-unsafe: use from the thread which owns the camera.
+ * <p></p>
+ * The storage information is read from the camera at most once per poll interval, by {@link #update()}; invoke it from the
+ * capture loop as often as convenient, it costs nothing between the polls. The shots remaining are projected from the rolling
+ * average size of the recently downloaded files, reported by {@link #recordDownload(long)}; until a download is recorded, the
+ * camera's own estimate is used. When the projection falls to or below a {@link #addThreshold(long) threshold}, the
+ * {@link Listener} is notified once; it is notified again after the projection rises above the threshold and falls again.
+ */
+public final class StorageMonitor {
+
+    private static final Logger log = Logger.getLogger(StorageMonitor.class.getName());
+
+    /**
+     * Notified when the shots remaining fall to or below a threshold.
+     */
+    public static interface Listener {
+
+        /**
+         * @param shotsRemaining the projected number of shots which still fit on all writable storages.
+         * @param threshold the threshold which was crossed.
+         * @param storages the current storage information, never null.
+         */
+        void thresholdCrossed(long shotsRemaining, long threshold, List<StorageInfo> storages);
+    }
+
+    private final Camera camera;
+    private final long pollIntervalNanos;
+    private final long[] recentSizes;
+    private int recentCount = 0;
+    private int recentNext = 0;
+    private long recentTotal = 0;
+    private final TreeSet<Long> thresholds = new TreeSet<Long>();
+    /**
+     * Thresholds which were crossed and have not been re-armed yet.
+     */
+    private final TreeSet<Long> crossed = new TreeSet<Long>();
+    private Listener listener;
+    private List<StorageInfo> storages = Collections.emptyList();
+    private long lastPoll = 0;
+    private boolean polled = false;
+    private final LatencyStats pollStats = new LatencyStats("storage-poll");
+
+    /**
+     * Creates the monitor.
+     * @param camera the initialized camera, not null.
+     * @param pollInterval the minimum time between two reads of the storage information.
+     * @param unit the interval unit, not null.
+     * @param window the number of recent downloads averaged for the projection, 1 or greater.
+     */
+    public StorageMonitor(Camera camera, long pollInterval, TimeUnit unit, int window) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        if (window < 1) {
+            throw new IllegalArgumentException("Parameter window: invalid value " + window + ": must be 1 or greater");
+        }
+        this.pollIntervalNanos = unit.toNanos(pollInterval);
+        recentSizes = new long[window];
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a threshold of shots remaining.
+     * @param shotsRemaining the threshold, 0 or greater. 0 is crossed when the storages are full.
+     */
+    public void addThreshold(long shotsRemaining) {
+        if (shotsRemaining < 0) {
+            throw new IllegalArgumentException("Parameter shotsRemaining: invalid value " + shotsRemaining + ": must not be negative");
+        }
+        thresholds.add(shotsRemaining);
+    }
+
+    /**
+     * Records the size of a downloaded file, for the projection of the shots remaining.
+     * @param bytes the file size.
+     */
+    public void recordDownload(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        recentTotal -= recentSizes[recentNext];
+        recentSizes[recentNext] = bytes;
+        recentTotal += bytes;
+        recentNext = (recentNext + 1) % recentSizes.length;
+        if (recentCount < recentSizes.length) {
+            recentCount++;
+        }
+    }
+
+    /**
+     * Records the size of a downloaded file, see {@link #recordDownload(long)}.
+     * @param file the downloaded file, not null.
+     */
+    public void recordDownload(CameraFile file) {
+        recordDownload(file.getSize());
+    }
+
+    /**
+     * @return the rolling average size of the recent downloads in bytes, 0 if none was recorded yet.
+     */
+    public long getAverageFileSize() {
+        return recentCount == 0 ? 0 : recentTotal / recentCount;
+    }
+
+    /**
+     * Reads the storage information from the camera if the poll interval elapsed since the last read, then checks the
+     * thresholds.
+     * @return true if the storage information was read.
+     */
+    public boolean update() {
+        if (polled && System.nanoTime() - lastPoll < pollIntervalNanos) {
+            return false;
+        }
+        refresh();
+        return true;
+    }
+
+    /**
+     * Reads the storage information from the camera now, then checks the thresholds.
+     */
+    public void refresh() {
+        final long start = System.nanoTime();
+        storages = Collections.unmodifiableList(camera.getStorageInfo());
+        pollStats.recordSince(start);
+        lastPoll = System.nanoTime();
+        polled = true;
+        checkThresholds();
+    }
+
+    /**
+     * Returns the storage information read by the last poll.
+     * @return the storages, never null, empty before the first poll.
+     */
+    public List<StorageInfo> getStorages() {
+        return storages;
+    }
+
+    /**
+     * Projects the number of shots which still fit on the writable storages, as of the last poll.
+     * @return the shots remaining, -1 if unknown: nothing was polled yet, or the camera reports neither the free space nor the
+     * free images.
+     */
+    public long getShotsRemaining() {
+        long result = -1;
+        final long average = getAverageFileSize();
+        for (final StorageInfo s : storages) {
+            if (!s.isWritable()) {
+                continue;
+            }
+            final long shots;
+            if (average > 0 && s.getFreeBytes() >= 0) {
+                shots = s.getFreeBytes() / average;
+            } else if (s.getFreeImages() >= 0) {
+                shots = s.getFreeImages();
+            } else {
+                continue;
+            }
+            result = Math.max(result, 0) + shots;
+        }
+        return result;
+    }
+
+    /**
+     * Time spent reading the storage information from the camera.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getPollStats() {
+        return pollStats;
+    }
+
+    private void checkThresholds() {
+        final long shots = getShotsRemaining();
+        if (shots < 0) {
+            return;
+        }
+        // re-arm the thresholds we are above again.
+        crossed.headSet(shots).clear();
+        final List<Long> fired = new ArrayList<Long>();
+        for (final Long t : thresholds.tailSet(shots)) {
+            if (crossed.add(t)) {
+                fired.add(t);
+            }
+        }
+        // the highest threshold first.
+        Collections.reverse(fired);
+        final Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        for (final Long t : fired) {
+            try {
+                l.thresholdCrossed(shots, t, storages);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Storage listener failed", ex);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StorageMonitor{shotsRemaining=" + getShotsRemaining() + ", averageFileSize=" + getAverageFileSize() + ", storages=" + storages + '}';
+    }
+}
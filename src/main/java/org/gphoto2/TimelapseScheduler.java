@@ -0,0 +1,364 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drift-free intervalometer. Captures are fired on absolute deadlines <code>start + n * interval</code> measured by the monotonic
+ * {@link System#nanoTime()} clock, so capture and download times do not accumulate. Thread-safe.
+ * <p></p>
+ * The trigger thread only captures the image to the camera storage; downloads run on a separate thread in the gaps between
+ * triggers (a download is not started when it would not finish before the next deadline), and the {@link FrameSink} runs on a
+ * third thread, so a slow disk never delays the shutter. Slots which could not be fired on time are handled according to the
+ * {@link MissedSlotPolicy}. The trigger jitter, the difference between the deadline and the actual trigger, is recorded in
+ * {@link #getJitterStats()}.
+ */
+public final class TimelapseScheduler implements Closeable {
+
+    private static final Logger log = Logger.getLogger(TimelapseScheduler.class.getName());
+    /**
+     * The scheduler parks the trigger thread until this long before the deadline, then spins.
+     */
+    private static final long SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /**
+     * What to do with slots whose deadline passed before the previous capture finished.
+     */
+    public static enum MissedSlotPolicy {
+
+        /**
+         * Drop the missed slots; continue with the next slot on the original schedule.
+         */
+        Skip,
+        /**
+         * Fire the missed slots immediately, back to back, until the schedule is caught up.
+         */
+        CatchUp,
+        /**
+         * Fire the next slot immediately and shift the whole schedule by the delay.
+         */
+        Shift
+    }
+
+    /**
+     * Receives the captured frames.
+     */
+    public static interface FrameSink {
+
+        /**
+         * Invoked for every downloaded file, on the storage thread.
+         * @param slot the zero-based slot number.
+         * @param path the path of the file on the camera, not null.
+         * @param file the downloaded file, not null. The sink must close it.
+         */
+        void frameCaptured(long slot, CameraFile.Path path, CameraFile file);
+    }
+    private final Camera camera;
+    private final long intervalNanos;
+    private final MissedSlotPolicy policy;
+    private final FrameSink sink;
+    private final ReentrantLock cameraLock = new ReentrantLock(true);
+    private final BlockingQueue<Shot> downloads = new LinkedBlockingQueue<Shot>();
+    private final ExecutorService storage;
+    private final LatencyStats jitterStats = new LatencyStats("trigger-jitter");
+    private final LatencyStats captureStats = new LatencyStats("capture");
+    private final LatencyStats downloadStats = new LatencyStats("download");
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long nextDeadline = Long.MAX_VALUE;
+    private long downloadAverage = -1;
+    private long downloadDeviation = 0;
+    private volatile long downloadEstimate = 0;
+    private volatile boolean running = false;
+    private Thread trigger;
+    private Thread downloader;
+
+    /**
+     * Creates the scheduler. Call {@link #start()} to start capturing.
+     * @param camera the initialized camera, not null. Must not be used by anyone else while the scheduler runs.
+     * @param interval the capture interval.
+     * @param unit the interval unit.
+     * @param policy handles missed slots, not null.
+     * @param sink receives the captured frames, not null.
+     */
+    public TimelapseScheduler(Camera camera, long interval, TimeUnit unit, MissedSlotPolicy policy, FrameSink sink) {
+        this.camera = CameraUtils.requireNotNull(camera, "camera");
+        this.intervalNanos = unit.toNanos(interval);
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("Parameter interval: invalid value " + interval + ": must be positive");
+        }
+        this.policy = CameraUtils.requireNotNull(policy, "policy");
+        this.sink = CameraUtils.requireNotNull(sink, "sink");
+        storage = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "gphoto2-timelapse-storage");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Fires the first capture immediately and the following ones on the interval.
+     */
+    public synchronized void start() {
+        if (trigger != null) {
+            throw new IllegalStateException("Invalid state: already started");
+        }
+        running = true;
+        trigger = new Thread("gphoto2-timelapse-trigger") {
+            @Override
+            public void run() {
+                triggerLoop();
+            }
+        };
+        trigger.setPriority(Thread.MAX_PRIORITY);
+        trigger.setDaemon(true);
+        downloader = new Thread("gphoto2-timelapse-download") {
+            @Override
+            public void run() {
+                downloadLoop();
+            }
+        };
+        downloader.setDaemon(true);
+        trigger.start();
+        downloader.start();
+    }
+
+    private void triggerLoop() {
+        long base = System.nanoTime();
+        long slot = 0;
+        while (running) {
+            final long deadline = base + slot * intervalNanos;
+            nextDeadline = deadline;
+            if (!waitUntil(deadline)) {
+                return;
+            }
+            cameraLock.lock();
+            try {
+                final long start = System.nanoTime();
+                jitterStats.record(start - deadline);
+                try {
+                    final CameraFile.Path path = camera.capture();
+                    downloads.add(new Shot(slot, path));
+                } catch (RuntimeException ex) {
+                    // GPhotoException, but also e.g. the IllegalStateException of a full camera RAM; the slot fails, the
+                    // schedule goes on.
+                    failed.incrementAndGet();
+                    log.log(Level.WARNING, "Capture of slot " + slot + " failed", ex);
+                }
+                captureStats.recordSince(start);
+            } finally {
+                cameraLock.unlock();
+            }
+            slot++;
+            final long now = System.nanoTime();
+            if (now > base + slot * intervalNanos) {
+                switch (policy) {
+                    case Skip: {
+                        final long next = (now - base + intervalNanos - 1) / intervalNanos;
+                        missed.addAndGet(next - slot);
+                        slot = next;
+                        break;
+                    }
+                    case Shift:
+                        missed.incrementAndGet();
+                        base = now - slot * intervalNanos;
+                        break;
+                    case CatchUp:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parks until shortly before the deadline, then spins, to avoid the scheduler latency of waking up a parked thread.
+     * @return false if the scheduler was stopped meanwhile.
+     */
+    private boolean waitUntil(long deadline) {
+        while (running) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+        return false;
+    }
+
+    private void downloadLoop() {
+        while (running || !downloads.isEmpty()) {
+            final Shot shot;
+            try {
+                shot = downloads.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (shot == null) {
+                continue;
+            }
+            // do not start a download which would delay the next trigger.
+            while (running && !fitsBeforeNextDeadline()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+            final CameraFile file;
+            cameraLock.lock();
+            try {
+                final long start = System.nanoTime();
+                file = camera.download(shot.path);
+                final long duration = System.nanoTime() - start;
+                downloadStats.record(duration);
+                updateDownloadEstimate(duration);
+            } catch (RuntimeException ex) {
+                failed.incrementAndGet();
+                log.log(Level.WARNING, "Download of slot " + shot.slot + " failed", ex);
+                continue;
+            } finally {
+                cameraLock.unlock();
+            }
+            storage.execute(new Runnable() {
+                public void run() {
+                    try {
+                        sink.frameCaptured(shot.slot, shot.path, file);
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Frame sink failed for slot " + shot.slot, t);
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean fitsBeforeNextDeadline() {
+        if (cameraLock.isLocked()) {
+            // the trigger is capturing right now; the download will start right after it.
+            return true;
+        }
+        return nextDeadline - System.nanoTime() > downloadEstimate + SPIN_NANOS;
+    }
+
+    /**
+     * Updates the smoothed download duration and its mean deviation, the same way TCP estimates the round trip time, so the
+     * estimate follows the recent downloads and a single slow download early in the session does not block the rest of it.
+     * Invoked on the download thread only.
+     */
+    private void updateDownloadEstimate(long duration) {
+        if (downloadAverage < 0) {
+            downloadAverage = duration;
+            downloadDeviation = duration / 2;
+        } else {
+            downloadDeviation += (Math.abs(duration - downloadAverage) - downloadDeviation) / 4;
+            downloadAverage += (duration - downloadAverage) / 8;
+        }
+        downloadEstimate = downloadAverage + 4 * downloadDeviation;
+    }
+
+    private static final class Shot {
+
+        final long slot;
+        final CameraFile.Path path;
+
+        Shot(long slot, CameraFile.Path path) {
+            this.slot = slot;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Difference between the deadline and the actual trigger. Slots fired late because of the {@link MissedSlotPolicy#CatchUp}
+     * policy are included.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getJitterStats() {
+        return jitterStats;
+    }
+
+    /**
+     * Duration of the capture on the trigger thread.
+     * @return the statistics, never null.
+     */
+    public LatencyStats getCaptureStats() {
+        return captureStats;
+    }
+
+    public LatencyStats getDownloadStats() {
+        return downloadStats;
+    }
+
+    /**
+     * Returns the number of slots skipped ({@link MissedSlotPolicy#Skip}) or schedule shifts ({@link MissedSlotPolicy#Shift})
+     * caused by a capture which took longer than the interval.
+     * @return 0 or greater.
+     */
+    public long getMissedCount() {
+        return missed.get();
+    }
+
+    /**
+     * Returns the number of failed captures and downloads.
+     * @return 0 or greater.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stops triggering, then waits until the already captured frames are downloaded and stored.
+     */
+    public void close() {
+        final Thread t;
+        final Thread d;
+        synchronized (this) {
+            running = false;
+            t = trigger;
+            d = downloader;
+        }
+        try {
+            if (t != null) {
+                LockSupport.unpark(t);
+                t.join();
+            }
+            if (d != null) {
+                d.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        storage.shutdown();
+        try {
+            storage.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads a set of files, e.g. picture styles, overlay images or test images, to every camera of a rig, in parallel: one thread
+ * per camera, each camera receives the files in the order they were added. Thread-unsafe while being built; {@link #upload(Collection)}
+ * may be invoked repeatedly.
+ * <p></p>
+ * libgphoto2 uploads a file as a whole, so each upload holds the whole file in native memory. The memory used by all cameras
+ * together is bounded: a camera waits before loading a file until enough of the budget is free. A file larger than the budget
+ * is uploaded alone.
+ * <pre>
+ * final UploadBatch batch = new UploadBatch(64 * 1024 * 1024);
+ * batch.add("/store_00010001", new File("overlay.png"));
+ * final UploadBatch.Result result = batch.upload(cameras);
+ * </pre>
+ */
+public final class UploadBatch {
+
+    private static final Logger log = Logger.getLogger(UploadBatch.class.getName());
+
+    /**
+     * A file to upload.
+     */
+    private static final class Item {
+
+        final String folder;
+        final String filename;
+        final File source;
+        final ByteBuffer data;
+
+        Item(String folder, String filename, File source, ByteBuffer data) {
+            this.folder = folder;
+            this.filename = filename;
+            this.source = source;
+            this.data = data;
+        }
+
+        long size() {
+            return source != null ? source.length() : data.remaining();
+        }
+
+        CameraFile load() throws IOException {
+            return source != null ? CameraFile.fromFile(source) : CameraFile.fromData(data);
+        }
+
+        @Override
+        public String toString() {
+            return folder + "/" + filename;
+        }
+    }
+
+    /**
+     * The outcome of an upload to a single camera.
+     */
+    public static final class CameraResult {
+
+        /**
+         * The number of files uploaded.
+         */
+        public final int files;
+        public final long bytes;
+        /**
+         * The time the camera spent uploading, in nanoseconds.
+         */
+        public final long nanos;
+        /**
+         * The failed uploads, keyed by the target path. Never null, may be empty.
+         */
+        public final Map<String, Throwable> failures;
+
+        CameraResult(int files, long bytes, long nanos, Map<String, Throwable> failures) {
+            this.files = files;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return the upload throughput of the camera, in bytes per second.
+         */
+        public double getBytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "CameraResult{files=" + files + ", bytes=" + bytes + ", " + String.format("%.2f", getBytesPerSecond() / 1e6) + "MB/s, failures="
+                    + failures.keySet() + '}';
+        }
+    }
+
+    /**
+     * The outcome of an upload to all cameras.
+     */
+    public static final class Result {
+
+        /**
+         * The per-camera results, in the order of the cameras.
+         */
+        public final Map<Camera, CameraResult> cameras;
+        /**
+         * The wall-clock time of the whole upload, in nanoseconds.
+         */
+        public final long nanos;
+        /**
+         * The duration of the individual uploads.
+         */
+        public final LatencyStats uploadStats;
+
+        Result(Map<Camera, CameraResult> cameras, long nanos, LatencyStats uploadStats) {
+            this.cameras = Collections.unmodifiableMap(cameras);
+            this.nanos = nanos;
+            this.uploadStats = uploadStats;
+        }
+
+        public long getBytes() {
+            long result = 0;
+            for (final CameraResult r : cameras.values()) {
+                result += r.bytes;
+            }
+            return result;
+        }
+
+        /**
+         * @return the aggregate throughput of the rig, in bytes per second.
+         */
+        public double getBytesPerSecond() {
+            return nanos == 0 ? 0 : getBytes() * 1e9 / nanos;
+        }
+
+        /**
+         * @return true if every file was uploaded to every camera.
+         */
+        public boolean isSuccess() {
+            for (final CameraResult r : cameras.values()) {
+                if (!r.failures.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + cameras.size() + " cameras, " + getBytes() + " bytes in " + nanos / 1000000 + "ms, "
+                    + String.format("%.2f", getBytesPerSecond() / 1e6) + "MB/s, " + uploadStats + '}';
+        }
+    }
+    private final List<Item> items = new ArrayList<Item>();
+    private final int budgetKb;
+
+    /**
+     * Creates an empty batch.
+     * @param maxBufferedBytes the native memory all cameras together may use for the file data, e.g. 64MB.
+     */
+    public UploadBatch(long maxBufferedBytes) {
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("Parameter maxBufferedBytes: invalid value " + maxBufferedBytes + ": must be 1 or greater");
+        }
+        budgetKb = (int) Math.min(Integer.MAX_VALUE, (maxBufferedBytes + 1023) / 1024);
+    }
+
+    /**
+     * Adds a local file, uploaded under its name. The file is read when uploading, once per camera.
+     * @param folder the absolute target folder on the camera, not null.
+     * @param source the local file, not null.
+     * @return this
+     */
+    public UploadBatch add(String folder, File source) {
+        CameraUtils.requireNotNull(folder, "folder");
+        if (!CameraUtils.requireNotNull(source, "source").isFile()) {
+            throw new IllegalArgumentException("Parameter source: invalid value " + source + ": not a file");
+        }
+        items.add(new Item(folder, source.getName(), source, null));
+        return this;
+    }
+
+    /**
+     * Adds a file generated in memory.
+     * @param folder the absolute target folder on the camera, not null.
+     * @param filename the target file name, not null.
+     * @param data the file data, not null. The remaining bytes are uploaded; must not be modified until the upload completes.
+     * @return this
+     */
+    public UploadBatch add(String folder, String filename, ByteBuffer data) {
+        CameraUtils.requireNotNull(folder, "folder");
+        CameraUtils.requireNotNull(filename, "filename");
+        items.add(new Item(folder, filename, null, CameraUtils.requireNotNull(data, "data").duplicate()));
+        return this;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Uploads all files to all given cameras, in parallel. A failed file does not stop the upload of the others.
+     * @param cameras the initialized cameras, not null. Must not be used by anyone else during the upload.
+     * @return the result, never null.
+     * @throws InterruptedException if interrupted while waiting for the cameras; the uploads in progress are cancelled.
+     */
+    public Result upload(Collection<Camera> cameras) throws InterruptedException {
+        final Semaphore budget = new Semaphore(budgetKb, true);
+        final LatencyStats uploadStats = new LatencyStats("upload");
+        final Map<Camera, Future<CameraResult>> futures = new LinkedHashMap<Camera, Future<CameraResult>>();
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, cameras.size()));
+        try {
+            for (final Camera camera : cameras) {
+                futures.put(camera, executor.submit(new Callable<CameraResult>() {
+                    public CameraResult call() throws InterruptedException {
+                        return upload(camera, budget, uploadStats);
+                    }
+                }));
+            }
+            final Map<Camera, CameraResult> results = new LinkedHashMap<Camera, CameraResult>();
+            for (final Map.Entry<Camera, Future<CameraResult>> e : futures.entrySet()) {
+                try {
+                    results.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException ex) {
+                    final Map<String, Throwable> failure = new LinkedHashMap<String, Throwable>();
+                    failure.put("*", ex.getCause());
+                    results.put(e.getKey(), new CameraResult(0, 0, 0, failure));
+                }
+            }
+            return new Result(results, System.nanoTime() - start, uploadStats);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CameraResult upload(Camera camera, Semaphore budget, LatencyStats uploadStats) throws InterruptedException {
+        final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        int files = 0;
+        long bytes = 0;
+        final long start = System.nanoTime();
+        for (final Item item : items) {
+            final int permits = (int) Math.min(budgetKb, (item.size() + 1023) / 1024);
+            budget.acquire(permits);
+            try {
+                final long t = System.nanoTime();
+                final CameraFile file = item.load();
+                try {
+                    camera.upload(item.folder, item.filename, file);
+                    bytes += file.getSize();
+                    files++;
+                } finally {
+                    CameraUtils.closeQuietly(file);
+                }
+                uploadStats.recordSince(t);
+            } catch (IOException ex) {
+                failures.put(item.toString(), ex);
+                log.log(Level.WARNING, "Failed to read " + item.source, ex);
+            } catch (GPhotoException ex) {
+                failures.put(item.toString(), ex);
+                log.log(Level.WARNING, "Failed to upload " + item + " to " + camera.getModel() + " on " + camera.getPort(), ex);
+            } finally {
+                budget.release(permits);
+            }
+        }
+        return new CameraResult(files, bytes, System.nanoTime() - start, failures);
+    }
+
+    @Override
+    public String toString() {
+        return "UploadBatch" + items;
+    }
+}
@@ -18,14 +18,19 @@
  */
 package org.gphoto2.jna;
 
+import com.sun.jna.Callback;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
 import com.sun.jna.Structure;
 import com.sun.jna.ptr.ByReference;
 import com.sun.jna.ptr.FloatByReference;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
 import com.sun.jna.ptr.PointerByReference;
+import org.gphoto2.NativeOffload;
 
 import java.util.Arrays;
 import java.util.List;
@@ -222,9 +227,66 @@ public interface GPhoto2Native extends Library {
     int GP_CAPTURE_MOVIE = 1;
     int GP_CAPTURE_SOUND = 2;
     int GP_FILE_TYPE_NORMAL = 1;
+    /**
+     * Camera operations, see {@link CameraAbilities#operations}.
+     */
+    int GP_OPERATION_NONE = 0;
+    int GP_OPERATION_CAPTURE_IMAGE = 1 << 0;
+    int GP_OPERATION_CAPTURE_VIDEO = 1 << 1;
+    int GP_OPERATION_CAPTURE_AUDIO = 1 << 2;
+    int GP_OPERATION_CAPTURE_PREVIEW = 1 << 3;
+    int GP_OPERATION_CONFIG = 1 << 4;
+    int GP_OPERATION_TRIGGER_CAPTURE = 1 << 5;
+    /**
+     * File operations, see {@link CameraAbilities#file_operations}.
+     */
+    int GP_FILE_OPERATION_NONE = 0;
+    int GP_FILE_OPERATION_DELETE = 1 << 1;
+    int GP_FILE_OPERATION_PREVIEW = 1 << 3;
+    int GP_FILE_OPERATION_RAW = 1 << 4;
+    int GP_FILE_OPERATION_AUDIO = 1 << 5;
+    int GP_FILE_OPERATION_EXIF = 1 << 6;
+    /**
+     * Folder operations, see {@link CameraAbilities#folder_operations}.
+     */
+    int GP_FOLDER_OPERATION_NONE = 0;
+    int GP_FOLDER_OPERATION_DELETE_ALL = 1 << 0;
+    int GP_FOLDER_OPERATION_PUT_FILE = 1 << 1;
+    int GP_FOLDER_OPERATION_MAKE_DIR = 1 << 2;
+    int GP_FOLDER_OPERATION_REMOVE_DIR = 1 << 3;
+    /**
+     * Unknown event, the event data is a string describing the event.
+     */
+    int GP_EVENT_UNKNOWN = 0;
+    /**
+     * No event arrived within the timeout.
+     */
+    int GP_EVENT_TIMEOUT = 1;
+    /**
+     * A new file was added, the event data is a {@link CameraFilePath}.
+     */
+    int GP_EVENT_FILE_ADDED = 2;
+    /**
+     * A new folder was added, the event data is a {@link CameraFilePath}.
+     */
+    int GP_EVENT_FOLDER_ADDED = 3;
+    /**
+     * The last capture is complete.
+     */
+    int GP_EVENT_CAPTURE_COMPLETE = 4;
+    /**
+     * Log levels, see {@link #gp_log_add_func(int, GPLogFunc, Pointer)}.
+     */
+    int GP_LOG_ERROR = 0;
+    int GP_LOG_VERBOSE = 1;
+    int GP_LOG_DEBUG = 2;
+    int GP_LOG_DATA = 3;
     int GP_VERSION_SHORT = 0;
     int GP_VERSION_VERBOSE = 1;
-    GPhoto2Native INSTANCE = (GPhoto2Native) Native.loadLibrary("gphoto2", GPhoto2Native.class);
+    /**
+     * The library. Blocking calls made from virtual threads are offloaded to platform threads, see {@link NativeOffload}.
+     */
+    GPhoto2Native INSTANCE = NativeOffload.wrap(GPhoto2Native.class, (GPhoto2Native) Native.loadLibrary("gphoto2", GPhoto2Native.class));
 
     int gp_camera_new(PointerByReference pcamera);
 
@@ -236,6 +298,51 @@ public interface GPhoto2Native extends Library {
 
     Pointer gp_context_new();
 
+    /**
+     * Feedback of {@link GPContextCancelFunc}: continue the operation.
+     */
+    int GP_CONTEXT_FEEDBACK_OK = 0;
+    /**
+     * Feedback of {@link GPContextCancelFunc}: abort the operation, which then fails with {@link #GP_ERROR_CANCEL}.
+     */
+    int GP_CONTEXT_FEEDBACK_CANCEL = 1;
+
+    /**
+     * Polled by camlibs during long operations.
+     */
+    interface GPContextCancelFunc extends Callback {
+
+        /**
+         * @return {@link #GP_CONTEXT_FEEDBACK_OK} or {@link #GP_CONTEXT_FEEDBACK_CANCEL}.
+         */
+        int cancel(Pointer context, Pointer data);
+    }
+
+    interface GPContextProgressStartFunc extends Callback {
+
+        /**
+         * @param target the value of the progress when the operation completes.
+         * @param text the operation description, a C string.
+         * @return the progress id, passed to the update and stop functions.
+         */
+        int start(Pointer context, float target, Pointer text, Pointer data);
+    }
+
+    interface GPContextProgressUpdateFunc extends Callback {
+
+        void update(Pointer context, int id, float current, Pointer data);
+    }
+
+    interface GPContextProgressStopFunc extends Callback {
+
+        void stop(Pointer context, int id, Pointer data);
+    }
+
+    void gp_context_set_cancel_func(Pointer context, GPContextCancelFunc func, Pointer data);
+
+    void gp_context_set_progress_funcs(Pointer context, GPContextProgressStartFunc startFunc, GPContextProgressUpdateFunc updateFunc,
+            GPContextProgressStopFunc stopFunc, Pointer data);
+
     String gp_result_as_string(int result);
 
     int gp_file_new(PointerByReference p);
@@ -248,8 +355,59 @@ public interface GPhoto2Native extends Library {
 
     int gp_camera_capture(Pointer camera, int GP_CAPTURE_IMAGE, CameraFilePath path, Pointer context);
 
+    /**
+     * Same as {@link #gp_camera_capture(Pointer, int, CameraFilePath, Pointer)}, writing the path into preallocated memory of
+     * {@link CameraFilePath#SIZE} bytes.
+     */
+    int gp_camera_capture(Pointer camera, int GP_CAPTURE_IMAGE, Pointer path, Pointer context);
+
     int gp_camera_file_get(Pointer cam, String path, String filename, int GP_FILE_TYPE_NORMAL, Pointer cf, Pointer context);
 
+    /**
+     * Same as {@link #gp_camera_file_get(Pointer, String, String, int, Pointer, Pointer)}, taking the folder and file name as
+     * NUL-terminated strings in native memory.
+     */
+    int gp_camera_file_get(Pointer cam, Pointer path, Pointer filename, int GP_FILE_TYPE_NORMAL, Pointer cf, Pointer context);
+
+    /**
+     * Reads a part of a file from the camera, without holding the whole file in memory. Since libgphoto2 2.5.2; not supported by all
+     * drivers.
+     * @param camera the camera
+     * @param folder the folder
+     * @param file the file name
+     * @param type the file type, e.g. {@link #GP_FILE_TYPE_NORMAL}
+     * @param offset the offset in the file
+     * @param buf receives the data
+     * @param size the buffer size on input, the number of bytes read on output. 0 at the end of the file.
+     * @param context the context
+     * @return the result
+     */
+    int gp_camera_file_read(Pointer camera, String folder, String file, int type, long offset, Pointer buf, LongByReference size, Pointer context);
+
+    /**
+     * Reads the file metadata (size, modification time etc) without downloading the file.
+     * @param camera the camera
+     * @param folder the folder
+     * @param file the file name
+     * @param info receives the metadata
+     * @param context the context
+     * @return the result
+     */
+    int gp_camera_file_get_info(Pointer camera, String folder, String file, CameraFileInfo info, Pointer context);
+
+    int gp_camera_trigger_capture(Pointer camera, Pointer context);
+
+    /**
+     * Waits for an event from the camera.
+     * @param camera the camera
+     * @param timeout the timeout in milliseconds
+     * @param eventtype receives one of the GP_EVENT_* constants
+     * @param eventdata receives the event data, allocated by malloc; must be freed by the caller.
+     * @param context the context
+     * @return the result
+     */
+    int gp_camera_wait_for_event(Pointer camera, int timeout, IntByReference eventtype, PointerByReference eventdata, Pointer context);
+
     int gp_camera_ref(Pointer camera);
 
     int gp_camera_unref(Pointer camera);
@@ -258,6 +416,10 @@ public interface GPhoto2Native extends Library {
 
     int gp_camera_set_config(Pointer camera, Pointer widget, Pointer context);
 
+    int gp_camera_get_single_config(Pointer camera, String name, PointerByReference widget, Pointer context);
+
+    int gp_camera_set_single_config(Pointer camera, String name, Pointer widget, Pointer context);
+
     int gp_file_ref(Pointer cf);
 
     int gp_file_unref(Pointer cf);
@@ -294,10 +456,88 @@ public interface GPhoto2Native extends Library {
 
     int gp_port_info_list_get_info(Pointer portInfoList, int n, PointerByReference portInfo);
 
+    int gp_port_info_list_lookup_path(Pointer portInfoList, String path);
+
     int gp_camera_set_port_info(Pointer camera, Pointer portInfo);
 
+    /**
+     * Receives libgphoto2 log messages.
+     */
+    interface GPLogFunc extends Callback {
+
+        /**
+         * Invoked on the thread which produced the message.
+         * @param level one of the GP_LOG_* constants.
+         * @param domain the message domain, a C string, usually the camlib or module name.
+         * @param str the formatted message, a C string valid only during the callback.
+         * @param data the data passed to gp_log_add_func.
+         */
+        void log(int level, Pointer domain, Pointer str, Pointer data);
+    }
+
+    /**
+     * Registers a log function. libgphoto2 does not even format messages which no registered function accepts.
+     * @param level the maximum level passed to the function, one of the GP_LOG_* constants.
+     * @param func the function. Must be strongly referenced until removed.
+     * @param data passed to the function.
+     * @return the function id for {@link #gp_log_remove_func(int)}, or a negative error.
+     */
+    int gp_log_add_func(int level, GPLogFunc func, Pointer data);
+
+    int gp_log_remove_func(int id);
+
+    int gp_abilities_list_lookup_model(Pointer cameraAbilitiesList, String model);
+
+    int gp_abilities_list_get_abilities(Pointer cameraAbilitiesList, int index, CameraAbilities abilities);
+
+    int gp_camera_get_abilities(Pointer camera, CameraAbilities abilities);
+
+    int gp_camera_set_abilities(Pointer camera, CameraAbilities.ByValue abilities);
+
+    /**
+     * Reads the information about the camera storages.
+     * @param camera the camera
+     * @param sifs receives an array of {@link CameraStorageInformation}, allocated by malloc; must be freed by the caller.
+     * @param nrofsifs receives the number of storages.
+     * @param context the context
+     * @return the result
+     */
+    int gp_camera_get_storageinfo(Pointer camera, PointerByReference sifs, IntByReference nrofsifs, Pointer context);
+
+    int gp_camera_file_delete(Pointer camera, String folder, String file, Pointer context);
+
+    int gp_camera_folder_delete_all(Pointer camera, String folder, Pointer context);
+
+    /**
+     * Uploads a file to the camera.
+     * @param camera the camera
+     * @param folder the target folder
+     * @param filename the target file name
+     * @param type the file type, e.g. {@link #GP_FILE_TYPE_NORMAL}
+     * @param file the file with the data to upload
+     * @param context the context
+     * @return the result
+     */
+    int gp_camera_folder_put_file(Pointer camera, String folder, String filename, int type, Pointer file, Pointer context);
+
+    int gp_camera_folder_list_files(Pointer camera, String folder, Pointer list, Pointer context);
+
+    int gp_camera_folder_list_folders(Pointer camera, String folder, Pointer list, Pointer context);
+
     int gp_file_clean(Pointer cf);
 
+    int gp_file_get_data_and_size(Pointer cf, PointerByReference data, NativeLongByReference size);
+
+    /**
+     * Replaces the file data. The file takes ownership of the data and frees it by <code>free()</code>: allocate it by
+     * {@link Native#malloc(long)}.
+     * @param cf the file
+     * @param data the data, allocated by malloc
+     * @param size the data size in bytes
+     * @return the result
+     */
+    int gp_file_set_data_and_size(Pointer cf, Pointer data, NativeLong size);
+
     /**
      * A structure created by the capture operation.
      *
@@ -318,6 +558,26 @@ public interface GPhoto2Native extends Library {
          * Name of the folder of the captured file.
          */
         public byte[] folder = new byte[1024];
+        /**
+         * Offset of {@link #folder} in the native structure.
+         */
+        public static final int FOLDER_OFFSET = 128;
+        /**
+         * Size of the native structure.
+         */
+        public static final int SIZE = 128 + 1024;
+
+        public CameraFilePath() {
+        }
+
+        /**
+         * Reads the structure from the native memory.
+         * @param p the structure pointer, not null.
+         */
+        public CameraFilePath(Pointer p) {
+            super(p);
+            read();
+        }
 
         public List getFieldOrder() {
             // fixes compatibility with JNA 3.5.0 and higher.
@@ -328,6 +588,191 @@ public interface GPhoto2Native extends Library {
         public static class ByReference extends CameraFilePath implements Structure.ByReference {
         };
     }
+    /**
+     * Describes a camera model and the driver which handles it.
+     */
+    class CameraAbilities extends Structure {
+
+        /**
+         * Name of the camera model.
+         */
+        public byte[] model = new byte[128];
+        /**
+         * Driver quality, one of GP_DRIVER_STATUS_*.
+         */
+        public int status;
+        /**
+         * Supported port types, a bitmask of GP_PORT_*.
+         */
+        public int port;
+        /**
+         * Supported serial port speeds, terminated with 0.
+         */
+        public int[] speed = new int[64];
+        /**
+         * Camera operations, a bitmask of GP_OPERATION_*.
+         */
+        public int operations;
+        /**
+         * File operations, a bitmask of GP_FILE_OPERATION_*.
+         */
+        public int file_operations;
+        /**
+         * Folder operations, a bitmask of GP_FOLDER_OPERATION_*.
+         */
+        public int folder_operations;
+        public int usb_vendor;
+        public int usb_product;
+        public int usb_class;
+        public int usb_subclass;
+        public int usb_protocol;
+        /**
+         * Internal: the camlib file name.
+         */
+        public byte[] library = new byte[1024];
+        /**
+         * Internal: the camlib id.
+         */
+        public byte[] id = new byte[1024];
+        /**
+         * Either a still camera or an audio player, one of GP_DEVICE_*.
+         */
+        public int device_type;
+        public int reserved2;
+        public int reserved3;
+        public int reserved4;
+        public int reserved5;
+        public int reserved6;
+        public int reserved7;
+        public int reserved8;
+
+        public List<String> getFieldOrder() {
+            return Arrays.asList("model", "status", "port", "speed", "operations", "file_operations", "folder_operations", "usb_vendor", "usb_product",
+                    "usb_class", "usb_subclass", "usb_protocol", "library", "id", "device_type", "reserved2", "reserved3", "reserved4", "reserved5",
+                    "reserved6", "reserved7", "reserved8");
+        }
+
+        public static class ByValue extends CameraAbilities implements Structure.ByValue {
+        };
+    }
+    /**
+     * Valid fields of {@link CameraStorageInformation}.
+     */
+    int GP_STORAGEINFO_BASE = 1 << 0;
+    int GP_STORAGEINFO_LABEL = 1 << 1;
+    int GP_STORAGEINFO_DESCRIPTION = 1 << 2;
+    int GP_STORAGEINFO_ACCESS = 1 << 3;
+    int GP_STORAGEINFO_STORAGETYPE = 1 << 4;
+    int GP_STORAGEINFO_FILESYSTEMTYPE = 1 << 5;
+    int GP_STORAGEINFO_MAXCAPACITY = 1 << 6;
+    int GP_STORAGEINFO_FREESPACEKBYTES = 1 << 7;
+    int GP_STORAGEINFO_FREESPACEIMAGES = 1 << 8;
+    /**
+     * Storage access, see {@link CameraStorageInformation#access}.
+     */
+    int GP_STORAGEINFO_AC_READWRITE = 0;
+    int GP_STORAGEINFO_AC_READONLY = 1;
+    int GP_STORAGEINFO_AC_READONLY_WITH_DELETE = 2;
+
+    /**
+     * Information about a camera storage, e.g. a memory card.
+     */
+    class CameraStorageInformation extends Structure {
+
+        /**
+         * The valid fields, a bitmask of GP_STORAGEINFO_*.
+         */
+        public int fields;
+        /**
+         * The base directory of the storage, e.g. /store_00010001.
+         */
+        public byte[] basedir = new byte[256];
+        public byte[] label = new byte[256];
+        public byte[] description = new byte[256];
+        /**
+         * One of GP_STORAGEINFO_ST_*.
+         */
+        public int type;
+        /**
+         * One of GP_STORAGEINFO_FST_*.
+         */
+        public int fstype;
+        /**
+         * One of GP_STORAGEINFO_AC_*.
+         */
+        public int access;
+        public long capacitykbytes;
+        public long freekbytes;
+        public long freeimages;
+
+        public CameraStorageInformation() {
+        }
+
+        /**
+         * Reads the structure from the native memory.
+         * @param p the structure pointer, not null.
+         */
+        public CameraStorageInformation(Pointer p) {
+            super(p);
+            read();
+        }
+
+        public List<String> getFieldOrder() {
+            return Arrays.asList("fields", "basedir", "label", "description", "type", "fstype", "access", "capacitykbytes", "freekbytes", "freeimages");
+        }
+    }
+    /**
+     * Valid fields of {@link CameraFileInfo}.
+     */
+    int GP_FILE_INFO_NONE = 0;
+    int GP_FILE_INFO_TYPE = 1 << 0;
+    int GP_FILE_INFO_SIZE = 1 << 2;
+    int GP_FILE_INFO_WIDTH = 1 << 3;
+    int GP_FILE_INFO_HEIGHT = 1 << 4;
+    int GP_FILE_INFO_PERMISSIONS = 1 << 5;
+    int GP_FILE_INFO_STATUS = 1 << 6;
+    int GP_FILE_INFO_MTIME = 1 << 7;
+
+    /**
+     * Metadata of a camera file. The native structure nests three structures (preview, file, audio); they are flattened here
+     * with a prefix, which gives the same layout since each nested structure is 8-byte aligned.
+     */
+    class CameraFileInfo extends Structure {
+
+        public int preview_fields;
+        public int preview_status;
+        public long preview_size;
+        public byte[] preview_type = new byte[64];
+        public int preview_width;
+        public int preview_height;
+        /**
+         * The valid file fields, a bitmask of GP_FILE_INFO_*.
+         */
+        public int file_fields;
+        public int file_status;
+        public long file_size;
+        /**
+         * The MIME type, e.g. image/jpeg.
+         */
+        public byte[] file_type = new byte[64];
+        public int file_width;
+        public int file_height;
+        public int file_permissions;
+        /**
+         * The modification time, a time_t.
+         */
+        public NativeLong file_mtime;
+        public int audio_fields;
+        public int audio_status;
+        public long audio_size;
+        public byte[] audio_type = new byte[64];
+
+        public List<String> getFieldOrder() {
+            return Arrays.asList("preview_fields", "preview_status", "preview_size", "preview_type", "preview_width", "preview_height",
+                    "file_fields", "file_status", "file_size", "file_type", "file_width", "file_height", "file_permissions", "file_mtime",
+                    "audio_fields", "audio_status", "audio_size", "audio_type");
+        }
+    }
     int GP_WIDGET_WINDOW = 0;//  # Window widget This is the toplevel configuration widget. It should likely contain multiple GP_WIDGET_SECTION entries.
     int GP_WIDGET_SECTION = 1;// # Section widget (think Tab).
     int GP_WIDGET_TEXT = 2;//    # Text widget.
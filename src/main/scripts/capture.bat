@@ -24,7 +24,7 @@ set JAVA_OPTS=-Xmx1024m
 rem Add platform runtime libraries
 for %%i in (lib\*.jar) do call :cpappend %%i
 rem Launch the runtime
-java %JAVA_OPTS% -classpath "%CLSPATH%" org.gphoto2.Camera %1 %2 %3 %4 %5 %6 %7 %8 %9
+java %JAVA_OPTS% -classpath "%CLSPATH%" org.gphoto2.CameraCli capture %1 %2 %3 %4 %5 %6 %7 %8 %9
 if "%OS%"=="Windows_NT" @endlocal
 goto :EOF
 
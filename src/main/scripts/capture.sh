@@ -17,6 +17,8 @@
 # Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
 #
 
+# Captures an image with every connected camera, e.g. capture.sh --count 5 --out 'shots/{model}-{n}.{ext}'
+
 CP=`ls lib/*.jar|tr '\n' ':'`
-java $JAVA_OPTS -cp $CP org.gphoto2.Camera "$@"
+exec java $JAVA_OPTS -cp $CP org.gphoto2.CameraCli capture "$@"
 
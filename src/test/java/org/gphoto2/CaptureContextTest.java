@@ -0,0 +1,123 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Memory;
+import org.gphoto2.jna.GPhoto2Native.CameraFilePath;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the recycled capture path decoding of {@link CaptureContext} allocates next to nothing per capture. Runs without a
+ * camera: the native path structure is filled in by the test.
+ */
+public class CaptureContextTest {
+
+    private static final int WARMUP = 20000;
+    private static final int CAPTURES = 10000;
+    /**
+     * The file name string and the {@link CameraFile.Path} of a shot, with a generous margin for the JVM object layout.
+     */
+    private static final long MAX_BYTES_PER_CAPTURE = 160;
+    private com.sun.management.ThreadMXBean threads;
+    private Memory path;
+    private byte[][] names;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        path = new Memory(CameraFilePath.SIZE);
+        path.clear();
+        final byte[] folder = "/store_00010001/DCIM/100CANON".getBytes(Charset.forName("US-ASCII"));
+        path.write(CameraFilePath.FOLDER_OFFSET, folder, 0, folder.length);
+        names = new byte[16][];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("IMG_%04d.CR2\0", i).getBytes(Charset.forName("US-ASCII"));
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void setName(int shot) {
+        final byte[] name = names[shot % names.length];
+        path.write(0, name, 0, name.length);
+    }
+
+    @Test
+    public void testDecodeReusesFolder() {
+        final CaptureContext.PathDecoder decoder = new CaptureContext.PathDecoder();
+        setName(1);
+        final CameraFile.Path first = decoder.decode(path);
+        setName(2);
+        final CameraFile.Path second = decoder.decode(path);
+        assertEquals("IMG_0001.CR2", first.filename);
+        assertEquals("IMG_0002.CR2", second.filename);
+        assertEquals("/store_00010001/DCIM/100CANON", second.path);
+        assertSame(first.path, second.path);
+    }
+
+    @Test
+    public void testDecodeAllocation() {
+        final CaptureContext.PathDecoder decoder = new CaptureContext.PathDecoder();
+        int length = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            setName(i);
+            length += decoder.decode(path).filename.length();
+        }
+        final long start = allocatedBytes();
+        for (int i = 0; i < CAPTURES; i++) {
+            setName(i);
+            length += decoder.decode(path).filename.length();
+        }
+        final long perCapture = (allocatedBytes() - start) / CAPTURES;
+        assertTrue(length > 0);
+        assertTrue("allocated " + perCapture + " bytes per capture", perCapture <= MAX_BYTES_PER_CAPTURE);
+    }
+
+    @Test
+    public void testToStringAllocation() {
+        final byte[] bytes = "IMG_0001.CR2\0\0\0\0".getBytes(Charset.forName("US-ASCII"));
+        int length = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            length += CameraUtils.toString(bytes, 0, bytes.length).length();
+        }
+        final long start = allocatedBytes();
+        for (int i = 0; i < CAPTURES; i++) {
+            length += CameraUtils.toString(bytes, 0, bytes.length).length();
+        }
+        final long perCall = (allocatedBytes() - start) / CAPTURES;
+        assertTrue(length > 0);
+        // the result string only: the char array, the compacted byte array and the string itself.
+        assertTrue("allocated " + perCall + " bytes per call", perCall <= 128);
+    }
+}
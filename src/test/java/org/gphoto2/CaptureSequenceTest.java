@@ -0,0 +1,130 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order of shots and downloads of {@link CaptureSequence} against a stub camera which captures to its RAM, with the
+ * same limit of pending images as {@link Camera}. Needs neither libgphoto2 nor camera hardware.
+ */
+public class CaptureSequenceTest {
+
+    private static final int FRAMES = 5;
+
+    @Test
+    public void testRawPlusJpegToRam() {
+        final StubCamera camera = new StubCamera(2, 2);
+        final List<Integer> frames = new ArrayList<Integer>();
+        final Set<CameraFile.Path> paths = new HashSet<CameraFile.Path>();
+        final CaptureSequence sequence = new CaptureSequence();
+        for (int i = 0; i < FRAMES; i++) {
+            sequence.capture();
+        }
+        sequence.setQuietMillis(10);
+        sequence.run(camera, null, new CaptureSequence.FrameSink() {
+            public void frameCaptured(int frame, CameraFile.Path path, CameraFile file) {
+                frames.add(frame);
+                paths.add(path);
+            }
+        });
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < FRAMES; i++) {
+            expected.add(i);
+            expected.add(i);
+        }
+        assertEquals(expected, frames);
+        assertEquals(2 * FRAMES, paths.size());
+        assertEquals(0, camera.pending);
+    }
+
+    /**
+     * Announces the files of each triggered shot, followed by the capture completion. Refuses shots like
+     * {@link Camera#triggerCapture()} does while the RAM holds the limit of images not downloaded yet.
+     */
+    private static final class StubCamera implements CaptureSequence.Shooter {
+
+        private final int filesPerShot;
+        private final int ramCaptureLimit;
+        private final LinkedList<CameraEvent> events = new LinkedList<CameraEvent>();
+        private final Set<CameraFile.Path> files = new HashSet<CameraFile.Path>();
+        /**
+         * The images in the RAM: announced and not downloaded, or not announced yet.
+         */
+        int pending = 0;
+        private int shots = 0;
+
+        StubCamera(int filesPerShot, int ramCaptureLimit) {
+            this.filesPerShot = filesPerShot;
+            this.ramCaptureLimit = ramCaptureLimit;
+        }
+
+        public void triggerCapture() {
+            if (isRamFull()) {
+                throw new IllegalStateException("Invalid state: " + pending + " images captured to the camera RAM were not downloaded yet");
+            }
+            pending++;
+            final String name = String.format("IMG_%04d", shots++);
+            events.add(new CameraEvent(CameraEvent.Type.FileAdded, new CameraFile.Path(name + ".CR2", "/"), null));
+            for (int i = 1; i < filesPerShot; i++) {
+                events.add(new CameraEvent(CameraEvent.Type.FileAdded, new CameraFile.Path(name + "_" + i + ".JPG", "/"), null));
+            }
+            events.add(new CameraEvent(CameraEvent.Type.CaptureComplete, null, null));
+        }
+
+        public CameraEvent waitForEvent(int timeoutMillis) {
+            if (events.isEmpty()) {
+                return new CameraEvent(CameraEvent.Type.Timeout, null, null);
+            }
+            final CameraEvent result = events.removeFirst();
+            if (result.type == CameraEvent.Type.FileAdded) {
+                // the first file of a shot was counted by the trigger.
+                if (!result.path.filename.endsWith(".CR2")) {
+                    pending++;
+                }
+                files.add(result.path);
+            }
+            return result;
+        }
+
+        public CameraFile.Path capture() {
+            throw new UnsupportedOperationException();
+        }
+
+        public CameraFile download(CameraFile.Path path) {
+            if (!files.remove(path)) {
+                throw new IllegalArgumentException("Parameter path: invalid value " + path + ": not in the RAM");
+            }
+            pending--;
+            return null;
+        }
+
+        public boolean isRamFull() {
+            return pending >= ramCaptureLimit;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Throughput benchmark of listing and downloading, running through real libgphoto2 without camera hardware. Generates a
+ * directory of large pseudo-random files and opens it as a camera with the {@link Camera#DIRECTORY_BROWSE} driver; every
+ * downloaded file is verified against the generated contents. {@link DirectoryCameraTest} runs the same check on a few small
+ * files as part of the test suite.
+ * <p></p>
+ * Usage: <code>DirectoryBenchmark [fileCount] [fileSizeMB] [iterations] [directory]</code>. Defaults to 20 files of 25 MB,
+ * 3 iterations, in a temporary directory which is deleted afterwards. Exits with status 1 when the verification fails.
+ */
+public final class DirectoryBenchmark {
+
+    private DirectoryBenchmark() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 25) * 1024 * 1024;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        final boolean temporary = args.length <= 3;
+        final File dir = temporary ? createTempDir() : new File(args[3]);
+        System.out.println("GPhoto version: " + Camera.getLibraryVersion());
+        System.out.println("Generating " + fileCount + " files of " + fileSize + " bytes in " + dir);
+        final boolean ok;
+        try {
+            generate(dir, fileCount, fileSize);
+            ok = run(dir, fileCount, fileSize, iterations);
+        } finally {
+            if (temporary) {
+                delete(dir);
+            }
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    static File createTempDir() throws IOException {
+        final File f = File.createTempFile("gphoto2-bench", "");
+        if (!f.delete() || !f.mkdir()) {
+            throw new IOException("Failed to create " + f);
+        }
+        return f;
+    }
+
+    static void delete(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static String fileName(int i) {
+        return String.format("IMG_%04d.JPG", i);
+    }
+
+    /**
+     * Fills given buffer with the expected contents of given file. The contents depend on the file index only, so that the
+     * downloads can be verified without keeping the files in memory.
+     */
+    static void contents(int i, byte[] buffer) {
+        new Random(i).nextBytes(buffer);
+        // JPEG SOI marker, the driver recognizes the file type by the extension only but keep the files plausible.
+        buffer[0] = (byte) 0xFF;
+        buffer[1] = (byte) 0xD8;
+    }
+
+    static void generate(File dir, int fileCount, int fileSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        final byte[] buffer = new byte[fileSize];
+        for (int i = 0; i < fileCount; i++) {
+            final File f = new File(dir, fileName(i));
+            if (f.length() == fileSize) {
+                continue;
+            }
+            contents(i, buffer);
+            final OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(buffer);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static boolean run(File dir, int fileCount, int fileSize, int iterations) throws IOException {
+        final LatencyStats initStats = new LatencyStats("init");
+        final LatencyStats listStats = new LatencyStats("list");
+        final LatencyStats downloadStats = new LatencyStats("download");
+        final byte[] expected = new byte[fileSize];
+        final byte[] actual = new byte[fileSize];
+        boolean ok = true;
+        long bytes = 0;
+        long downloadNanos = 0;
+        final Camera camera = Camera.openDirectory(dir);
+        try {
+            final long initStart = System.nanoTime();
+            camera.initialize();
+            initStats.recordSince(initStart);
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                final long listStart = System.nanoTime();
+                final List<String> names = camera.listFiles("/");
+                listStats.recordSince(listStart);
+                final Set<String> found = new HashSet<String>(names);
+                for (int i = 0; i < fileCount; i++) {
+                    final String name = fileName(i);
+                    if (!found.contains(name)) {
+                        System.out.println("FAIL: " + name + " not listed, got " + names);
+                        ok = false;
+                        continue;
+                    }
+                    final long start = System.nanoTime();
+                    final CameraFile cf = camera.download(new CameraFile.Path(name, "/"));
+                    try {
+                        final ByteBuffer data = cf.getByteBuffer();
+                        final long nanos = downloadStats.recordSince(start);
+                        downloadNanos += nanos;
+                        bytes += data.remaining();
+                        if (data.remaining() != fileSize) {
+                            System.out.println("FAIL: " + name + " has " + data.remaining() + " bytes, expected " + fileSize);
+                            ok = false;
+                            continue;
+                        }
+                        data.get(actual);
+                        contents(i, expected);
+                        if (!Arrays.equals(expected, actual)) {
+                            System.out.println("FAIL: " + name + " contents differ");
+                            ok = false;
+                        }
+                    } finally {
+                        CameraUtils.closeQuietly(cf);
+                    }
+                }
+            }
+        } finally {
+            CameraUtils.closeQuietly(camera);
+        }
+        System.out.println(initStats);
+        System.out.println(listStats);
+        System.out.println(downloadStats);
+        if (downloadNanos > 0) {
+            System.out.println(String.format("Download throughput: %.1f MB/s (%d bytes)", bytes / 1048576d / (downloadNanos / 1e9), bytes));
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        return ok;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Lists and downloads a generated directory through real libgphoto2, using the {@link Camera#DIRECTORY_BROWSE} driver. Skipped
+ * when libgphoto2 or its <code>directory</code> camlib is not installed.
+ */
+public class DirectoryCameraTest {
+
+    private static final int FILE_COUNT = 5;
+    private static final int FILE_SIZE = 256 * 1024;
+    private File dir;
+    private Camera camera;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = DirectoryBenchmark.createTempDir();
+        DirectoryBenchmark.generate(dir, FILE_COUNT, FILE_SIZE);
+        try {
+            camera = Camera.openDirectory(dir);
+            camera.initialize();
+        } catch (LinkageError ex) {
+            // libgphoto2 is not installed.
+            assumeNoException(ex);
+        } catch (GPhotoException ex) {
+            // GP_ERROR_MODEL_NOT_FOUND or an unknown disk: port when the camlib or the disk iolib is missing.
+            assumeNoException(ex);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (camera != null) {
+            CameraUtils.closeQuietly(camera);
+        }
+        DirectoryBenchmark.delete(dir);
+    }
+
+    @Test
+    public void testListAndDownload() {
+        final List<String> names = camera.listFiles("/");
+        final byte[] expected = new byte[FILE_SIZE];
+        final byte[] actual = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final String name = DirectoryBenchmark.fileName(i);
+            assertTrue(name + " not listed in " + names, names.contains(name));
+            final CameraFile cf = camera.download(new CameraFile.Path(name, "/"));
+            try {
+                final ByteBuffer data = cf.getByteBuffer();
+                assertEquals(FILE_SIZE, data.remaining());
+                data.get(actual);
+                DirectoryBenchmark.contents(i, expected);
+                assertArrayEquals(name, expected, actual);
+            } finally {
+                CameraUtils.closeQuietly(cf);
+            }
+        }
+    }
+}
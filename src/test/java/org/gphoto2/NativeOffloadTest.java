@@ -0,0 +1,250 @@
+/**
+ * Java bindings for the libgphoto2 library.
+ * Copyright (C) 2011 Innovatrics s.r.o.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.gphoto2;
+
+import com.sun.jna.Pointer;
+import org.gphoto2.jna.GPhoto2Native;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of {@link NativeOffload}: many concurrent requests against many cameras. Needs neither libgphoto2 nor camera
+ * hardware: the library is simulated by a stub, offloaded exactly as {@link GPhoto2Native#INSTANCE} is, whose
+ * <code>gp_camera_*</code> calls block the calling thread for a fixed time, like a USB transfer does. Runs on virtual threads
+ * where available, on platform threads with the {@link NativeOffload.Mode#Always} mode otherwise.
+ */
+public class NativeOffloadTest {
+
+    private static final int REQUESTS = 4000;
+    private static final int CAMERAS = 40;
+    private static final long CALL_MILLIS = 10;
+    /**
+     * The median wait of a trivial task for a thread while the cameras are busy. Without offloading, virtual threads pinned by
+     * the native calls queue the task behind the thousands of waiting requests, many call times; with offloading it should not
+     * wait for a single call. Generous, so that a loaded machine does not fail the test.
+     */
+    private static final long MAX_PROBE_MILLIS = CALL_MILLIS;
+    private NativeOffload.Mode mode;
+    private ExecutorService executor;
+    private Stub stub;
+    private SimulatedLibrary lib;
+
+    /**
+     * The simulated part of {@link GPhoto2Native}. A separate interface, so that the test runs without libgphoto2.
+     */
+    public static interface SimulatedLibrary {
+
+        int gp_camera_trigger_capture(Pointer camera, Pointer context);
+
+        int gp_camera_free(Pointer camera);
+    }
+
+    @Before
+    public void setUp() {
+        mode = NativeOffload.getMode();
+        executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool();
+            NativeOffload.setMode(NativeOffload.Mode.Always);
+        } else {
+            NativeOffload.setMode(NativeOffload.Mode.VirtualThreads);
+        }
+        stub = new Stub(CAMERAS, CALL_MILLIS);
+        lib = NativeOffload.wrap(SimulatedLibrary.class, stub.library);
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = 0; i < CAMERAS; i++) {
+            lib.gp_camera_free(stub.camera(i));
+        }
+        executor.shutdown();
+        NativeOffload.setMode(mode);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testWrapReturnsLibraryWhenNeverOffloading() {
+        NativeOffload.setMode(NativeOffload.Mode.Never);
+        assertSame(stub.library, NativeOffload.wrap(SimulatedLibrary.class, stub.library));
+        NativeOffload.setMode(NativeOffload.Mode.VirtualThreads);
+        if (hasVirtualThreads()) {
+            assertNotSame(stub.library, NativeOffload.wrap(SimulatedLibrary.class, stub.library));
+        } else {
+            assertSame(stub.library, NativeOffload.wrap(SimulatedLibrary.class, stub.library));
+        }
+        NativeOffload.setMode(NativeOffload.Mode.Always);
+        assertNotSame(stub.library, NativeOffload.wrap(SimulatedLibrary.class, stub.library));
+    }
+
+    @Test
+    public void testCamerasDoNotShareLanes() throws Exception {
+        final int cameras = Math.min(CAMERAS, NativeOffload.getLaneCount());
+        final CountDownLatch done = new CountDownLatch(cameras);
+        for (int i = 0; i < cameras; i++) {
+            final Pointer camera = stub.camera(i);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        lib.gp_camera_trigger_capture(camera, null);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        final Set<String> lanes = new HashSet<String>();
+        for (int i = 0; i < cameras; i++) {
+            assertEquals("camera " + i + " called on " + stub.lanes.get(i), 1, stub.lanes.get(i).size());
+            lanes.addAll(stub.lanes.get(i));
+        }
+        assertEquals(cameras, lanes.size());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        final LatencyStats probeStats = new LatencyStats("probe");
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < REQUESTS; i++) {
+            final Pointer camera = stub.camera(i % CAMERAS);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (lib.gp_camera_trigger_capture(camera, null) != GPhoto2Native.GP_OK) {
+                            failed.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        while (!done.await(10, TimeUnit.MILLISECONDS)) {
+            final long t = System.nanoTime();
+            final CountDownLatch probe = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    probeStats.recordSince(t);
+                    probe.countDown();
+                }
+            });
+            probe.await();
+        }
+        assertEquals(0, failed.get());
+        assertEquals("overlapping calls to the same camera", 0, stub.overlaps.get());
+        assertEquals(REQUESTS, stub.calls.get());
+        final long probeMillis = TimeUnit.NANOSECONDS.toMillis(probeStats.getPercentileNanos(50));
+        assertTrue(probeStats + ", " + NativeOffload.getStats(), probeMillis <= MAX_PROBE_MILLIS);
+    }
+
+    /**
+     * Simulates the library: blocking camera calls which must not overlap per camera. Records the threads each camera was
+     * called on.
+     */
+    private static final class Stub implements InvocationHandler {
+
+        final SimulatedLibrary library;
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final ConcurrentMap<Integer, Set<String>> lanes = new ConcurrentHashMap<Integer, Set<String>>();
+        private final long callMillis;
+        private final AtomicInteger[] busy;
+        private final long base;
+
+        Stub(int cameras, long callMillis) {
+            this.callMillis = callMillis;
+            busy = new AtomicInteger[cameras];
+            for (int i = 0; i < cameras; i++) {
+                busy[i] = new AtomicInteger();
+                lanes.put(i, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            }
+            // distinct addresses per test, the lane assignment outlives the stub.
+            base = System.identityHashCode(this) * 0x100000L;
+            library = (SimulatedLibrary) Proxy.newProxyInstance(SimulatedLibrary.class.getClassLoader(), new Class<?>[]{SimulatedLibrary.class}, this);
+        }
+
+        Pointer camera(int index) {
+            return new Pointer(base + 0x100L * (index + 1));
+        }
+
+        private int index(Pointer camera) {
+            return (int) ((Pointer.nativeValue(camera) - base) / 0x100L) - 1;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            if (method.getName().equals("gp_camera_free")) {
+                return GPhoto2Native.GP_OK;
+            }
+            final int camera = index((Pointer) args[0]);
+            lanes.get(camera).add(Thread.currentThread().getName());
+            final AtomicInteger b = busy[camera];
+            if (b.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                Thread.sleep(callMillis);
+            } finally {
+                b.decrementAndGet();
+            }
+            calls.incrementAndGet();
+            return GPhoto2Native.GP_OK;
+        }
+    }
+}